@@ -0,0 +1,57 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Small, node-local record of linking keys that recently matched no account, so a user who keeps going through
+ * first-broker-login does not cost a user lookup on every attempt.
+ * <p>
+ * Entries expire after a short time, which bounds how long an account created in the meantime stays unmatched,
+ * and the least recently used key is dropped once the cache is full.
+ */
+public final class UsosAccountLinkMisses {
+    
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final int DEFAULT_TTL_SECONDS = 300;
+    
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final Map<String, Long> expiries;
+    
+    public UsosAccountLinkMisses(int maxEntries, int ttlSeconds) {
+        this(maxEntries, ttlSeconds, System::nanoTime);
+    }
+    
+    UsosAccountLinkMisses(int maxEntries, int ttlSeconds, LongSupplier nanoClock) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.nanoClock = nanoClock;
+        this.expiries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Whether the key matched no account within the last TTL
+     */
+    public synchronized boolean contains(String key) {
+        Long expiry = expiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry - nanoClock.getAsLong() <= 0) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+    
+    public synchronized void add(String key) {
+        expiries.put(key, nanoClock.getAsLong() + ttlNanos);
+    }
+}
@@ -0,0 +1,38 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.util.Locale;
+
+/**
+ * How a first USOS login is matched to an existing, not yet linked Keycloak account
+ */
+public enum UsosAccountLinking {
+    
+    /**
+     * No matching; first-broker-login decides
+     */
+    OFF,
+    
+    /**
+     * An account whose username is the USOS user id
+     */
+    ID,
+    
+    /**
+     * The one account whose student_number attribute equals the USOS student number
+     */
+    STUDENT_NUMBER;
+    
+    /**
+     * Reads the configured mode, treating anything unknown as {@link #OFF}
+     */
+    public static UsosAccountLinking parse(String value) {
+        if (value == null || value.isBlank()) {
+            return OFF;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return OFF;
+        }
+    }
+}
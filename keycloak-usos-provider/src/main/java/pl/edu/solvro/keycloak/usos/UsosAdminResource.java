@@ -0,0 +1,137 @@
+package pl.edu.solvro.keycloak.usos;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Admin REST endpoints of the USOS provider, under {@code /admin/realms/{realm}/usos}
+ */
+public class UsosAdminResource {
+    
+    private static final Pattern USER_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final UsosAdminResourceProviderFactory jobs;
+    
+    public UsosAdminResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+            AdminEventBuilder adminEvent, UsosAdminResourceProviderFactory jobs) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent.resource(ResourceType.USER);
+        this.jobs = jobs;
+    }
+    
+    /**
+     * Starts importing the USOS users whose ids the body lists, one per line, or resumes the same list where it
+     * stopped; the users it creates or refreshes are reported as admin events of the caller
+     */
+    @POST
+    @Path("{alias}/import")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startImport(@PathParam("alias") String alias, InputStream body) {
+        auth.users().requireManage();
+        requireUsosProvider(alias);
+        Set<String> userIds = readUserIds(body, jobs.getMaxImportUsers());
+        UsosImportJob job = jobs.startImport(session, realm.getId(), alias, new ArrayList<>(userIds), adminEvent);
+        if (job == null) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(jobs.getImport(realm.getId(), alias).getProgress())
+                    .build();
+        }
+        return Response.accepted(job.getProgress()).build();
+    }
+    
+    @GET
+    @Path("{alias}/import")
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsosImportJob.Progress getImport(@PathParam("alias") String alias) {
+        auth.users().requireView();
+        return requireImport(alias).getProgress();
+    }
+    
+    /**
+     * Stops the import after the page in progress; submitting the same ids again resumes it
+     */
+    @DELETE
+    @Path("{alias}/import")
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsosImportJob.Progress cancelImport(@PathParam("alias") String alias) {
+        auth.users().requireManage();
+        UsosImportJob job = requireImport(alias);
+        job.cancel();
+        return job.getProgress();
+    }
+    
+    private void requireUsosProvider(String alias) {
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !UsosIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new NotFoundException("USOS identity provider not found");
+        }
+    }
+    
+    private UsosImportJob requireImport(String alias) {
+        UsosImportJob job = jobs.getImport(realm.getId(), alias);
+        if (job == null) {
+            throw new NotFoundException("No USOS import has run for this identity provider");
+        }
+        return job;
+    }
+    
+    /**
+     * Reads one USOS id per line, skipping blank lines and repeats
+     */
+    static Set<String> readUserIds(InputStream body, int maxUsers) {
+        Set<String> userIds = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String userId = line.trim();
+                if (userId.isEmpty()) {
+                    continue;
+                }
+                if (!USER_ID.matcher(userId).matches()) {
+                    throw new BadRequestException("Not a USOS user id: " + userId);
+                }
+                if (userIds.add(userId) && userIds.size() > maxUsers) {
+                    throw new BadRequestException("An import takes at most " + maxUsers + " users");
+                }
+            }
+        } catch (IOException e) {
+            throw new BadRequestException("Could not read the user ids", e);
+        }
+        if (userIds.isEmpty()) {
+            throw new BadRequestException("No USOS user ids given");
+        }
+        return userIds;
+    }
+}
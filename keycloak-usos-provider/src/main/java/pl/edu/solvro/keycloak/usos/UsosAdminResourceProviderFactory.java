@@ -0,0 +1,117 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.Config;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registers the USOS admin endpoints and runs the import jobs they start, at most one per identity provider at a
+ * time on this node
+ */
+public class UsosAdminResourceProviderFactory implements AdminRealmResourceProviderFactory {
+    
+    public static final String ID = "usos";
+    public static final int DEFAULT_MAX_IMPORT_USERS = 100000;
+    
+    private final Map<String, UsosImportJob> imports = new ConcurrentHashMap<>();
+    private ExecutorService importRunner;
+    private int importPageSize = UsosImportJob.DEFAULT_PAGE_SIZE;
+    private int importCallsPerSecond = UsosImportJob.DEFAULT_CALLS_PER_SECOND;
+    private int maxImportUsers = DEFAULT_MAX_IMPORT_USERS;
+    
+    @Override
+    public String getId() {
+        return ID;
+    }
+    
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return new AdminRealmResourceProvider() {
+            @Override
+            public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                    AdminEventBuilder adminEvent) {
+                return new UsosAdminResource(session, realm, auth, adminEvent, UsosAdminResourceProviderFactory.this);
+            }
+            
+            @Override
+            public void close() {
+                // Jobs outlive the request, so they are closed with the factory
+            }
+        };
+    }
+    
+    @Override
+    public void init(Config.Scope config) {
+        importPageSize = positiveOrDefault(config.getInt("importPageSize"), UsosImportJob.DEFAULT_PAGE_SIZE);
+        importCallsPerSecond = positiveOrDefault(config.getInt("importCallsPerSecond"),
+                UsosImportJob.DEFAULT_CALLS_PER_SECOND);
+        maxImportUsers = positiveOrDefault(config.getInt("maxImportUsers"), DEFAULT_MAX_IMPORT_USERS);
+        importRunner = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "usos-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static int positiveOrDefault(Integer value, int defaultValue) {
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+    
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do after initialization
+    }
+    
+    /**
+     * Starts an import of the given USOS ids into the provider
+     *
+     * @return the job, or null if an import for the provider is already running
+     */
+    UsosImportJob startImport(KeycloakSession session, String realmId, String alias, List<String> userIds,
+            AdminEventBuilder adminEvent) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        ProviderFactory<?> providers = sessionFactory.getProviderFactory(IdentityProvider.class,
+                UsosIdentityProviderFactory.PROVIDER_ID);
+        UsosImportJob job = new UsosImportJob((UsosIdentityProviderFactory) providers, sessionFactory, realmId,
+                alias, userIds, importPageSize, importCallsPerSecond, adminEvent);
+        UsosImportJob previous = imports.compute(realmId + ":" + alias,
+                (key, running) -> running != null && running.isRunning() ? running : job);
+        if (previous != job) {
+            return null;
+        }
+        importRunner.execute(job);
+        return job;
+    }
+    
+    /**
+     * The running or last finished import for the provider on this node
+     */
+    UsosImportJob getImport(String realmId, String alias) {
+        return imports.get(realmId + ":" + alias);
+    }
+    
+    int getMaxImportUsers() {
+        return maxImportUsers;
+    }
+    
+    @Override
+    public void close() {
+        if (importRunner != null) {
+            imports.values().forEach(UsosImportJob::cancel);
+            importRunner.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache of the USOS API answers the API proxy fetched for users, kept in Keycloak's Infinispan.
+ * <p>
+ * Answers are stored per USOS installation, user and call, so they are only ever served to the user they were
+ * signed for. They hold the user's personal data and are spread across the cluster, so each one is sealed with the
+ * realm AES key and bound to its key: an answer that cannot be opened, such as one sealed with a key the realm no
+ * longer has, counts as a miss. Concurrent misses for the same key on a node share one USOS call: the first caller
+ * loads the answer and the others wait for it. Failed calls are not cached.
+ */
+public final class UsosApiCache {
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosApiCache.class);
+    
+    public static final String CACHE_NAME = "usosApi";
+    public static final long DEFAULT_MAX_ENTRIES = 50000;
+    
+    private final Cache<String, String> cache;
+    private final Map<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    
+    /**
+     * @param cache where answers are kept, or null to only coalesce concurrent calls
+     */
+    public UsosApiCache(Cache<String, String> cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Loads an answer a cache miss calls USOS for
+     */
+    @FunctionalInterface
+    public interface Loader {
+        String load() throws IOException;
+    }
+    
+    /**
+     * The realm AES keys answers are sealed with
+     *
+     * @param kid  id of the key new answers are sealed with
+     * @param key  the key new answers are sealed with
+     * @param keys looks up the key a cached answer was sealed with by its id, returning null for an unknown one
+     */
+    public record Seal(String kid, SecretKey key, Function<String, SecretKey> keys) {
+    }
+    
+    /**
+     * Defines the cache in the given cache manager if needed, distributed across the cluster when it is clustered
+     */
+    public static UsosApiCache create(EmbeddedCacheManager cacheManager, long maxEntries) {
+        synchronized (cacheManager) {
+            if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+                ConfigurationBuilder builder = new ConfigurationBuilder();
+                if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+                    builder.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(2);
+                }
+                builder.memory().maxCount(maxEntries).whenFull(EvictionStrategy.REMOVE);
+                cacheManager.defineConfiguration(CACHE_NAME, builder.build());
+            }
+        }
+        return new UsosApiCache(cacheManager.getCache(CACHE_NAME));
+    }
+    
+    /**
+     * Returns the cached answer of the user's call, or loads and caches it, sharing the load with concurrent
+     * callers asking for the same call
+     *
+     * @param seal the realm keys to seal the answer with, or null to only share the load when the realm has none
+     */
+    public String get(String installation, String userId, String call, long ttlSeconds, Seal seal, Loader loader)
+            throws IOException {
+        String key = installation + "|" + userId + "|" + call;
+        String answer = open(key, seal);
+        if (answer != null) {
+            hits.increment();
+            return answer;
+        }
+        CompletableFuture<String> load = new CompletableFuture<>();
+        CompletableFuture<String> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        misses.increment();
+        try {
+            answer = loader.load();
+            put(key, answer, ttlSeconds, seal);
+            load.complete(answer);
+            return answer;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+    
+    private String open(String key, Seal seal) {
+        String sealed = cache == null || seal == null ? null : cache.get(key);
+        byte[] opened = sealed == null ? null : UsosSeal.open(sealed, seal.keys(), key);
+        return opened == null ? null : new String(opened, StandardCharsets.UTF_8);
+    }
+    
+    private void put(String key, String answer, long ttlSeconds, Seal seal) {
+        if (cache == null || seal == null) {
+            return;
+        }
+        try {
+            cache.put(key, UsosSeal.seal(answer.getBytes(StandardCharsets.UTF_8), seal.kid(), seal.key(), key),
+                    ttlSeconds, TimeUnit.SECONDS);
+        } catch (GeneralSecurityException e) {
+            // Served this time, loaded again next time
+            LOGGER.warnf("USOS API answer could not be sealed, it is not cached: %s", e.getMessage());
+        }
+    }
+    
+    private static String await(CompletableFuture<String> running) throws IOException {
+        try {
+            // The loading call is bounded by the transport's deadline
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a concurrent USOS call", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException failure) {
+                throw failure;
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,141 @@
+package pl.edu.solvro.keycloak.usos;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import org.jboss.logging.Logger;
+import org.keycloak.models.Constants;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessToken.Access;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+
+import java.io.IOException;
+
+/**
+ * USOS API proxy, under {@code /realms/{realm}/usos}.
+ * <p>
+ * A client holding a user's bearer token with the {@code broker} client's {@code read-token} role calls an
+ * allow-listed USOS API method as {@code GET {alias}/services/...}. The call is signed with the access token stored
+ * on the user's USOS identity and goes through the provider's shared transport, rate limiter and retries; answers
+ * are cached for the method's TTL, sealed with the realm AES key, so apps asking for the same data share one USOS
+ * call.
+ */
+public class UsosApiResource {
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosApiResource.class);
+    
+    private final KeycloakSession session;
+    private final UsosIdentityProviderFactory providers;
+    
+    public UsosApiResource(KeycloakSession session, UsosIdentityProviderFactory providers) {
+        this.session = session;
+        this.providers = providers;
+    }
+    
+    /**
+     * Answers an allow-listed USOS API method for the token's user, passing on the query parameters
+     */
+    @GET
+    @Path("{alias}/{method: services/.+}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response call(@PathParam("alias") String alias, @PathParam("method") String method,
+            @Context UriInfo uriInfo) {
+        AuthResult auth = authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        Access broker = auth.getToken().getResourceAccess(Constants.BROKER_SERVICE_CLIENT_ID);
+        if (broker == null || !broker.isUserInRole(Constants.READ_TOKEN_ROLE)) {
+            throw new ForbiddenException("Client is not allowed to read the user's USOS data");
+        }
+        
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !model.isEnabled()
+                || !UsosIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new NotFoundException("USOS identity provider not found");
+        }
+        UsosIdentityProviderSnapshot snapshot = providers.getSnapshot(session, model);
+        UsosApiServices services = snapshot.getApiServices();
+        int ttlSeconds = services == null ? -1 : services.ttlSeconds(method);
+        if (ttlSeconds < 0) {
+            throw new ForbiddenException("USOS API method is not allowed: " + method);
+        }
+        
+        RealmModel realm = session.getContext().getRealm();
+        FederatedIdentityModel identity = session.users().getFederatedIdentity(realm, auth.getUser(), alias);
+        AccessToken accessToken = identity == null ? null : AccessToken.fromStoredToken(identity.getToken());
+        if (accessToken == null) {
+            // Not linked, tokens not stored, or stored before the secret was kept with the token
+            throw new BadRequestException("User has no stored USOS token, log in through USOS again");
+        }
+        
+        String call = services.call(method, uriInfo.getQueryParameters());
+        try {
+            String answer = providers.getApiCache(session).get(snapshot.getInstallation(), identity.getUserId(),
+                    call, ttlSeconds, seal(realm), () -> snapshot.getClient().get(services.url(call), accessToken));
+            return Response.ok(answer, MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+    
+    /**
+     * Resolves the bearer token of the request, or returns null if it is missing or invalid
+     */
+    AuthResult authenticate() {
+        return new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+    }
+    
+    /**
+     * Resolves the realm AES keys cached answers are sealed with, or returns null if the realm has none
+     */
+    private UsosApiCache.Seal seal(RealmModel realm) {
+        KeyManager keys = session.keys();
+        KeyManager.ActiveAesKey key;
+        try {
+            key = keys.getActiveAesKey(realm);
+        } catch (RuntimeException e) {
+            // Keycloak's key manager throws when the realm has no active key
+            key = null;
+        }
+        if (key == null || key.getSecretKey() == null) {
+            LOGGER.warnf("Realm %s has no active AES key, USOS API answers are not cached", realm.getName());
+            return null;
+        }
+        return new UsosApiCache.Seal(key.getKid(), key.getSecretKey(), kid -> keys.getAesSecretKey(realm, kid));
+    }
+    
+    private static WebApplicationException failure(IOException e) {
+        if (UsosUnavailableException.isUnavailable(e)) {
+            LOGGER.debugf("USOS API proxy call refused: %s", e.getMessage());
+            return new ServiceUnavailableException("USOS is temporarily unavailable, please try again later");
+        }
+        if (UsosTimeoutException.isTimeout(e)) {
+            LOGGER.warn("USOS did not respond in time to an API proxy call", e);
+            return new WebApplicationException("USOS did not respond in time", Response.Status.GATEWAY_TIMEOUT);
+        }
+        if (e instanceof UsosOAuthClient.StatusException status && status.getStatus() == 400) {
+            // USOS rejected the parameters the client passed
+            return new BadRequestException("USOS rejected the call: " + e.getMessage());
+        }
+        LOGGER.warn("USOS API proxy call failed", e);
+        return new WebApplicationException("USOS API call failed", Response.Status.BAD_GATEWAY);
+    }
+}
@@ -0,0 +1,57 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.Config;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Registers the USOS API proxy under {@code /realms/{realm}/usos}, sharing the identity provider factory's
+ * transports and caches
+ */
+public class UsosApiResourceProviderFactory implements RealmResourceProviderFactory {
+    
+    public static final String ID = "usos";
+    
+    private UsosIdentityProviderFactory providers;
+    
+    @Override
+    public String getId() {
+        return ID;
+    }
+    
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new RealmResourceProvider() {
+            @Override
+            public Object getResource() {
+                return new UsosApiResource(session, providers);
+            }
+            
+            @Override
+            public void close() {
+                // Nothing to close, the resource holds no state of its own
+            }
+        };
+    }
+    
+    @Override
+    public void init(Config.Scope config) {
+        // No options of its own; the proxy is configured per identity provider
+    }
+    
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        ProviderFactory<?> identityProviders = factory.getProviderFactory(IdentityProvider.class,
+                UsosIdentityProviderFactory.PROVIDER_ID);
+        providers = (UsosIdentityProviderFactory) identityProviders;
+    }
+    
+    @Override
+    public void close() {
+        // The shared resources are closed with the identity provider factory
+    }
+}
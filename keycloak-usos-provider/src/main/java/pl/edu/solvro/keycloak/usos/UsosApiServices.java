@@ -0,0 +1,115 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The USOS API methods the API proxy may call on behalf of users, and how long it caches each method's answers.
+ * <p>
+ * Methods are declared as {@code method} or {@code method=ttlSeconds} entries, such as
+ * {@code services/courses/user=600}. Calls carry the query the client sent with its parameters sorted by name, so the
+ * same call made by different apps is signed and cached once.
+ */
+public final class UsosApiServices {
+    
+    public static final int DEFAULT_TTL_SECONDS = 300;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosApiServices.class);
+    private static final Pattern ENTRY_SEPARATOR = Pattern.compile("[\\n;]");
+    private static final Pattern METHOD = Pattern.compile("services/[a-z0-9_]+(/[a-z0-9_]+)+");
+    
+    private final String apiUrl;
+    private final Map<String, Integer> ttlSeconds;
+    
+    private UsosApiServices(String apiUrl, Map<String, Integer> ttlSeconds) {
+        this.apiUrl = apiUrl;
+        this.ttlSeconds = ttlSeconds;
+    }
+    
+    /**
+     * Compiles the provider's API proxy allow-list
+     *
+     * @return the allow-list, or null if the proxy is off for the provider
+     */
+    public static UsosApiServices compile(UsosIdentityProviderConfig config) {
+        String spec = config.getApiProxyServices();
+        if (spec == null || spec.isBlank()) {
+            return null;
+        }
+        String apiUrl = config.getApiUrl();
+        if (apiUrl == null) {
+            LOGGER.warnf("Ignoring USOS API proxy services of %s, whose user info URL is not a USOS API URL",
+                    config.getAlias());
+            return null;
+        }
+        return compile(spec, apiUrl, config.getApiProxyTtlSeconds());
+    }
+    
+    static UsosApiServices compile(String spec, String apiUrl, int defaultTtlSeconds) {
+        Map<String, Integer> ttlSeconds = new HashMap<>();
+        for (String entry : ENTRY_SEPARATOR.split(spec)) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            String method = equals < 0 ? entry : entry.substring(0, equals).trim();
+            int ttl = equals < 0 ? defaultTtlSeconds : parseTtl(entry.substring(equals + 1).trim());
+            if (!METHOD.matcher(method).matches() || ttl <= 0) {
+                LOGGER.warnf("Ignoring malformed USOS API proxy service '%s'", entry);
+                continue;
+            }
+            ttlSeconds.put(method, ttl);
+        }
+        if (ttlSeconds.isEmpty()) {
+            return null;
+        }
+        return new UsosApiServices(apiUrl, Map.copyOf(ttlSeconds));
+    }
+    
+    private static int parseTtl(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * How long answers of the method are cached
+     *
+     * @return the TTL in seconds, or -1 if the method is not allowed
+     */
+    public int ttlSeconds(String method) {
+        return ttlSeconds.getOrDefault(method, -1);
+    }
+    
+    /**
+     * Builds the call to an allowed method relative to the API root, with the query parameters sorted by name and
+     * percent-encoded
+     */
+    public String call(String method, Map<String, List<String>> query) {
+        StringBuilder call = new StringBuilder(method);
+        char separator = '?';
+        for (Map.Entry<String, List<String>> parameter : new TreeMap<>(query).entrySet()) {
+            String name = UsosOAuthSigner.percentEncode(parameter.getKey());
+            for (String value : parameter.getValue()) {
+                call.append(separator).append(name).append('=').append(UsosOAuthSigner.percentEncode(value));
+                separator = '&';
+            }
+        }
+        return call.toString();
+    }
+    
+    /**
+     * The absolute URL of a call built by {@link #call(String, Map)}
+     */
+    public String url(String call) {
+        return apiUrl + call;
+    }
+}
@@ -0,0 +1,247 @@
+package pl.edu.solvro.keycloak.usos;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled mapping from USOS profile fields to Keycloak user attributes.
+ * <p>
+ * The mapping is declared as {@code attribute=path} entries, where a path names a profile field and, separated by
+ * dots, the fields nested in it, such as {@code faculties.id}. Arrays along a path are walked through, so one
+ * attribute can collect several values. Compiling merges the paths into a tree that yields both the USOS
+ * {@code fields} selector requesting exactly what is mapped and the plan the profile reader follows while it
+ * streams the response, so a login neither walks a JSON tree nor looks anything up by reflection.
+ */
+public final class UsosAttributeMapping {
+    
+    /**
+     * The mapping used when none is configured: the three status fields under their USOS names
+     */
+    public static final String DEFAULT_SPEC = "student_number=student_number\nstaff_status=staff_status\n"
+            + "student_status=student_status";
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosAttributeMapping.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Pattern ENTRY_SEPARATOR = Pattern.compile("[\\n,;]");
+    private static final Pattern ATTRIBUTE = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final Pattern PATH = Pattern.compile("[a-z0-9_]+(\\.[a-z0-9_]+)*");
+    private static final int[] NO_ATTRIBUTES = new int[0];
+    
+    public static final UsosAttributeMapping DEFAULT = compile(DEFAULT_SPEC);
+    
+    private final List<String> attributeNames;
+    private final Node root;
+    private final String fields;
+    
+    private UsosAttributeMapping(List<String> attributeNames, Node root, String fields) {
+        this.attributeNames = attributeNames;
+        this.root = root;
+        this.fields = fields;
+    }
+    
+    /**
+     * Compiles a mapping spec, falling back to {@link #DEFAULT_SPEC} when it is blank; malformed entries are
+     * skipped with a warning so a typo cannot break logins
+     */
+    public static UsosAttributeMapping compile(String spec) {
+        return compile(spec == null || spec.isBlank() ? DEFAULT_SPEC : spec, true);
+    }
+    
+    /**
+     * Compiles a mapping read from whole responses of other USOS API methods, where paths start at the response
+     * root and no profile fields are requested
+     */
+    static UsosAttributeMapping compileDocument(String spec) {
+        return compile(spec, false);
+    }
+    
+    private static UsosAttributeMapping compile(String spec, boolean profile) {
+        List<String> attributeNames = new ArrayList<>();
+        Node root = new Node();
+        if (profile) {
+            for (String field : UsosUserProfile.FIELDS.split("\\|")) {
+                root.child(field);
+            }
+        }
+        for (String entry : ENTRY_SEPARATOR.split(spec)) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            String attribute = separator < 0 ? "" : entry.substring(0, separator).trim();
+            String path = separator < 0 ? "" : entry.substring(separator + 1).trim();
+            if (!ATTRIBUTE.matcher(attribute).matches() || !PATH.matcher(path).matches()) {
+                LOGGER.warnf("Ignoring malformed USOS attribute mapping '%s'", entry);
+                continue;
+            }
+            int index = attributeNames.indexOf(attribute);
+            if (index < 0) {
+                index = attributeNames.size();
+                attributeNames.add(attribute);
+            }
+            Node node = root;
+            for (String field : path.split("\\.")) {
+                node = node.child(field);
+            }
+            node.addAttribute(index);
+        }
+        StringBuilder fields = new StringBuilder();
+        root.appendSelector(fields);
+        return new UsosAttributeMapping(List.copyOf(attributeNames), root.freeze(), fields.toString());
+    }
+    
+    /**
+     * Keycloak attributes the mapping writes, in the order they were declared
+     */
+    public List<String> attributeNames() {
+        return attributeNames;
+    }
+    
+    /**
+     * USOS {@code fields} selector for the profile fields the provider reads and the fields the mapping needs
+     */
+    public String fields() {
+        return fields;
+    }
+    
+    /**
+     * Reads what a {@link #compileDocument(String) document mapping} takes from a whole response, whether its root
+     * is an object or an array
+     */
+    Map<String, List<String>> readDocument(InputStream json) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            Values values = new Values();
+            root.read(parser, parser.nextToken(), values);
+            return values.toMap();
+        }
+    }
+    
+    /**
+     * Starts collecting the mapped values of one profile
+     */
+    Values newValues() {
+        return new Values();
+    }
+    
+    /**
+     * Values of one profile as the reader streams it, gathered per attribute
+     */
+    final class Values {
+        
+        private final List<List<String>> values = new ArrayList<>(Collections.nCopies(attributeNames.size(), null));
+        
+        /**
+         * Collects what the mapping takes from the value of a top-level profile field, which the parser is
+         * positioned on, and skips past the value
+         */
+        void read(String field, JsonParser parser) throws IOException {
+            Node node = root.children.get(field);
+            if (node == null) {
+                parser.skipChildren();
+            } else {
+                node.read(parser, parser.currentToken(), this);
+            }
+        }
+        
+        private void add(int attribute, String value) {
+            List<String> attributeValues = values.get(attribute);
+            if (attributeValues == null) {
+                attributeValues = new ArrayList<>(1);
+                values.set(attribute, attributeValues);
+            }
+            if (!attributeValues.contains(value)) {
+                attributeValues.add(value);
+            }
+        }
+        
+        /**
+         * The collected values by attribute name, leaving out attributes the profile had no value for
+         */
+        Map<String, List<String>> toMap() {
+            Map<String, List<String>> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) != null) {
+                    attributes.put(attributeNames.get(i), List.copyOf(values.get(i)));
+                }
+            }
+            return attributes;
+        }
+    }
+    
+    /**
+     * One field in the tree of mapped paths, with the attributes its scalar values go to
+     */
+    private static final class Node {
+        
+        private Map<String, Node> children = new LinkedHashMap<>();
+        private int[] attributes = NO_ATTRIBUTES;
+        
+        Node child(String field) {
+            return children.computeIfAbsent(field, name -> new Node());
+        }
+        
+        void addAttribute(int attribute) {
+            int[] extended = Arrays.copyOf(attributes, attributes.length + 1);
+            extended[attributes.length] = attribute;
+            attributes = extended;
+        }
+        
+        void appendSelector(StringBuilder selector) {
+            boolean first = true;
+            for (Map.Entry<String, Node> child : children.entrySet()) {
+                if (!first) {
+                    selector.append('|');
+                }
+                first = false;
+                selector.append(child.getKey());
+                if (!child.getValue().children.isEmpty()) {
+                    selector.append('[');
+                    child.getValue().appendSelector(selector);
+                    selector.append(']');
+                }
+            }
+        }
+        
+        Node freeze() {
+            children.values().forEach(Node::freeze);
+            children = Map.copyOf(children);
+            return this;
+        }
+        
+        void read(JsonParser parser, JsonToken token, Values values) throws IOException {
+            if (token == JsonToken.START_ARRAY) {
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    read(parser, element, values);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    Node child = children.get(parser.currentName());
+                    JsonToken value = parser.nextToken();
+                    if (child == null) {
+                        parser.skipChildren();
+                    } else {
+                        child.read(parser, value, values);
+                    }
+                }
+            } else if (token != JsonToken.VALUE_NULL) {
+                for (int attribute : attributes) {
+                    values.add(attribute, parser.getText());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded buffer of login audit events, written to a sink in batches by a background flusher.
+ * <p>
+ * Logins only enqueue, which never blocks or takes a lock; when the sink falls behind and the buffer is full, new
+ * events are dropped and counted instead of slowing logins down.
+ */
+public final class UsosAuditQueue implements Closeable {
+    
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosAuditQueue.class);
+    
+    private final Queue<UsosLoginEvent> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final UsosAuditSink sink;
+    private final int capacity;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    
+    public UsosAuditQueue(UsosAuditSink sink, int capacity, int batchSize, long flushIntervalMillis) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "usos-audit-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Enqueues the event for the next flush
+     *
+     * @return false if the buffer was full and the event was dropped
+     */
+    public boolean offer(UsosLoginEvent event) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        events.offer(event);
+        return true;
+    }
+    
+    /**
+     * Writes everything buffered so far to the sink, a batch at a time; a batch the sink fails on is dropped
+     */
+    synchronized void flush() {
+        List<UsosLoginEvent> batch = new ArrayList<>(batchSize);
+        while (true) {
+            UsosLoginEvent event;
+            while (batch.size() < batchSize && (event = events.poll()) != null) {
+                batch.add(event);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            size.addAndGet(-batch.size());
+            try {
+                sink.write(batch);
+                written.add(batch.size());
+            } catch (RuntimeException e) {
+                dropped.add(batch.size());
+                LOGGER.warnf(e, "Dropped %d USOS login audit events the sink failed to write", batch.size());
+            }
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+    
+    public long getWritten() {
+        return written.sum();
+    }
+    
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    /**
+     * Stops the flusher and writes what is still buffered
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,147 @@
+package pl.edu.solvro.keycloak.usos;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventStoreProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Phase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Destination the audit queue flushes batches of login events to, off the login path.
+ * <p>
+ * A sink may be slow, since only the flusher thread waits for it; an exception drops the batch.
+ */
+@FunctionalInterface
+public interface UsosAuditSink {
+    
+    /**
+     * Detail marking the events {@link #eventStore(KeycloakSessionFactory)} stores, apart from the identity provider
+     * logins Keycloak records itself
+     */
+    String AUDIT_DETAIL = "usos_audit";
+    
+    void write(List<UsosLoginEvent> events);
+    
+    /**
+     * Writes each event as one line of JSON to the {@code pl.edu.solvro.keycloak.usos.audit} log category
+     */
+    static UsosAuditSink log() {
+        Logger logger = Logger.getLogger("pl.edu.solvro.keycloak.usos.audit");
+        JsonFactory json = new JsonFactory();
+        return events -> {
+            for (UsosLoginEvent event : events) {
+                logger.info(toJson(json, event));
+            }
+        };
+    }
+    
+    /**
+     * Stores each event in Keycloak's event store as an identity provider login marked with {@link #AUDIT_DETAIL},
+     * in one transaction per batch. Like Keycloak's own events, an event is only stored if its realm saves events of
+     * its type.
+     */
+    static UsosAuditSink eventStore(KeycloakSessionFactory sessionFactory) {
+        return events -> KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EventStoreProvider store = session.getProvider(EventStoreProvider.class);
+            if (store == null) {
+                return;
+            }
+            Map<String, Set<String>> savedTypes = new HashMap<>();
+            for (UsosLoginEvent event : events) {
+                Event stored = toEvent(event);
+                if (savedTypes.computeIfAbsent(event.realmId(), id -> savedTypes(session, id))
+                        .contains(stored.getType().name())) {
+                    store.onEvent(stored);
+                }
+            }
+        });
+    }
+    
+    /**
+     * The event types the realm saves: those enabled for it, or else those saved by default; none if the realm does
+     * not save events
+     */
+    private static Set<String> savedTypes(KeycloakSession session, String realmId) {
+        RealmModel realm = realmId == null ? null : session.realms().getRealm(realmId);
+        if (realm == null || !realm.isEventsEnabled()) {
+            return Set.of();
+        }
+        Set<String> enabled = realm.getEnabledEventTypesStream().collect(Collectors.toSet());
+        if (!enabled.isEmpty()) {
+            return enabled;
+        }
+        return Arrays.stream(EventType.values())
+                .filter(EventType::isSaveByDefault)
+                .map(EventType::name)
+                .collect(Collectors.toSet());
+    }
+    
+    private static Event toEvent(UsosLoginEvent event) {
+        Event stored = new Event();
+        stored.setId(KeycloakModelUtils.generateId());
+        stored.setTime(event.timeMillis());
+        stored.setRealmId(event.realmId());
+        stored.setType(event.isSuccess() ? EventType.IDENTITY_PROVIDER_LOGIN : EventType.IDENTITY_PROVIDER_LOGIN_ERROR);
+        Map<String, String> details = new HashMap<>();
+        details.put(AUDIT_DETAIL, "true");
+        details.put("identity_provider", event.alias());
+        if (event.usosUserId() != null) {
+            details.put("usos_user_id", event.usosUserId());
+        }
+        if (!event.isSuccess()) {
+            stored.setError("usos_" + event.cause().name().toLowerCase(Locale.ROOT));
+            if (event.errorClass() != null) {
+                details.put("error_class", event.errorClass());
+            }
+        }
+        for (Phase phase : Phase.values()) {
+            if (event.phaseNanos()[phase.ordinal()] > 0) {
+                details.put(phase.name().toLowerCase(Locale.ROOT) + "_ms", Long.toString(event.phaseMillis(phase)));
+            }
+        }
+        stored.setDetails(details);
+        return stored;
+    }
+    
+    private static String toJson(JsonFactory json, UsosLoginEvent event) {
+        StringWriter out = new StringWriter(256);
+        try (JsonGenerator generator = json.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField("time", event.timeMillis());
+            generator.writeStringField("realmId", event.realmId());
+            generator.writeStringField("idp", event.alias());
+            generator.writeStringField("usosUserId", event.usosUserId());
+            generator.writeStringField("outcome", event.isSuccess() ? "success" : "failure");
+            if (!event.isSuccess()) {
+                generator.writeStringField("cause", event.cause().name().toLowerCase(Locale.ROOT));
+                generator.writeStringField("errorClass", event.errorClass());
+            }
+            generator.writeObjectFieldStart("phaseMillis");
+            for (Phase phase : Phase.values()) {
+                generator.writeNumberField(phase.name().toLowerCase(Locale.ROOT), event.phaseMillis(phase));
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.models.SingleUseObjectProvider;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+
+import javax.crypto.SecretKey;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cluster-wide single flight for the callbacks of one request token.
+ * <p>
+ * Refreshes, double clicks and proxy retries replay the callback, and USOS rejects a verifier it has already
+ * exchanged. The first callback claims the token in Keycloak's single-use object store and records the outcome of
+ * its exchange there; duplicates on any node wait for that outcome and reuse the profile it fetched instead of
+ * calling USOS again. Only a duplicate carrying the same verifier may reuse it.
+ * <p>
+ * The store is replicated across the cluster, so the access token, its secret and the profile are kept there sealed
+ * with a realm AES key and bound to the provider and the verifier; only a node holding the key and a callback
+ * carrying the verifier can open them.
+ */
+final class UsosCallbackFlight {
+    
+    static final String KEY_PREFIX = "usos-callback:";
+    static final long POLL_MILLIS = 50;
+    
+    private static final String STATE = "state";
+    private static final String PENDING = "pending";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+    private static final String VERIFIER = "verifier";
+    private static final String SEALED = "sealed";
+    private static final String ERROR = "error";
+    
+    private final SingleUseObjectProvider store;
+    private final String key;
+    private final String verifier;
+    private final String binding;
+    private final long windowSeconds;
+    
+    /**
+     * @param binding the identity provider the outcome is sealed for, as for {@link UsosCallbackState}
+     */
+    UsosCallbackFlight(SingleUseObjectProvider store, String providerId, String oauthToken, String oauthVerifier,
+            String binding, long windowSeconds) {
+        this.store = store;
+        this.key = KEY_PREFIX + providerId + ":" + oauthToken;
+        this.verifier = hash(oauthVerifier);
+        this.binding = binding + "|" + oauthVerifier;
+        this.windowSeconds = windowSeconds;
+    }
+    
+    /**
+     * What the first callback ended with; exactly one of the profile, in its cached form, and the error is set
+     */
+    record Outcome(AccessToken accessToken, String profile, String error) {
+    }
+    
+    /**
+     * Claims the exchange for this callback
+     *
+     * @return whether this is the first callback for the token, which must then complete or fail the flight
+     */
+    boolean claim() {
+        if (!store.putIfAbsent(key, windowSeconds)) {
+            return false;
+        }
+        store.put(key, windowSeconds, Map.of(STATE, PENDING, VERIFIER, verifier));
+        return true;
+    }
+    
+    /**
+     * Records the exchange's outcome, sealed with the key
+     */
+    void complete(AccessToken accessToken, String profile, String kid, SecretKey sealingKey)
+            throws GeneralSecurityException {
+        byte[] token = accessToken.token().getBytes(StandardCharsets.UTF_8);
+        byte[] secret = accessToken.tokenSecret().getBytes(StandardCharsets.UTF_8);
+        byte[] profileBytes = profile.getBytes(StandardCharsets.UTF_8);
+        byte[] plaintext = ByteBuffer.allocate(2 * Integer.BYTES + token.length + secret.length + profileBytes.length)
+                .putInt(token.length)
+                .put(token)
+                .putInt(secret.length)
+                .put(secret)
+                .put(profileBytes)
+                .array();
+        store.put(key, windowSeconds, Map.of(STATE, DONE, VERIFIER, verifier,
+                SEALED, UsosSeal.seal(plaintext, kid, sealingKey, binding)));
+    }
+    
+    void fail(String error) {
+        store.put(key, windowSeconds, Map.of(STATE, FAILED, VERIFIER, verifier, ERROR, error));
+    }
+    
+    /**
+     * Waits for the first callback to finish
+     *
+     * @param keys looks up the AES key the outcome was sealed with by its id, returning null for an unknown one
+     * @return its outcome, or null if it did not finish within the wait or its sealed outcome cannot be opened
+     * @throws IllegalStateException if the first callback carried a different verifier
+     */
+    Outcome await(long waitMillis, Function<String, SecretKey> keys) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            Map<String, String> flight = store.get(key);
+            String state = flight == null ? null : flight.get(STATE);
+            if (state != null && !verifier.equals(flight.get(VERIFIER))) {
+                throw new IllegalStateException("OAuth verifier does not match the first callback");
+            }
+            if (DONE.equals(state)) {
+                return open(flight.get(SEALED), keys);
+            }
+            if (FAILED.equals(state)) {
+                return new Outcome(null, null, flight.get(ERROR));
+            }
+            if (flight == null || System.nanoTime() - deadline >= 0) {
+                // Gone with the window, or still running past the wait
+                return null;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+    
+    private Outcome open(String sealed, Function<String, SecretKey> keys) {
+        byte[] opened = sealed == null ? null : UsosSeal.open(sealed, keys, binding);
+        if (opened == null) {
+            return null;
+        }
+        try {
+            ByteBuffer plaintext = ByteBuffer.wrap(opened);
+            byte[] token = new byte[plaintext.getInt()];
+            plaintext.get(token);
+            byte[] secret = new byte[plaintext.getInt()];
+            plaintext.get(secret);
+            byte[] profile = new byte[plaintext.remaining()];
+            plaintext.get(profile);
+            return new Outcome(new AccessToken(new String(token, StandardCharsets.UTF_8),
+                    new String(secret, StandardCharsets.UTF_8)), new String(profile, StandardCharsets.UTF_8), null);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+    
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package pl.edu.solvro.keycloak.usos;
+
+import javax.crypto.SecretKey;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.function.Function;
+
+/**
+ * A login's request token and secret, sealed with a realm AES key so the browser can carry them to the callback in
+ * place of auth-session notes.
+ * <p>
+ * The sealed form is AES-GCM encrypted and bound to one identity provider, so it cannot be read, altered or
+ * replayed against another provider. It names the key it was sealed with, which keeps it valid across a key
+ * rotation for as long as the old key is kept.
+ */
+public record UsosCallbackState(String requestToken, String requestTokenSecret, long issuedAtSeconds) {
+    
+    /**
+     * Prefix of the cookie carrying the sealed state, completed by a digest of the request token
+     */
+    public static final String COOKIE_PREFIX = "USOS_RT_";
+    
+    private static final int COOKIE_DIGEST_LENGTH = 16;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    
+    /**
+     * Name of the cookie for a request token, so logins running side by side in one browser keep their own
+     */
+    public static String cookieName(String requestToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(requestToken.getBytes(StandardCharsets.UTF_8));
+            return COOKIE_PREFIX + ENCODER.encodeToString(digest).substring(0, COOKIE_DIGEST_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Encrypts the state with the key, binding it to the given identity provider
+     */
+    public String seal(String kid, SecretKey key, String binding) throws GeneralSecurityException {
+        byte[] token = requestToken.getBytes(StandardCharsets.UTF_8);
+        byte[] secret = requestTokenSecret.getBytes(StandardCharsets.UTF_8);
+        if (token.length > Short.MAX_VALUE) {
+            throw new GeneralSecurityException("Request token is too long to seal");
+        }
+        byte[] plaintext = ByteBuffer.allocate(Long.BYTES + Short.BYTES + token.length + secret.length)
+                .putLong(issuedAtSeconds)
+                .putShort((short) token.length)
+                .put(token)
+                .put(secret)
+                .array();
+        return UsosSeal.seal(plaintext, kid, key, binding);
+    }
+    
+    /**
+     * Decrypts a sealed state
+     *
+     * @param keys    looks up the AES key by its id, returning null for an unknown one
+     * @param binding the identity provider the state must have been sealed for
+     * @return the state, or null if it is malformed, was sealed for another provider or with an unknown key, or has
+     *         been altered
+     */
+    public static UsosCallbackState open(String sealed, Function<String, SecretKey> keys, String binding) {
+        byte[] opened = UsosSeal.open(sealed, keys, binding);
+        if (opened == null) {
+            return null;
+        }
+        try {
+            ByteBuffer plaintext = ByteBuffer.wrap(opened);
+            long issuedAt = plaintext.getLong();
+            byte[] token = new byte[plaintext.getShort()];
+            plaintext.get(token);
+            byte[] secret = new byte[plaintext.remaining()];
+            plaintext.get(secret);
+            return new UsosCallbackState(new String(token, StandardCharsets.UTF_8),
+                    new String(secret, StandardCharsets.UTF_8), issuedAt);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Count-based circuit breaker for the calls to one USOS installation.
+ * <p>
+ * While closed it tracks the outcome of the last {@code windowSize} calls and opens once, after at least
+ * {@code minimumCalls}, the share of failed or of slow calls reaches its threshold. While open every call is
+ * refused. After {@code openMillis} it lets {@code halfOpenCalls} probes through: any failed or slow probe opens it
+ * again, and once all of them succeed it closes with a fresh window.
+ */
+public final class UsosCircuitBreaker {
+    
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+    public static final int DEFAULT_SLOW_CALL_DURATION_MILLIS = 5000;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final int DEFAULT_OPEN_MILLIS = 30000;
+    public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+    
+    /**
+     * Circuit breaker states
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+    
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final LongSupplier nanoClock;
+    
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int nextCall;
+    private int recordedCalls;
+    private int failureCount;
+    private int slowCount;
+    
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int permittedProbes;
+    private int succeededProbes;
+    
+    /**
+     * @param failureRateThreshold  percentage of failed calls in the window that opens the circuit
+     * @param slowCallRateThreshold percentage of calls slower than slowCallDurationMillis that opens the circuit
+     */
+    public UsosCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, int slowCallDurationMillis,
+            int windowSize, int minimumCalls, int openMillis, int halfOpenCalls) {
+        this(failureRateThreshold, slowCallRateThreshold, slowCallDurationMillis, windowSize, minimumCalls,
+                openMillis, halfOpenCalls, System::nanoTime);
+    }
+    
+    UsosCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, int slowCallDurationMillis,
+            int windowSize, int minimumCalls, int openMillis, int halfOpenCalls, LongSupplier nanoClock) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMillis);
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = halfOpenCalls;
+        this.nanoClock = nanoClock;
+        this.failedCalls = new boolean[windowSize];
+        this.slowCalls = new boolean[windowSize];
+    }
+    
+    /**
+     * Creates a circuit breaker with the default thresholds
+     */
+    public static UsosCircuitBreaker withDefaults() {
+        return new UsosCircuitBreaker(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_RATE_THRESHOLD,
+                DEFAULT_SLOW_CALL_DURATION_MILLIS, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_OPEN_MILLIS,
+                DEFAULT_HALF_OPEN_CALLS);
+    }
+    
+    /**
+     * Asks to make a call; every permitted call must be followed by {@link #onResult(boolean, long)}
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (nanoClock.getAsLong() - openedAt < openNanos) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            permittedProbes = 0;
+            succeededProbes = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (permittedProbes >= halfOpenCalls) {
+                return false;
+            }
+            permittedProbes++;
+        }
+        return true;
+    }
+    
+    /**
+     * Records the outcome of a permitted call
+     */
+    public synchronized void onResult(boolean failed, long durationNanos) {
+        boolean slow = durationNanos >= slowCallDurationNanos;
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open();
+            } else if (++succeededProbes >= halfOpenCalls) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // A call that started before the circuit opened has nothing more to tell
+            return;
+        }
+        if (recordedCalls == failedCalls.length) {
+            failureCount -= failedCalls[nextCall] ? 1 : 0;
+            slowCount -= slowCalls[nextCall] ? 1 : 0;
+        } else {
+            recordedCalls++;
+        }
+        failedCalls[nextCall] = failed;
+        slowCalls[nextCall] = slow;
+        failureCount += failed ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        nextCall = (nextCall + 1) % failedCalls.length;
+        if (recordedCalls >= minimumCalls && (failureCount * 100 >= failureRateThreshold * recordedCalls
+                || slowCount * 100 >= slowCallRateThreshold * recordedCalls)) {
+            open();
+        }
+    }
+    
+    public synchronized State getState() {
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+    
+    /**
+     * Time until an open circuit lets probes through, or zero when it is not open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (nanoClock.getAsLong() - openedAt)));
+    }
+    
+    private void open() {
+        state = State.OPEN;
+        openedAt = nanoClock.getAsLong();
+    }
+    
+    private void close() {
+        state = State.CLOSED;
+        nextCall = 0;
+        recordedCalls = 0;
+        failureCount = 0;
+        slowCount = 0;
+    }
+}
@@ -0,0 +1,256 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Extra signed USOS API calls a login makes after the access-token exchange, for fields the user profile does not
+ * carry, such as programmes or photos.
+ * <p>
+ * Calls are declared as {@code attribute=method#path} entries: the attribute gets the values the
+ * {@link UsosAttributeMapping} path selects from the method's response. Each method is called once, concurrently
+ * with the user-info request and the other methods, so enrichment costs the slowest call rather than the sum of
+ * them. Calls that fail or have not answered by the deadline are dropped, and the attributes they feed are left as
+ * they are on the user.
+ * <p>
+ * Calls run on a bounded executor the provider factory owns. A call dropped at the deadline keeps its thread until
+ * the transport's own deadline aborts it, as cancelling cannot interrupt a blocked socket read; calls that find
+ * the executor full fail at once.
+ */
+public final class UsosEnrichment {
+    
+    public static final int DEFAULT_TIMEOUT_MILLIS = 3000;
+    public static final int DEFAULT_THREADS = 32;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    
+    /**
+     * Context data key listing the enrichment attributes a login resolved, the only ones it may write or remove
+     */
+    static final String RESOLVED_ATTRIBUTES = "usos.enrichment.resolved";
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosEnrichment.class);
+    private static final Pattern ENTRY_SEPARATOR = Pattern.compile("[\\n;]");
+    private static final Pattern METHOD = Pattern.compile("services/[a-z0-9_]+(/[a-z0-9_]+)+(\\?\\S*)?");
+    
+    private final List<Call> calls;
+    private final long timeoutNanos;
+    private final ExecutorService executor;
+    
+    private UsosEnrichment(List<Call> calls, long timeoutNanos, ExecutorService executor) {
+        this.calls = calls;
+        this.timeoutNanos = timeoutNanos;
+        this.executor = executor;
+    }
+    
+    /**
+     * Creates the executor enrichment calls run on, with a fixed number of threads that stop when idle and a bounded
+     * queue of calls waiting for one
+     */
+    public static ExecutorService newExecutor(int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "usos-enrichment-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /**
+     * One USOS API method and the attributes read from its response
+     */
+    record Call(String url, UsosAttributeMapping mapping) {
+    }
+    
+    /**
+     * Values of the attributes whose calls all answered in time, and the names of those attributes, including ones
+     * the answers had no value for
+     */
+    public record Result(Map<String, List<String>> attributes, List<String> attributeNames) {
+    }
+    
+    /**
+     * Compiles the provider's enrichment calls, to run on the given executor
+     *
+     * @return the enrichment, or null if none are configured or there is no executor to run them on
+     */
+    public static UsosEnrichment compile(UsosIdentityProviderConfig config, ExecutorService executor) {
+        String spec = config.getEnrichmentCalls();
+        if (spec == null || spec.isBlank()) {
+            return null;
+        }
+        if (executor == null) {
+            LOGGER.warnf("Ignoring USOS enrichment calls of %s, which has no executor to run them on",
+                    config.getAlias());
+            return null;
+        }
+        String apiUrl = config.getApiUrl();
+        if (apiUrl == null) {
+            LOGGER.warnf("Ignoring USOS enrichment calls of %s, whose user info URL is not a USOS API URL",
+                    config.getAlias());
+            return null;
+        }
+        return compile(spec, apiUrl, config.getEnrichmentTimeoutMillis(), executor);
+    }
+    
+    static UsosEnrichment compile(String spec, String apiUrl, int timeoutMillis, ExecutorService executor) {
+        Map<String, StringBuilder> pathsByMethod = new LinkedHashMap<>();
+        for (String entry : ENTRY_SEPARATOR.split(spec)) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int hash = entry.lastIndexOf('#');
+            String method = equals < 0 || hash < equals ? "" : entry.substring(equals + 1, hash).trim();
+            if (!METHOD.matcher(method).matches()) {
+                LOGGER.warnf("Ignoring malformed USOS enrichment call '%s'", entry);
+                continue;
+            }
+            pathsByMethod.computeIfAbsent(method, key -> new StringBuilder())
+                    .append(entry, 0, equals).append('=').append(entry, hash + 1, entry.length()).append('\n');
+        }
+        List<Call> calls = new ArrayList<>(pathsByMethod.size());
+        for (Map.Entry<String, StringBuilder> method : pathsByMethod.entrySet()) {
+            UsosAttributeMapping mapping = UsosAttributeMapping.compileDocument(method.getValue().toString());
+            if (!mapping.attributeNames().isEmpty()) {
+                calls.add(new Call(apiUrl + encodeQuery(method.getKey()), mapping));
+            }
+        }
+        if (calls.isEmpty()) {
+            return null;
+        }
+        return new UsosEnrichment(List.copyOf(calls), TimeUnit.MILLISECONDS.toNanos(timeoutMillis), executor);
+    }
+    
+    /**
+     * Encodes the query values, which the spec gives unencoded so selectors like {@code programme[id|name]} stay
+     * readable
+     */
+    private static String encodeQuery(String method) {
+        int query = method.indexOf('?');
+        if (query < 0) {
+            return method;
+        }
+        StringBuilder url = new StringBuilder(method.length() + 16).append(method, 0, query + 1);
+        String separator = "";
+        for (String parameter : method.substring(query + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            url.append(separator);
+            separator = "&";
+            if (equals < 0) {
+                url.append(UsosOAuthSigner.percentEncode(parameter));
+            } else {
+                url.append(UsosOAuthSigner.percentEncode(parameter.substring(0, equals))).append('=')
+                        .append(UsosOAuthSigner.percentEncode(parameter.substring(equals + 1)));
+            }
+        }
+        return url.toString();
+    }
+    
+    List<Call> getCalls() {
+        return calls;
+    }
+    
+    /**
+     * Sends every call signed with the user's access token, without waiting for the answers
+     */
+    public Pending start(UsosOAuthClient client, AccessToken accessToken) {
+        List<Future<Map<String, List<String>>>> answers = new ArrayList<>(calls.size());
+        for (Call call : calls) {
+            try {
+                answers.add(executor.submit(() -> client.get(call.url(), accessToken,
+                        call.mapping()::readDocument, UsosOAuthClient.DEFAULT_MAX_RESPONSE_BYTES)));
+            } catch (RejectedExecutionException e) {
+                answers.add(CompletableFuture.failedFuture(
+                        new IllegalStateException("too many enrichment calls in flight", e)));
+            }
+        }
+        return new Pending(answers, System.nanoTime() + timeoutNanos);
+    }
+    
+    /**
+     * Calls of one login in flight
+     */
+    public final class Pending {
+        
+        private final List<Future<Map<String, List<String>>>> answers;
+        private final long deadline;
+        
+        private Pending(List<Future<Map<String, List<String>>>> answers, long deadline) {
+            this.answers = answers;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Waits for the calls until the deadline, dropping those still running then
+         */
+        public Result await() {
+            Map<String, List<String>> attributes = new LinkedHashMap<>();
+            Set<String> resolved = new LinkedHashSet<>();
+            Set<String> unresolved = new HashSet<>();
+            boolean interrupted = false;
+            for (int i = 0; i < answers.size(); i++) {
+                Call call = calls.get(i);
+                Future<Map<String, List<String>>> answer = answers.get(i);
+                try {
+                    Map<String, List<String>> values = answer.get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS);
+                    values.forEach((name, value) -> attributes.merge(name, value,
+                            (first, second) -> Stream.concat(first.stream(), second.stream()).distinct().toList()));
+                    resolved.addAll(call.mapping().attributeNames());
+                    continue;
+                } catch (TimeoutException e) {
+                    // A queued call never starts; a running one is ended by the transport's deadline
+                    answer.cancel(false);
+                    LOGGER.warnf("USOS enrichment call %s did not answer in time", call.url());
+                } catch (ExecutionException e) {
+                    LOGGER.warnf("USOS enrichment call %s failed: %s", call.url(), e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    // Give up on the rest but still let the login go on with what has answered
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    interrupted = true;
+                }
+                unresolved.addAll(call.mapping().attributeNames());
+                if (interrupted) {
+                    calls.subList(i, calls.size()).forEach(rest -> unresolved.addAll(rest.mapping().attributeNames()));
+                    break;
+                }
+            }
+            // An attribute fed by several calls is only resolved when all of them answered
+            resolved.removeAll(unresolved);
+            attributes.keySet().removeAll(unresolved);
+            return new Result(attributes, List.copyOf(resolved));
+        }
+        
+        /**
+         * Abandons the calls, as when the login fails before they are needed
+         */
+        public void cancel() {
+            answers.forEach(answer -> answer.cancel(false));
+        }
+    }
+}
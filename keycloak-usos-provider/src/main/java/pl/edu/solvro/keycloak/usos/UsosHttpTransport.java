@@ -0,0 +1,272 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive, connection-pooled HTTP transport shared by all OAuth legs against a single USOS installation.
+ * <p>
+ * Calls can be guarded by a circuit breaker and a bulkhead capping calls in flight, both of which refuse a call
+ * with {@link UsosUnavailableException} before any connection is made.
+ */
+public final class UsosHttpTransport implements Closeable {
+    
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+    public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_TOTAL_TIMEOUT_MILLIS = 15000;
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 100;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosHttpTransport.class);
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledThreadPoolExecutor deadlineScheduler;
+    private final int connectTimeoutMillis;
+    private final int idleConnectionTimeoutSeconds;
+    private final int totalTimeoutMillis;
+    private final UsosCircuitBreaker circuitBreaker;
+    private final Semaphore concurrentCalls;
+    private final int maxConcurrentCalls;
+    
+    /**
+     * Creates a transport whose calls are neither guarded by a circuit breaker nor limited in number
+     */
+    public UsosHttpTransport(int maxConnectionsPerRoute, int maxConnectionsTotal, int idleConnectionTimeoutSeconds,
+            int connectTimeoutMillis, int readTimeoutMillis, int totalTimeoutMillis) {
+        this(maxConnectionsPerRoute, maxConnectionsTotal, idleConnectionTimeoutSeconds, connectTimeoutMillis,
+                readTimeoutMillis, totalTimeoutMillis, null, 0);
+    }
+    
+    /**
+     * @param circuitBreaker     breaker for this installation's calls, or null for none
+     * @param maxConcurrentCalls calls allowed in flight at once, including those waiting for a connection, or zero
+     *                           for no limit
+     */
+    public UsosHttpTransport(int maxConnectionsPerRoute, int maxConnectionsTotal, int idleConnectionTimeoutSeconds,
+            int connectTimeoutMillis, int readTimeoutMillis, int totalTimeoutMillis, UsosCircuitBreaker circuitBreaker,
+            int maxConcurrentCalls) {
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        this.connectionManager.setMaxTotal(maxConnectionsTotal);
+        this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+        
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleConnectionTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+        
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idleConnectionTimeoutSeconds = idleConnectionTimeoutSeconds;
+        this.totalTimeoutMillis = totalTimeoutMillis;
+        this.deadlineScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "usos-http-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deadlineScheduler.setRemoveOnCancelPolicy(true);
+        this.circuitBreaker = circuitBreaker;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.concurrentCalls = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+    }
+    
+    /**
+     * Creates a transport with the default pool limits, circuit breaker and bulkhead
+     */
+    public static UsosHttpTransport withDefaults() {
+        return new UsosHttpTransport(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_TOTAL,
+                DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+                DEFAULT_TOTAL_TIMEOUT_MILLIS, UsosCircuitBreaker.withDefaults(), DEFAULT_MAX_CONCURRENT_CALLS);
+    }
+    
+    /**
+     * Executes the request and hands the response to the handler, aborting the exchange once the overall
+     * deadline passes so a slow USOS cannot hold the calling worker thread beyond it
+     *
+     * @throws UsosUnavailableException if the circuit breaker is open or the bulkhead is full
+     */
+    public <T> T execute(HttpRequestBase request, ResponseHandler<? extends T> handler) throws IOException {
+        if (concurrentCalls != null && !concurrentCalls.tryAcquire()) {
+            throw new UsosUnavailableException("Too many concurrent calls to USOS at " + origin(request.getURI())
+                    + ", the limit is " + maxConcurrentCalls);
+        }
+        try {
+            return circuitBreaker == null ? executeWithDeadline(request, handler)
+                    : executeWithCircuitBreaker(request, handler);
+        } finally {
+            if (concurrentCalls != null) {
+                concurrentCalls.release();
+            }
+        }
+    }
+    
+    private <T> T executeWithCircuitBreaker(HttpRequestBase request, ResponseHandler<? extends T> handler)
+            throws IOException {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw new UsosUnavailableException("Circuit breaker for USOS at " + origin(request.getURI())
+                    + " is open after repeated failures, next attempt in "
+                    + circuitBreaker.getRemainingOpenMillis() + " ms");
+        }
+        long start = System.nanoTime();
+        int[] status = {-1};
+        boolean unanswered = false;
+        try {
+            return executeWithDeadline(request, response -> {
+                status[0] = response.getStatusLine().getStatusCode();
+                return handler.handleResponse(response);
+            });
+        } catch (IOException e) {
+            // Errors USOS answered with a 4xx status, or a body the handler rejected, say nothing about its health
+            unanswered = status[0] < 0 || UsosTimeoutException.isTimeout(e);
+            throw e;
+        } finally {
+            circuitBreaker.onResult(unanswered || status[0] >= 500, System.nanoTime() - start);
+        }
+    }
+    
+    private <T> T executeWithDeadline(HttpRequestBase request, ResponseHandler<? extends T> handler)
+            throws IOException {
+        ScheduledFuture<?> deadline = deadlineScheduler.schedule(request::abort, totalTimeoutMillis,
+                TimeUnit.MILLISECONDS);
+        try {
+            return httpClient.execute(request, handler);
+        } catch (IOException e) {
+            // abort() flags the request before closing its connection, so this also covers the in-flight read
+            if (request.isAborted()) {
+                UsosTimeoutException timeout = new UsosTimeoutException("USOS request to " + request.getURI()
+                        + " exceeded the " + totalTimeoutMillis + " ms deadline");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            throw e;
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+    
+    /**
+     * Opens connections to the origin of the URL ahead of the first call and leaves them idle in the pool, so that
+     * call finds the host resolved and the TLS handshake done. Connections already idle in the pool count towards
+     * the number.
+     *
+     * @return the number of connections now idle for the origin
+     */
+    public int preconnect(URI url, int connections) throws IOException {
+        String scheme = url.getScheme() == null ? "https" : url.getScheme();
+        boolean secure = "https".equalsIgnoreCase(scheme);
+        int port = url.getPort() > 0 ? url.getPort() : secure ? 443 : 80;
+        // Must equal the route the client plans for a request to this origin, or the connections are never reused
+        HttpRoute route = new HttpRoute(new HttpHost(url.getHost(), port, scheme), null, secure);
+        int count = Math.min(connections, connectionManager.getMaxPerRoute(route));
+        
+        List<HttpClientConnection> leased = new ArrayList<>(count);
+        try {
+            HttpClientContext context = HttpClientContext.create();
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                        .get(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+                leased.add(connection);
+                if (!connection.isOpen()) {
+                    connectionManager.connect(connection, route, connectTimeoutMillis, context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + origin(url), e);
+        } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+            throw new IOException("No pooled connection to " + origin(url) + " became available", e);
+        } finally {
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, idleConnectionTimeoutSeconds,
+                        TimeUnit.SECONDS);
+            }
+        }
+        return connectionManager.getStats(route).getAvailable();
+    }
+    
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+    
+    public int getMaxConnectionsPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+    
+    public int getMaxConnectionsTotal() {
+        return connectionManager.getMaxTotal();
+    }
+    
+    public int getTotalTimeoutMillis() {
+        return totalTimeoutMillis;
+    }
+    
+    public UsosCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+    
+    /**
+     * Calls currently holding a bulkhead slot, or zero when calls are not limited in number
+     */
+    public int getCallsInFlight() {
+        return concurrentCalls == null ? 0 : maxConcurrentCalls - concurrentCalls.availablePermits();
+    }
+    
+    /**
+     * Leased, idle and waiting connection counts across all routes of the pool
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+    
+    private static String origin(URI uri) {
+        return uri.getScheme() + "://" + uri.getRawAuthority();
+    }
+    
+    @Override
+    public void close() {
+        deadlineScheduler.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close USOS HTTP transport", e);
+        }
+    }
+}
@@ -1,37 +1,44 @@
 package pl.edu.solvro.keycloak.usos;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import oauth.signpost.OAuthConsumer;
-import oauth.signpost.OAuthProvider;
-import oauth.signpost.basic.DefaultOAuthConsumer;
-import oauth.signpost.basic.DefaultOAuthProvider;
-import oauth.signpost.exception.OAuthException;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProvider;
 import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.http.HttpResponse;
 import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.userprofile.config.UPAttribute;
+import org.keycloak.representations.userprofile.config.UPAttributePermissions;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.userprofile.UserProfileProvider;
+import org.keycloak.userprofile.config.UPConfigUtils;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Cause;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Phase;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+import pl.edu.solvro.keycloak.usos.UsosRequestTokenPool.RequestToken;
 
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.Cookie;
 import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.NewCookie;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriInfo;
 import java.io.IOException;
 import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,12 +47,44 @@ import java.util.Map;
 public class UsosIdentityProvider extends AbstractIdentityProvider<UsosIdentityProviderConfig> {
     
     private static final Logger LOGGER = Logger.getLogger(UsosIdentityProvider.class);
+    private static final String STUDENT_NUMBER_ATTRIBUTE = "student_number";
     private static final String REQUEST_TOKEN_SESSION_KEY = "USOS_REQUEST_TOKEN";
     private static final String REQUEST_TOKEN_SECRET_SESSION_KEY = "USOS_REQUEST_TOKEN_SECRET";
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String STATE_MAPPING_KEY_PREFIX = "usos-request-token-state:";
+    private static final String STATE_MAPPING_NOTE = "state";
+    private static final long STATE_MAPPING_LIFESPAN_SECONDS = 1800;
+    private static final long CALLBACK_STATE_LIFESPAN_SECONDS = 1800;
+    private static final String FLIGHT_NOT_SHARED =
+            "This login was already completed in another request, please start it again";
+    
+    private final UsosIdentityProviderSnapshot snapshot;
+    private final UsosOAuthClient client;
     
     public UsosIdentityProvider(KeycloakSession session, UsosIdentityProviderConfig config) {
-        super(session, config);
+        this(session, config, DefaultTransportHolder.INSTANCE);
+    }
+    
+    public UsosIdentityProvider(KeycloakSession session, UsosIdentityProviderConfig config,
+            UsosHttpTransport transport) {
+        this(session, config, transport, null);
+    }
+    
+    public UsosIdentityProvider(KeycloakSession session, UsosIdentityProviderConfig config,
+            UsosHttpTransport transport, UsosRequestTokenPools requestTokenPools) {
+        this(session, UsosIdentityProviderSnapshot.builder(config, transport,
+                        new UsosOAuthSigner(config.getConsumerKey(), config.getConsumerSecret()))
+                .requestTokenPools(requestTokenPools)
+                .build());
+    }
+    
+    public UsosIdentityProvider(KeycloakSession session, UsosIdentityProviderSnapshot snapshot) {
+        super(session, snapshot.getConfig());
+        this.snapshot = snapshot;
+        this.client = snapshot.getClient();
+    }
+    
+    UsosHttpTransport getTransport() {
+        return client.getTransport();
     }
     
     @Override
@@ -55,58 +94,183 @@ public class UsosIdentityProvider extends AbstractIdentityProvider<UsosIdentityP
     
     @Override
     public Response performLogin(AuthenticationRequest request) {
+        UsosLoginMetrics metrics = snapshot.getMetrics();
+        long start = System.nanoTime();
         try {
             // Step 1: Get request token
-            OAuthConsumer consumer = new DefaultOAuthConsumer(
-                getConfig().getConsumerKey(), 
-                getConfig().getConsumerSecret()
-            );
-            
-            OAuthProvider provider = new DefaultOAuthProvider(
-                getConfig().getRequestTokenUrl(),
-                getConfig().getAccessTokenUrl(),
-                getConfig().getAuthorizationUrl()
-            );
+            RequestToken requestToken;
+            if (snapshot.isRequestTokenPrefetchEnabled()) {
+                // Prefetched tokens carry a fixed callback URL, so the state is tracked per token instead
+                requestToken = takePrefetchedRequestToken(request.getRedirectUri());
+                session.singleUseObjects().put(STATE_MAPPING_KEY_PREFIX + requestToken.token(),
+                        STATE_MAPPING_LIFESPAN_SECONDS, Map.of(STATE_MAPPING_NOTE, request.getState().getEncoded()));
+            } else {
+                String callbackUrl = request.getRedirectUri() + "?state=" 
+                        + request.getState().getEncoded();
+                requestToken = client.fetchRequestToken(callbackUrl);
+            }
             
-            String callbackUrl = request.getRedirectUri() + "?state=" 
-                    + request.getState().getEncoded();
-            String authUrl = provider.retrieveRequestToken(consumer, callbackUrl);
+            Response.ResponseBuilder redirect = Response.seeOther(URI.create(requestToken.authorizationUrl()));
+            if (snapshot.isStatelessCallbackEnabled()) {
+                // The browser carries the sealed request token, so the session stays free of it
+                return redirect.cookie(callbackStateCookie(request, requestToken)).build();
+            }
             
             // Store request token in session
             request.getAuthenticationSession().setClientNote(REQUEST_TOKEN_SESSION_KEY, 
-                    consumer.getToken());
+                    requestToken.token());
             request.getAuthenticationSession().setClientNote(REQUEST_TOKEN_SECRET_SESSION_KEY, 
-                    consumer.getTokenSecret());
+                    requestToken.tokenSecret());
             
-            return Response.seeOther(URI.create(authUrl)).build();
+            return redirect.build();
             
-        } catch (OAuthException e) {
+        } catch (IOException e) {
+            metrics.failure(UsosLoginMetrics.causeOf(e));
+            if (UsosTimeoutException.isTimeout(e)) {
+                throw new IdentityBrokerException("Timed out retrieving request token from USOS", e);
+            }
+            if (UsosUnavailableException.isUnavailable(e)) {
+                throw new IdentityBrokerException("USOS is temporarily unavailable: " + e.getMessage(), e);
+            }
             throw new IdentityBrokerException("Failed to retrieve request token from USOS", e);
+        } finally {
+            metrics.recordPhase(Phase.REQUEST_TOKEN, start);
         }
     }
     
     @Override
     public Response retrieveToken(KeycloakSession session, FederatedIdentityModel identity) {
-        return Response.ok(identity.getToken()).build();
+        // The secret stays in Keycloak; without the consumer secret it is of no use to the caller anyway
+        AccessToken accessToken = AccessToken.fromStoredToken(identity.getToken());
+        return Response.ok(accessToken == null ? identity.getToken() : accessToken.token()).build();
     }
     
     @Override
     public void preprocessFederatedIdentity(KeycloakSession session, RealmModel realm, 
             BrokeredIdentityContext context) {
-        // Implementation for pre-processing if needed
+        UsosAccountLinking linking = snapshot.getAccountLinking();
+        if (linking == UsosAccountLinking.OFF) {
+            return;
+        }
+        String alias = getConfig().getAlias();
+        FederatedIdentityModel link = new FederatedIdentityModel(alias, context.getId(), context.getUsername());
+        if (session.users().getUserByFederatedIdentity(realm, link) != null) {
+            return;
+        }
+        if (!isLinkingKeyTrusted(session, realm, linking)) {
+            LOGGER.warnf("Not linking USOS user %s by %s: users of realm %s can set that value themselves",
+                    context.getId(), linking, realm.getName());
+            return;
+        }
+        Object key = linking == UsosAccountLinking.ID ? context.getId()
+                : firstValue(context.getContextData().get(STUDENT_NUMBER_ATTRIBUTE));
+        if (key == null || key.toString().isEmpty()) {
+            return;
+        }
+        UsosAccountLinkMisses misses = snapshot.getAccountLinkMisses();
+        if (misses.contains(key.toString())) {
+            return;
+        }
+        
+        // Linking here, before Keycloak looks the link up, lets the login continue as the existing account
+        UserModel user = findAccount(session, realm, linking, key.toString());
+        // An account already linked to any identity provider has an owner who can log in another way
+        if (user == null || user.getServiceAccountClientLink() != null
+                || session.users().getFederatedIdentitiesStream(realm, user).findAny().isPresent()) {
+            misses.add(key.toString());
+            return;
+        }
+        session.users().addFederatedIdentity(realm, user, link);
+        LOGGER.debugf("Linked USOS user %s to existing account %s by %s", context.getId(), user.getUsername(),
+                linking);
+    }
+    
+    /**
+     * Whether users cannot set the value linking matches on, so they cannot claim someone else's USOS login: for
+     * {@link UsosAccountLinking#ID} they cannot choose their username, and for
+     * {@link UsosAccountLinking#STUDENT_NUMBER} the realm's user profile declares the attribute and only lets
+     * administrators edit it
+     */
+    private static boolean isLinkingKeyTrusted(KeycloakSession session, RealmModel realm, UsosAccountLinking linking) {
+        if (linking == UsosAccountLinking.ID) {
+            return !realm.isEditUsernameAllowed()
+                    && (!realm.isRegistrationAllowed() || realm.isRegistrationEmailAsUsername());
+        }
+        UserProfileProvider profiles = session.getProvider(UserProfileProvider.class);
+        UPAttribute attribute = profiles == null ? null
+                : profiles.getConfiguration().getAttribute(STUDENT_NUMBER_ATTRIBUTE);
+        if (attribute == null) {
+            // Unmanaged attributes may be editable by users, depending on the realm's policy
+            return false;
+        }
+        UPAttributePermissions permissions = attribute.getPermissions();
+        return permissions == null || permissions.getEdit() == null
+                || !permissions.getEdit().contains(UPConfigUtils.ROLE_USER);
+    }
+    
+    /**
+     * Looks the account up through an indexed column: the unique username, or the attribute name and value
+     */
+    private static UserModel findAccount(KeycloakSession session, RealmModel realm, UsosAccountLinking linking,
+            String key) {
+        if (linking == UsosAccountLinking.ID) {
+            return session.users().getUserByUsername(realm, key);
+        }
+        List<UserModel> matches = session.users()
+                .searchForUserByUserAttributeStream(realm, STUDENT_NUMBER_ATTRIBUTE, key)
+                .limit(2)
+                .toList();
+        // A student number shared by two accounts cannot say which one is meant
+        return matches.size() == 1 ? matches.get(0) : null;
+    }
+    
+    @Override
+    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user,
+            BrokeredIdentityContext context) {
+        applyAttributes(user, context.getContextData(), attributeNames(context));
+    }
+    
+    @Override
+    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user,
+            BrokeredIdentityContext context) {
+        // Like Keycloak's own mappers, later logins only overwrite what an admin or the user may have edited in FORCE
+        if (getConfig().getSyncMode() == IdentityProviderSyncMode.FORCE) {
+            applyAttributes(user, context.getContextData(), attributeNames(context));
+        }
+    }
+    
+    /**
+     * The mapped attributes and the enrichment attributes the login resolved, which are the ones it may write
+     */
+    private List<String> attributeNames(BrokeredIdentityContext context) {
+        List<String> names = snapshot.getAttributeMapping().attributeNames();
+        if (context.getContextData().get(UsosEnrichment.RESOLVED_ATTRIBUTES) instanceof List<?> enriched
+                && !enriched.isEmpty()) {
+            List<String> all = new ArrayList<>(names);
+            enriched.forEach(name -> all.add(name.toString()));
+            return all;
+        }
+        return names;
     }
     
     protected class Endpoint {
         protected AuthenticationCallback callback;
         protected RealmModel realm;
         protected EventBuilder event;
-
+        
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private String usosUserId;
+        /**
+         * Whether the callback's outcome has been counted and audited, so a later exception does not count it twice
+         */
+        private boolean outcomeRecorded;
+        
         @Context
         protected KeycloakSession session;
-
+        
         @Context
         protected HttpHeaders headers;
-
+        
         @Context
         protected UriInfo uriInfo;
         
@@ -120,99 +284,438 @@ public class UsosIdentityProvider extends AbstractIdentityProvider<UsosIdentityP
         public Response authResponse(@QueryParam("oauth_token") String oauthToken,
                                    @QueryParam("oauth_verifier") String oauthVerifier,
                                    @QueryParam("state") String state) {
+            UsosLoginMetrics metrics = snapshot.getMetrics();
+            Phase phase = null;
+            long phaseStart = 0;
+            UsosEnrichment.Pending enrichmentCalls = null;
+            UsosCallbackFlight flight = null;
             try {
                 if (oauthVerifier == null || oauthToken == null) {
                     LOGGER.error("Missing oauth_verifier or oauth_token parameters");
+                    failed(metrics, Cause.MISSING_PARAMETERS);
                     return callback.error("Missing OAuth parameters");
                 }
                 
-                // Retrieve request token from session
-                String requestToken = session.getContext().getAuthenticationSession()
-                    .getClientNote(REQUEST_TOKEN_SESSION_KEY);
-                String requestTokenSecret = session.getContext().getAuthenticationSession()
-                    .getClientNote(REQUEST_TOKEN_SECRET_SESSION_KEY);
+                expireCallbackStateCookie(oauthToken);
+                
+                // Retrieve request token from the sealed callback state, or else from session
+                AuthenticationSessionModel authSession = resolveAuthenticationSession(oauthToken, state);
+                UsosCallbackState callbackState = snapshot.isStatelessCallbackEnabled()
+                    ? openCallbackState(oauthToken) : null;
+                String requestToken;
+                String requestTokenSecret;
+                if (callbackState != null) {
+                    requestToken = callbackState.requestToken();
+                    requestTokenSecret = callbackState.requestTokenSecret();
+                } else {
+                    requestToken = authSession == null ? null
+                        : authSession.getClientNote(REQUEST_TOKEN_SESSION_KEY);
+                    requestTokenSecret = authSession == null ? null
+                        : authSession.getClientNote(REQUEST_TOKEN_SECRET_SESSION_KEY);
+                }
                 
-                if (requestToken == null || requestTokenSecret == null) {
+                if (authSession == null || requestToken == null || requestTokenSecret == null) {
                     LOGGER.error("Request token not found in session");
+                    failed(metrics, Cause.SESSION_NOT_FOUND);
                     return callback.error("Request token not found in session");
                 }
+                if (!requestToken.equals(oauthToken)) {
+                    LOGGER.error("Callback oauth_token does not match the request token in session");
+                    failed(metrics, Cause.TOKEN_MISMATCH);
+                    return callback.error("Request token mismatch");
+                }
                 
-                // Step 2: Exchange request token for access token
-                OAuthConsumer consumer = new DefaultOAuthConsumer(
-                    getConfig().getConsumerKey(), 
-                    getConfig().getConsumerSecret()
-                );
-                consumer.setTokenWithSecret(requestToken, requestTokenSecret);
+                // A replayed callback must not exchange the verifier again, so it waits for the first one instead
+                if (snapshot.isCallbackDeduplicationEnabled()) {
+                    UsosCallbackFlight claim = new UsosCallbackFlight(session.singleUseObjects(),
+                        getConfig().getInternalId(), oauthToken, oauthVerifier, snapshot.getCallbackStateBinding(),
+                        snapshot.getCallbackDeduplicationWindowSeconds());
+                    if (!claim.claim()) {
+                        return replayFirstCallback(claim, authSession, metrics);
+                    }
+                    flight = claim;
+                }
                 
-                OAuthProvider provider = new DefaultOAuthProvider(
-                    getConfig().getRequestTokenUrl(),
-                    getConfig().getAccessTokenUrl(),
-                    getConfig().getAuthorizationUrl()
-                );
+                // Step 2: Exchange request token for access token
+                phase = Phase.ACCESS_TOKEN;
+                phaseStart = System.nanoTime();
+                AccessToken accessToken = client.fetchAccessToken(requestToken, requestTokenSecret, oauthVerifier);
+                recordPhase(metrics, phase, phaseStart);
                 
-                provider.retrieveAccessToken(consumer, oauthVerifier);
+                // Enrichment calls run alongside the user-info request, so they add the slowest call's latency
+                UsosEnrichment enrichment = snapshot.getEnrichment();
+                enrichmentCalls = enrichment == null ? null : enrichment.start(client, accessToken);
                 
                 // Step 3: Get user info
-                String userInfoUrl = getConfig().getUserInfoUrl() + "?format=json";
-                String userInfo = makeAuthenticatedRequest(userInfoUrl, consumer);
+                phase = Phase.USER_INFO;
+                phaseStart = System.nanoTime();
+                UsosUserProfile profile = client.fetchUserProfile(accessToken);
+                usosUserId = profile.id();
+                recordPhase(metrics, phase, phaseStart);
+                
+                UsosEnrichment.Result enriched = null;
+                if (enrichmentCalls != null) {
+                    phase = Phase.ENRICHMENT;
+                    phaseStart = System.nanoTime();
+                    enriched = enrichmentCalls.await();
+                    recordPhase(metrics, phase, phaseStart);
+                }
                 
-                // Parse user info and create identity context
-                BrokeredIdentityContext identity = parseUserInfo(userInfo, consumer.getToken());
+                // Create identity context from the profile
+                phase = Phase.PROFILE;
+                phaseStart = System.nanoTime();
+                BrokeredIdentityContext identity = toIdentity(profile, accessToken);
                 identity.setIdp(UsosIdentityProvider.this);
+                identity.setAuthenticationSession(authSession);
+                if (enriched != null) {
+                    putAttributes(identity.getContextData(), enriched.attributes());
+                    identity.getContextData().put(UsosEnrichment.RESOLVED_ATTRIBUTES,
+                        new ArrayList<>(enriched.attributeNames()));
+                }
+                
+                // The profile sync reads the cached profile, so it need not fetch it again
+                UsosUserInfoCache userInfoCache = snapshot.getUserInfoCache();
+                String profileJson = userInfoCache != null || flight != null ? profile.toJson() : null;
+                if (userInfoCache != null) {
+                    userInfoCache.put(snapshot.getInstallation(), profile.id(), profileJson,
+                        snapshot.getUserInfoCacheTtlSeconds());
+                }
+                if (flight != null) {
+                    publish(flight, accessToken, profileJson);
+                }
+                recordPhase(metrics, phase, phaseStart);
+                phase = null;
                 
+                succeeded(metrics);
                 return callback.authenticated(identity);
                 
             } catch (Exception e) {
-                LOGGER.error("Error processing OAuth callback", e);
-                return callback.error("Authentication failed: " + e.getMessage());
+                if (enrichmentCalls != null) {
+                    enrichmentCalls.cancel();
+                }
+                if (phase != null) {
+                    recordPhase(metrics, phase, phaseStart);
+                }
+                if (!outcomeRecorded) {
+                    metrics.failure(UsosLoginMetrics.causeOf(e));
+                }
+                audit(UsosLoginMetrics.causeOf(e), e.getClass().getName());
+                String error;
+                if (UsosTimeoutException.isTimeout(e)) {
+                    LOGGER.warn("USOS did not respond in time during OAuth callback", e);
+                    error = "USOS did not respond in time, please try again";
+                } else if (UsosUnavailableException.isUnavailable(e)) {
+                    LOGGER.warnf("USOS call refused during OAuth callback: %s", e.getMessage());
+                    error = "USOS is temporarily unavailable, please try again later";
+                } else {
+                    LOGGER.error("Error processing OAuth callback", e);
+                    error = "Authentication failed: " + e.getMessage();
+                }
+                if (flight != null) {
+                    flight.fail(error);
+                }
+                return callback.error(error);
             }
         }
-    }
-    
-    private String makeAuthenticatedRequest(String url, OAuthConsumer consumer) throws IOException, OAuthException {
-        HttpGet request = new HttpGet(url);
-        consumer.sign(request);
         
-        try (CloseableHttpClient httpClient = HttpClients.createDefault();
-             CloseableHttpResponse response = httpClient.execute(request)) {
+        /**
+         * Shares the exchange's outcome with callbacks replaying the request token. The login itself goes on even if
+         * this fails; the replays are then told to start over rather than left waiting.
+         */
+        private void publish(UsosCallbackFlight flight, AccessToken accessToken, String profileJson) {
+            try {
+                KeyManager.ActiveAesKey key = session.keys().getActiveAesKey(realm);
+                if (key != null && key.getSecretKey() != null) {
+                    flight.complete(accessToken, profileJson, key.getKid(), key.getSecretKey());
+                    return;
+                }
+                LOGGER.warn("Realm has no active AES key, so replayed OAuth callbacks cannot reuse the exchange");
+            } catch (GeneralSecurityException | RuntimeException e) {
+                LOGGER.warnf("Could not share the USOS exchange with replayed OAuth callbacks: %s", e.getMessage());
+            }
+            try {
+                flight.fail(FLIGHT_NOT_SHARED);
+            } catch (RuntimeException e) {
+                LOGGER.debugf("Could not release replayed OAuth callbacks: %s", e.getMessage());
+            }
+        }
+        
+        /**
+         * Answers a callback replaying a request token whose exchange another callback claimed, with the outcome of
+         * that exchange
+         */
+        private Response replayFirstCallback(UsosCallbackFlight flight, AuthenticationSessionModel authSession,
+                UsosLoginMetrics metrics) throws IOException {
+            UsosCallbackFlight.Outcome outcome;
+            try {
+                KeyManager keys = session.keys();
+                outcome = flight.await(snapshot.getCallbackDeduplicationWaitMillis(),
+                        kid -> keys.getAesSecretKey(realm, kid));
+            } catch (IllegalStateException e) {
+                LOGGER.warn("Replayed OAuth callback carries a different oauth_verifier than the first");
+                failed(metrics, Cause.TOKEN_MISMATCH);
+                return callback.error("Request token mismatch");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome = null;
+            }
+            if (outcome == null) {
+                failed(metrics, Cause.DUPLICATE_CALLBACK);
+                return callback.error("This login is still being processed, please try again");
+            }
+            if (outcome.error() != null) {
+                // The first callback's own event carries why the exchange failed
+                audit(Cause.DUPLICATE_CALLBACK, null);
+                return callback.error(outcome.error());
+            }
+            LOGGER.debug("Replayed OAuth callback reuses the USOS exchange of the first");
+            UsosUserProfile profile = UsosUserProfile.read(outcome.profile(), snapshot.getAttributeMapping());
+            usosUserId = profile.id();
+            BrokeredIdentityContext identity = toIdentity(profile, outcome.accessToken());
+            identity.setIdp(UsosIdentityProvider.this);
+            identity.setAuthenticationSession(authSession);
+            audit(null, null);
+            return callback.authenticated(identity);
+        }
+        
+        private void recordPhase(UsosLoginMetrics metrics, Phase phase, long startNanos) {
+            phaseNanos[phase.ordinal()] = metrics.recordPhase(phase, startNanos);
+        }
+        
+        private void succeeded(UsosLoginMetrics metrics) {
+            metrics.success();
+            audit(null, null);
+        }
+        
+        private void failed(UsosLoginMetrics metrics, Cause cause) {
+            metrics.failure(cause);
+            audit(cause, null);
+        }
+        
+        /**
+         * Hands the callback's audit event to the queue, once per callback; a full queue drops it rather than wait
+         */
+        private void audit(Cause cause, String errorClass) {
+            if (outcomeRecorded) {
+                return;
+            }
+            outcomeRecorded = true;
+            UsosAuditQueue audit = snapshot.getAudit();
+            if (audit == null) {
+                return;
+            }
+            audit.offer(new UsosLoginEvent(System.currentTimeMillis(), snapshot.getRealmId(), getConfig().getAlias(),
+                    usosUserId, cause, errorClass, phaseNanos));
+        }
+        
+        private AuthenticationSessionModel resolveAuthenticationSession(String oauthToken, String state) {
+            String effectiveState = state;
+            if (effectiveState == null) {
+                effectiveState = takeStateMapping(oauthToken);
+            }
             
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity, "UTF-8");
+            AuthenticationSessionModel authSession = session.getContext().getAuthenticationSession();
+            if (authSession != null || effectiveState == null) {
+                return authSession;
+            }
+            authSession = callback.getAndVerifyAuthenticationSession(effectiveState);
+            if (authSession != null) {
+                session.getContext().setAuthenticationSession(authSession);
+            }
+            return authSession;
+        }
+        
+        /**
+         * Reads the state a prefetched request token was handed out for. The mapping is single use, except with
+         * callback deduplication, where repeats of the callback need it to reach the first one's outcome: it is then
+         * kept for the deduplication window
+         */
+        private String takeStateMapping(String oauthToken) {
+            String key = STATE_MAPPING_KEY_PREFIX + oauthToken;
+            if (!snapshot.isCallbackDeduplicationEnabled()) {
+                Map<String, String> mapping = session.singleUseObjects().remove(key);
+                return mapping == null ? null : mapping.get(STATE_MAPPING_NOTE);
+            }
+            Map<String, String> mapping = session.singleUseObjects().get(key);
+            if (mapping == null) {
+                return null;
+            }
+            session.singleUseObjects().put(key, snapshot.getCallbackDeduplicationWindowSeconds(), mapping);
+            return mapping.get(STATE_MAPPING_NOTE);
+        }
+        
+        /**
+         * Tells the browser to drop the callback state cookie of the request token, whatever the callback ends with,
+         * so retried logins do not pile up sealed cookies
+         */
+        private void expireCallbackStateCookie(String oauthToken) {
+            String name = UsosCallbackState.cookieName(oauthToken);
+            KeycloakContext context = session.getContext();
+            HttpResponse response = context == null ? null : context.getHttpResponse();
+            if (response == null || headers == null || !headers.getCookies().containsKey(name)) {
+                return;
+            }
+            URI callbackUri = context.getUri().getRequestUri();
+            response.setCookieIfAbsent(new NewCookie.Builder(name)
+                    .value("")
+                    .path(callbackUri.getRawPath())
+                    .maxAge(0)
+                    .secure("https".equalsIgnoreCase(callbackUri.getScheme()))
+                    .httpOnly(true)
+                    .sameSite(NewCookie.SameSite.LAX)
+                    .build());
+        }
+        
+        /**
+         * Opens the state sealed for this callback's request token, or returns null if it is missing, invalid or
+         * expired
+         */
+        private UsosCallbackState openCallbackState(String oauthToken) {
+            Cookie cookie = headers == null ? null
+                : headers.getCookies().get(UsosCallbackState.cookieName(oauthToken));
+            if (cookie == null) {
+                return null;
+            }
+            KeyManager keys = session.keys();
+            UsosCallbackState callbackState = UsosCallbackState.open(cookie.getValue(),
+                    kid -> keys.getAesSecretKey(realm, kid), snapshot.getCallbackStateBinding());
+            if (callbackState == null || !callbackState.requestToken().equals(oauthToken)
+                    || System.currentTimeMillis() / 1000 - callbackState.issuedAtSeconds()
+                        > CALLBACK_STATE_LIFESPAN_SECONDS) {
+                LOGGER.warn("Ignoring invalid or expired USOS callback state");
+                return null;
             }
-            throw new IOException("Empty response from USOS API");
+            return callbackState;
         }
     }
     
-    private BrokeredIdentityContext parseUserInfo(String userInfoJson, String accessToken) {
+    private NewCookie callbackStateCookie(AuthenticationRequest request, RequestToken requestToken) {
+        KeyManager.ActiveAesKey key = session.keys().getActiveAesKey(request.getRealm());
+        if (key == null) {
+            throw new IdentityBrokerException("Stateless callback needs an active AES key in the realm");
+        }
+        String sealed;
         try {
-            JsonNode userNode = OBJECT_MAPPER.readTree(userInfoJson);
-            
-            BrokeredIdentityContext identity = new BrokeredIdentityContext(userNode.get("id").asText(), 
-                    getConfig().getModel());
-            identity.setUsername(userNode.get("id").asText());
-            identity.setEmail(userNode.path("email").asText());
-            identity.setFirstName(userNode.path("first_name").asText());
-            identity.setLastName(userNode.path("last_name").asText());
-            identity.setToken(accessToken);
-            
-            // Set additional user attributes
-            Map<String, Object> attributes = new HashMap<>();
-            if (userNode.has("student_number")) {
-                attributes.put("student_number", userNode.get("student_number").asText());
-            }
-            if (userNode.has("staff_status")) {
-                attributes.put("staff_status", userNode.get("staff_status").asText());
+            sealed = new UsosCallbackState(requestToken.token(), requestToken.tokenSecret(),
+                    System.currentTimeMillis() / 1000)
+                    .seal(key.getKid(), key.getSecretKey(), snapshot.getCallbackStateBinding());
+        } catch (GeneralSecurityException e) {
+            throw new IdentityBrokerException("Failed to seal USOS callback state", e);
+        }
+        URI redirectUri = URI.create(request.getRedirectUri());
+        return new NewCookie.Builder(UsosCallbackState.cookieName(requestToken.token()))
+                .value(sealed)
+                .path(redirectUri.getRawPath())
+                .maxAge((int) CALLBACK_STATE_LIFESPAN_SECONDS)
+                .secure("https".equalsIgnoreCase(redirectUri.getScheme()))
+                .httpOnly(true)
+                .sameSite(NewCookie.SameSite.LAX)
+                .build();
+    }
+    
+    private RequestToken takePrefetchedRequestToken(String callbackUrl) throws IOException {
+        UsosOAuthClient oauthClient = client;
+        UsosRequestTokenPool pool = snapshot.getRequestTokenPools().pool(
+                snapshot.getRequestTokenPoolKeyPrefix() + callbackUrl, snapshot.getRequestTokenPoolSize(),
+                snapshot.getRequestTokenRefillPerSecond(), snapshot.getRequestTokenTtlSeconds(),
+                () -> oauthClient.fetchRequestToken(callbackUrl));
+        
+        RequestToken requestToken = pool.poll();
+        if (requestToken != null) {
+            return requestToken;
+        }
+        // Pool is still warming up or was drained by a burst
+        return oauthClient.fetchRequestToken(callbackUrl);
+    }
+    
+    private BrokeredIdentityContext toIdentity(UsosUserProfile profile, AccessToken accessToken) {
+        // The secret is only kept where the API proxy signs calls with it
+        String storedToken = snapshot.getApiServices() == null ? accessToken.token() : accessToken.toStoredToken();
+        return toIdentity(profile, storedToken, getConfig().getModel());
+    }
+    
+    /**
+     * Maps a USOS profile to the brokered identity Keycloak creates or updates the user from
+     *
+     * @param storedToken the token Keycloak stores on the federated identity, or null for none
+     */
+    static BrokeredIdentityContext toIdentity(UsosUserProfile profile, String storedToken,
+            IdentityProviderModel model) {
+        BrokeredIdentityContext identity = new BrokeredIdentityContext(profile.id(), model);
+        identity.setUsername(profile.id());
+        identity.setEmail(profile.email() == null ? "" : profile.email());
+        identity.setFirstName(profile.firstName() == null ? "" : profile.firstName());
+        identity.setLastName(profile.lastName() == null ? "" : profile.lastName());
+        identity.setToken(storedToken);
+        
+        // Set additional user attributes
+        Map<String, Object> contextData = new HashMap<>();
+        putAttributes(contextData, profile.attributes());
+        identity.setContextData(contextData);
+        return identity;
+    }
+    
+    /**
+     * Adds attribute values to context data, keeping single values plain as mappers reading context data expect,
+     * and lists in a type first-broker-login can serialize with the context
+     */
+    private static void putAttributes(Map<String, Object> contextData, Map<String, List<String>> attributes) {
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            List<String> values = attribute.getValue();
+            contextData.put(attribute.getKey(), values.size() == 1 ? values.get(0) : new ArrayList<>(values));
+        }
+    }
+    
+    /**
+     * Stores the mapped USOS attributes of a login on the user, replacing values that changed and removing those
+     * USOS no longer returns
+     *
+     * @param attributes values by attribute name, each a single value or a list of them
+     * @param names the attributes the mapping writes
+     * @return whether any attribute was written
+     */
+    static boolean applyAttributes(UserModel user, Map<String, ?> attributes, List<String> names) {
+        boolean changed = false;
+        for (String name : names) {
+            Object value = attributes.get(name);
+            if (value instanceof List<?> list && list.size() != 1) {
+                List<String> values = list.stream().map(String::valueOf).toList();
+                if (values.isEmpty()) {
+                    changed |= removeAttribute(user, name);
+                } else if (!values.equals(user.getAttributeStream(name).toList())) {
+                    user.setAttribute(name, values);
+                    changed = true;
+                }
+                continue;
             }
-            if (userNode.has("student_status")) {
-                attributes.put("student_status", userNode.get("student_status").asText());
+            Object single = firstValue(value);
+            if (single == null) {
+                changed |= removeAttribute(user, name);
+            } else if (!single.toString().equals(user.getFirstAttribute(name))
+                    || user.getAttributeStream(name).count() > 1) {
+                user.setSingleAttribute(name, single.toString());
+                changed = true;
             }
-            
-            identity.setContextData(attributes);
-            return identity;
-            
-        } catch (Exception e) {
-            throw new IdentityBrokerException("Failed to parse user info from USOS", e);
         }
+        return changed;
+    }
+    
+    private static boolean removeAttribute(UserModel user, String name) {
+        if (user.getFirstAttribute(name) == null) {
+            return false;
+        }
+        user.removeAttribute(name);
+        return true;
+    }
+    
+    private static Object firstValue(Object value) {
+        if (value instanceof List<?> list) {
+            return list.isEmpty() ? null : list.get(0);
+        }
+        return value;
+    }
+    
+    private static final class DefaultTransportHolder {
+        private static final UsosHttpTransport INSTANCE = UsosHttpTransport.withDefaults();
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@ package pl.edu.solvro.keycloak.usos;
 import org.keycloak.broker.oidc.OIDCIdentityProviderConfig;
 import org.keycloak.models.IdentityProviderModel;
 
+import java.util.Locale;
+
 /**
  * Configuration for USOS Identity Provider
  */
@@ -47,6 +49,148 @@ public class UsosIdentityProviderConfig extends OIDCIdentityProviderConfig {
         setClientSecret(consumerSecret);
     }
     
+    public boolean isRequestTokenPrefetchEnabled() {
+        return Boolean.parseBoolean(getConfig().get("requestTokenPrefetch"));
+    }
+    
+    public void setRequestTokenPrefetchEnabled(boolean enabled) {
+        getConfig().put("requestTokenPrefetch", String.valueOf(enabled));
+    }
+    
+    public int getRequestTokenPoolSize() {
+        return getPositiveInt("requestTokenPoolSize", 20);
+    }
+    
+    public int getRequestTokenRefillPerSecond() {
+        return getPositiveInt("requestTokenRefillPerSecond", 5);
+    }
+    
+    public int getRequestTokenTtlSeconds() {
+        return getPositiveInt("requestTokenTtlSeconds", 300);
+    }
+    
+    /**
+     * Whether logins cache the user-info answer per USOS user, for the profile sync to use instead of calling USOS
+     */
+    public boolean isUserInfoCacheEnabled() {
+        return Boolean.parseBoolean(getConfig().get("userInfoCache"));
+    }
+    
+    public void setUserInfoCacheEnabled(boolean enabled) {
+        getConfig().put("userInfoCache", String.valueOf(enabled));
+    }
+    
+    public int getUserInfoCacheTtlSeconds() {
+        return getPositiveInt("userInfoCacheTtlSeconds", 300);
+    }
+    
+    public boolean isStatelessCallbackEnabled() {
+        return Boolean.parseBoolean(getConfig().get("statelessCallback"));
+    }
+    
+    public void setStatelessCallbackEnabled(boolean enabled) {
+        getConfig().put("statelessCallback", String.valueOf(enabled));
+    }
+    
+    /**
+     * How a first login is matched to an existing account. Linking only happens when users cannot set the matched
+     * value themselves: {@code id} needs a realm where users neither edit their username nor choose it at
+     * registration, and {@code student_number} needs the attribute declared in the realm's user profile and editable
+     * by administrators only. An account linked to any identity provider is never matched.
+     */
+    public UsosAccountLinking getAccountLinking() {
+        return UsosAccountLinking.parse(getConfig().get("accountLinking"));
+    }
+    
+    public void setAccountLinking(UsosAccountLinking linking) {
+        getConfig().put("accountLinking", linking.name().toLowerCase(Locale.ROOT));
+    }
+    
+    /**
+     * USOS attribute mapping entries, {@code attribute=path} separated by new lines, commas or semicolons; blank
+     * means {@link UsosAttributeMapping#DEFAULT_SPEC}
+     */
+    public String getAttributeMappings() {
+        return getConfig().get("attributeMappings");
+    }
+    
+    public void setAttributeMappings(String attributeMappings) {
+        getConfig().put("attributeMappings", attributeMappings);
+    }
+    
+    /**
+     * Whether callbacks replaying a request token reuse the first callback's exchange; off unless set to true, as the
+     * outcome is kept, sealed, in the cluster's single-use object store for the window
+     */
+    public boolean isCallbackDeduplicationEnabled() {
+        return Boolean.parseBoolean(getConfig().get("callbackDeduplication"));
+    }
+    
+    public void setCallbackDeduplicationEnabled(boolean enabled) {
+        getConfig().put("callbackDeduplication", String.valueOf(enabled));
+    }
+    
+    public int getCallbackDeduplicationWindowSeconds() {
+        return getPositiveInt("callbackDeduplicationWindowSeconds", 60);
+    }
+    
+    public int getCallbackDeduplicationWaitMillis() {
+        return getPositiveInt("callbackDeduplicationWaitMillis", 10000);
+    }
+    
+    /**
+     * USOS enrichment calls, {@code attribute=method#path} separated by new lines or semicolons; blank means none
+     */
+    public String getEnrichmentCalls() {
+        return getConfig().get("enrichmentCalls");
+    }
+    
+    public void setEnrichmentCalls(String enrichmentCalls) {
+        getConfig().put("enrichmentCalls", enrichmentCalls);
+    }
+    
+    public int getEnrichmentTimeoutMillis() {
+        return getPositiveInt("enrichmentTimeoutMillis", UsosEnrichment.DEFAULT_TIMEOUT_MILLIS);
+    }
+    
+    /**
+     * Attempts per USOS call including the first; 1 turns retries off
+     */
+    public int getRetryMaxAttempts() {
+        return getPositiveInt("retryMaxAttempts", UsosRetryPolicy.DEFAULT_MAX_ATTEMPTS);
+    }
+    
+    public void setRetryMaxAttempts(int maxAttempts) {
+        getConfig().put("retryMaxAttempts", String.valueOf(maxAttempts));
+    }
+    
+    public int getRetryBudgetMillis() {
+        return getPositiveInt("retryBudgetMillis", UsosRetryPolicy.DEFAULT_BUDGET_MILLIS);
+    }
+    
+    /**
+     * USOS API methods the API proxy may call for users, {@code method} or {@code method=ttlSeconds} separated by new
+     * lines or semicolons; blank turns the proxy off for this provider
+     */
+    public String getApiProxyServices() {
+        return getConfig().get("apiProxyServices");
+    }
+    
+    public void setApiProxyServices(String services) {
+        getConfig().put("apiProxyServices", services);
+    }
+    
+    /**
+     * How long the API proxy caches answers of methods listed without their own TTL
+     */
+    public int getApiProxyTtlSeconds() {
+        return getPositiveInt("apiProxyTtlSeconds", UsosApiServices.DEFAULT_TTL_SECONDS);
+    }
+    
+    public int getAccountLinkMissTtlSeconds() {
+        return getPositiveInt("accountLinkMissTtlSeconds", UsosAccountLinkMisses.DEFAULT_TTL_SECONDS);
+    }
+    
     public String getRequestTokenUrl() {
         String baseUrl = getUsosBaseUrl();
         if (baseUrl != null && !baseUrl.isEmpty()) {
@@ -78,4 +222,35 @@ public class UsosIdentityProviderConfig extends OIDCIdentityProviderConfig {
         }
         return getConfig().get("userInfoUrl");
     }
+    
+    public String getUsersUrl() {
+        String baseUrl = getUsosBaseUrl();
+        if (baseUrl != null && !baseUrl.isEmpty()) {
+            return baseUrl + "/services/users/users";
+        }
+        return getConfig().get("usersUrl");
+    }
+    
+    /**
+     * Root of the USOS API that method names like {@code services/users/user} are appended to, or null if the user
+     * info URL is not a USOS API URL
+     */
+    public String getApiUrl() {
+        String userInfoUrl = getUserInfoUrl();
+        int services = userInfoUrl == null ? -1 : userInfoUrl.indexOf("/services/");
+        return services < 0 ? null : userInfoUrl.substring(0, services + 1);
+    }
+    
+    private int getPositiveInt(String key, int defaultValue) {
+        String value = getConfig().get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 }
\ No newline at end of file
@@ -1,11 +1,36 @@
 package pl.edu.solvro.keycloak.usos;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.broker.provider.IdentityProviderFactory;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.TimerProvider;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 /**
  * Factory for creating USOS Identity Provider instances
@@ -13,6 +38,57 @@ import java.util.Map;
 public class UsosIdentityProviderFactory implements IdentityProviderFactory<UsosIdentityProvider> {
     
     public static final String PROVIDER_ID = "usos";
+    public static final int DEFAULT_WARM_UP_CONNECTIONS = 2;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosIdentityProviderFactory.class);
+    private static final String WARM_UP_PROFILE = "{\"id\":\"0\",\"first_name\":\"Warm\",\"last_name\":\"Up\","
+            + "\"email\":\"warm.up@example.com\",\"student_number\":\"0\",\"staff_status\":0,"
+            + "\"student_status\":0}";
+    
+    private final Map<String, UsosInstallation> installations = new ConcurrentHashMap<>();
+    private final Map<String, UsosOAuthSigner> signers = new ConcurrentHashMap<>();
+    private final Map<String, UsosIdentityProviderSnapshot> snapshots = new ConcurrentHashMap<>();
+    private UsosRequestTokenPools requestTokenPools;
+    private volatile UsosUserInfoCache userInfoCache;
+    private long userInfoCacheMaxEntries = UsosUserInfoCache.DEFAULT_MAX_ENTRIES;
+    private volatile UsosApiCache apiCache;
+    private int enrichmentThreads = UsosEnrichment.DEFAULT_THREADS;
+    private int enrichmentQueueCapacity = UsosEnrichment.DEFAULT_QUEUE_CAPACITY;
+    private ExecutorService enrichmentExecutor;
+    private long apiCacheMaxEntries = UsosApiCache.DEFAULT_MAX_ENTRIES;
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+    
+    private int maxConnectionsPerRoute = UsosHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int maxConnectionsTotal = UsosHttpTransport.DEFAULT_MAX_CONNECTIONS_TOTAL;
+    private int idleConnectionTimeoutSeconds = UsosHttpTransport.DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS;
+    private int connectTimeoutMillis = UsosHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = UsosHttpTransport.DEFAULT_READ_TIMEOUT_MILLIS;
+    private int totalTimeoutMillis = UsosHttpTransport.DEFAULT_TOTAL_TIMEOUT_MILLIS;
+    private int maxConcurrentCalls = UsosHttpTransport.DEFAULT_MAX_CONCURRENT_CALLS;
+    private boolean circuitBreakerEnabled = true;
+    private int circuitBreakerFailureRateThreshold = UsosCircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int circuitBreakerSlowCallRateThreshold = UsosCircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private int circuitBreakerSlowCallDurationMillis = UsosCircuitBreaker.DEFAULT_SLOW_CALL_DURATION_MILLIS;
+    private int circuitBreakerWindowSize = UsosCircuitBreaker.DEFAULT_WINDOW_SIZE;
+    private int circuitBreakerMinimumCalls = UsosCircuitBreaker.DEFAULT_MINIMUM_CALLS;
+    private int circuitBreakerOpenMillis = UsosCircuitBreaker.DEFAULT_OPEN_MILLIS;
+    private int circuitBreakerHalfOpenCalls = UsosCircuitBreaker.DEFAULT_HALF_OPEN_CALLS;
+    private int rateLimitPerSecond;
+    private int rateLimitBurst;
+    private int rateLimitMaxWaitMillis = UsosRateLimiter.DEFAULT_MAX_WAIT_MILLIS;
+    private boolean warmUpEnabled = true;
+    private int warmUpConnections = DEFAULT_WARM_UP_CONNECTIONS;
+    private int profileSyncIntervalSeconds;
+    private int profileSyncPageSize = UsosProfileSync.DEFAULT_PAGE_SIZE;
+    private int profileSyncBatchSize = UsosProfileSync.DEFAULT_BATCH_SIZE;
+    private int profileSyncConcurrency = UsosProfileSync.DEFAULT_CONCURRENCY;
+    private int profileSyncMaxUsersPerRun = UsosProfileSync.DEFAULT_MAX_USERS_PER_RUN;
+    private UsosProfileSync profileSync;
+    private String auditSink;
+    private int auditQueueCapacity = UsosAuditQueue.DEFAULT_CAPACITY;
+    private int auditBatchSize = UsosAuditQueue.DEFAULT_BATCH_SIZE;
+    private int auditFlushIntervalMillis = UsosAuditQueue.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private UsosAuditQueue auditQueue;
     
     @Override
     public String getName() {
@@ -26,7 +102,7 @@ public class UsosIdentityProviderFactory implements IdentityProviderFactory<Usos
     
     @Override
     public UsosIdentityProvider create(KeycloakSession session, IdentityProviderModel model) {
-        return new UsosIdentityProvider(session, new UsosIdentityProviderConfig(model));
+        return new UsosIdentityProvider(session, getSnapshot(session, model));
     }
     
     @Override
@@ -46,16 +122,434 @@ public class UsosIdentityProviderFactory implements IdentityProviderFactory<Usos
     
     @Override
     public void init(Config.Scope config) {
-        // Nothing to initialize
+        requestTokenPools = new UsosRequestTokenPools();
+        if (config == null) {
+            return;
+        }
+        maxConnectionsPerRoute = positiveOrDefault(config.getInt("maxConnectionsPerRoute"),
+                UsosHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        maxConnectionsTotal = positiveOrDefault(config.getInt("maxConnectionsTotal"),
+                UsosHttpTransport.DEFAULT_MAX_CONNECTIONS_TOTAL);
+        idleConnectionTimeoutSeconds = positiveOrDefault(config.getInt("idleConnectionTimeoutSeconds"),
+                UsosHttpTransport.DEFAULT_IDLE_CONNECTION_TIMEOUT_SECONDS);
+        connectTimeoutMillis = positiveOrDefault(config.getInt("connectTimeoutMillis"),
+                UsosHttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        readTimeoutMillis = positiveOrDefault(config.getInt("readTimeoutMillis"),
+                UsosHttpTransport.DEFAULT_READ_TIMEOUT_MILLIS);
+        totalTimeoutMillis = positiveOrDefault(config.getInt("totalTimeoutMillis"),
+                UsosHttpTransport.DEFAULT_TOTAL_TIMEOUT_MILLIS);
+        userInfoCacheMaxEntries = positiveOrDefault(config.getInt("userInfoCacheMaxEntries"),
+                (int) UsosUserInfoCache.DEFAULT_MAX_ENTRIES);
+        apiCacheMaxEntries = positiveOrDefault(config.getInt("apiCacheMaxEntries"),
+                (int) UsosApiCache.DEFAULT_MAX_ENTRIES);
+        enrichmentThreads = positiveOrDefault(config.getInt("enrichmentThreads"), UsosEnrichment.DEFAULT_THREADS);
+        enrichmentQueueCapacity = positiveOrDefault(config.getInt("enrichmentQueueCapacity"),
+                UsosEnrichment.DEFAULT_QUEUE_CAPACITY);
+        meterRegistry = Boolean.FALSE.equals(config.getBoolean("metricsEnabled")) ? null : Metrics.globalRegistry;
+        initCircuitBreaker(config);
+        rateLimitPerSecond = positiveOrDefault(config.getInt("rateLimitPerSecond"), 0);
+        rateLimitBurst = positiveOrDefault(config.getInt("rateLimitBurst"), rateLimitPerSecond);
+        rateLimitMaxWaitMillis = positiveOrDefault(config.getInt("rateLimitMaxWaitMillis"),
+                UsosRateLimiter.DEFAULT_MAX_WAIT_MILLIS);
+        warmUpEnabled = !Boolean.FALSE.equals(config.getBoolean("warmUpEnabled"));
+        warmUpConnections = positiveOrDefault(config.getInt("warmUpConnections"), DEFAULT_WARM_UP_CONNECTIONS);
+        initProfileSync(config);
+        auditSink = config.get("auditSink");
+        auditQueueCapacity = positiveOrDefault(config.getInt("auditQueueCapacity"), UsosAuditQueue.DEFAULT_CAPACITY);
+        auditBatchSize = positiveOrDefault(config.getInt("auditBatchSize"), UsosAuditQueue.DEFAULT_BATCH_SIZE);
+        auditFlushIntervalMillis = positiveOrDefault(config.getInt("auditFlushIntervalMillis"),
+                UsosAuditQueue.DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+    
+    private void initProfileSync(Config.Scope config) {
+        profileSyncIntervalSeconds = positiveOrDefault(config.getInt("profileSyncIntervalSeconds"), 0);
+        profileSyncPageSize = positiveOrDefault(config.getInt("profileSyncPageSize"),
+                UsosProfileSync.DEFAULT_PAGE_SIZE);
+        profileSyncBatchSize = positiveOrDefault(config.getInt("profileSyncBatchSize"),
+                UsosProfileSync.DEFAULT_BATCH_SIZE);
+        profileSyncConcurrency = positiveOrDefault(config.getInt("profileSyncConcurrency"),
+                UsosProfileSync.DEFAULT_CONCURRENCY);
+        profileSyncMaxUsersPerRun = positiveOrDefault(config.getInt("profileSyncMaxUsersPerRun"),
+                UsosProfileSync.DEFAULT_MAX_USERS_PER_RUN);
+    }
+    
+    private void initCircuitBreaker(Config.Scope config) {
+        maxConcurrentCalls = positiveOrDefault(config.getInt("maxConcurrentCalls"),
+                UsosHttpTransport.DEFAULT_MAX_CONCURRENT_CALLS);
+        circuitBreakerEnabled = !Boolean.FALSE.equals(config.getBoolean("circuitBreakerEnabled"));
+        circuitBreakerFailureRateThreshold = positiveOrDefault(config.getInt("circuitBreakerFailureRateThreshold"),
+                UsosCircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD);
+        circuitBreakerSlowCallRateThreshold = positiveOrDefault(config.getInt("circuitBreakerSlowCallRateThreshold"),
+                UsosCircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD);
+        circuitBreakerSlowCallDurationMillis = positiveOrDefault(
+                config.getInt("circuitBreakerSlowCallDurationMillis"),
+                UsosCircuitBreaker.DEFAULT_SLOW_CALL_DURATION_MILLIS);
+        circuitBreakerWindowSize = positiveOrDefault(config.getInt("circuitBreakerWindowSize"),
+                UsosCircuitBreaker.DEFAULT_WINDOW_SIZE);
+        circuitBreakerMinimumCalls = positiveOrDefault(config.getInt("circuitBreakerMinimumCalls"),
+                UsosCircuitBreaker.DEFAULT_MINIMUM_CALLS);
+        circuitBreakerOpenMillis = positiveOrDefault(config.getInt("circuitBreakerOpenMillis"),
+                UsosCircuitBreaker.DEFAULT_OPEN_MILLIS);
+        circuitBreakerHalfOpenCalls = positiveOrDefault(config.getInt("circuitBreakerHalfOpenCalls"),
+                UsosCircuitBreaker.DEFAULT_HALF_OPEN_CALLS);
     }
     
     @Override
-    public void postInit(org.keycloak.models.KeycloakSessionFactory factory) {
-        // Nothing to initialize
+    public void postInit(KeycloakSessionFactory factory) {
+        if (factory == null) {
+            return;
+        }
+        // Local updates are dropped right away; changes made on other nodes are caught by isCompiledFrom
+        factory.register(event -> {
+            if (event instanceof RealmModel.IdentityProviderUpdatedEvent updated) {
+                invalidate(updated.getUpdatedIdentityProvider());
+            } else if (event instanceof RealmModel.IdentityProviderRemovedEvent removed) {
+                invalidate(removed.getRemovedIdentityProvider());
+            } else if (event instanceof RealmModel.RealmRemovedEvent realmRemoved) {
+                String realmId = realmRemoved.getRealm().getId();
+                snapshots.values().removeIf(snapshot -> realmId.equals(snapshot.getRealmId()));
+            }
+        });
+        if (warmUpEnabled) {
+            // Off the startup thread, so an unreachable USOS cannot hold up the server
+            Thread warmUp = new Thread(() -> warmUp(factory), "usos-warm-up");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
+        if (profileSyncIntervalSeconds > 0) {
+            profileSync = new UsosProfileSync(this, profileSyncIntervalSeconds, profileSyncPageSize,
+                    profileSyncBatchSize, profileSyncConcurrency, profileSyncMaxUsersPerRun);
+            KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class)
+                    .scheduleTask(profileSync, TimeUnit.SECONDS.toMillis(profileSyncIntervalSeconds),
+                            UsosProfileSync.TASK_NAME));
+        }
+        UsosAuditSink sink = createAuditSink(factory);
+        if (sink != null) {
+            auditQueue = new UsosAuditQueue(sink, auditQueueCapacity, auditBatchSize, auditFlushIntervalMillis);
+            if (meterRegistry != null) {
+                UsosLoginMetrics.bindAudit(meterRegistry, auditQueue);
+            }
+        }
+    }
+    
+    /**
+     * Resolves the auditSink option: {@code log}, {@code event-store}, or the class name of a sink with a no-arg
+     * constructor; logins are not audited when it is unset or cannot be resolved
+     */
+    private UsosAuditSink createAuditSink(KeycloakSessionFactory factory) {
+        if (auditSink == null || auditSink.isBlank()) {
+            return null;
+        }
+        switch (auditSink.trim()) {
+            case "log":
+                return UsosAuditSink.log();
+            case "event-store":
+                return UsosAuditSink.eventStore(factory);
+            default:
+                try {
+                    return Class.forName(auditSink.trim(), true, UsosIdentityProviderFactory.class.getClassLoader())
+                            .asSubclass(UsosAuditSink.class).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    LOGGER.warnf(e, "USOS audit sink %s could not be created, logins are not audited", auditSink);
+                    return null;
+                }
+        }
+    }
+    
+    /**
+     * Warms up the providers configured in every realm; skipped when the factory cannot open a session to read them
+     *
+     * @return the number of installations connected to
+     */
+    int warmUp(KeycloakSessionFactory factory) {
+        try {
+            List<UsosIdentityProviderConfig> configs = readEnabledConfigs(factory);
+            return configs == null ? 0 : warmUp(configs);
+        } catch (RuntimeException e) {
+            LOGGER.warn("USOS provider warm-up failed", e);
+            return 0;
+        }
+    }
+    
+    private static List<UsosIdentityProviderConfig> readEnabledConfigs(KeycloakSessionFactory factory) {
+        try (KeycloakSession session = factory.create()) {
+            if (session == null) {
+                LOGGER.debug("USOS provider warm-up skipped, no session could be opened");
+                return null;
+            }
+            session.getTransactionManager().begin();
+            List<UsosIdentityProviderConfig> configs = new ArrayList<>();
+            session.realms().getRealmsStream().forEach(realm -> {
+                session.getContext().setRealm(realm);
+                session.identityProviders().getAllStream()
+                        .filter(model -> PROVIDER_ID.equals(model.getProviderId()) && model.isEnabled())
+                        .forEach(model -> configs.add(new UsosIdentityProviderConfig(model)));
+            });
+            return configs;
+        }
+    }
+    
+    /**
+     * Connects ahead of time to every USOS installation the configs point at, and runs the signer and profile
+     * reader once so the first logins do not pay for class loading
+     *
+     * @return the number of installations connected to
+     */
+    int warmUp(Collection<UsosIdentityProviderConfig> configs) {
+        long start = System.nanoTime();
+        try {
+            UsosUserProfile.read(WARM_UP_PROFILE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Warm-up profile is not valid", e);
+        }
+        
+        Map<String, UsosIdentityProviderConfig> reachable = new LinkedHashMap<>();
+        for (UsosIdentityProviderConfig config : configs) {
+            String url = config.getRequestTokenUrl();
+            if (url != null && !url.isEmpty()) {
+                getSigner(config).authorizationHeader("POST", url, null, null, "oob", null);
+                reachable.putIfAbsent(UsosInstallation.keyOf(config), config);
+            }
+        }
+        int connected = 0;
+        for (UsosIdentityProviderConfig config : reachable.values()) {
+            String url = config.getRequestTokenUrl();
+            try {
+                getTransport(config).preconnect(URI.create(url), warmUpConnections);
+                connected++;
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.warnf("USOS warm-up could not connect to %s: %s", url, e.getMessage());
+            }
+        }
+        
+        long durationNanos = System.nanoTime() - start;
+        if (meterRegistry != null) {
+            UsosLoginMetrics.recordWarmUp(meterRegistry, durationNanos, connected == reachable.size());
+        }
+        LOGGER.infof("USOS provider warm-up connected to %d of %d installations in %d ms", connected,
+                reachable.size(), TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        return connected;
     }
     
     @Override
     public void close() {
-        // Nothing to close
+        if (auditQueue != null) {
+            auditQueue.close();
+            auditQueue = null;
+        }
+        if (profileSync != null) {
+            profileSync.close();
+            profileSync = null;
+        }
+        if (requestTokenPools != null) {
+            requestTokenPools.close();
+            requestTokenPools = null;
+        }
+        synchronized (this) {
+            if (enrichmentExecutor != null) {
+                enrichmentExecutor.shutdownNow();
+                enrichmentExecutor = null;
+            }
+        }
+        userInfoCache = null;
+        apiCache = null;
+        installations.values().forEach(UsosInstallation::close);
+        installations.clear();
+        signers.clear();
+        snapshots.clear();
+    }
+    
+    /**
+     * Returns the compiled snapshot for the model, recompiling it when the model has changed since
+     */
+    UsosIdentityProviderSnapshot getSnapshot(KeycloakSession session, IdentityProviderModel model) {
+        String internalId = model.getInternalId();
+        UsosIdentityProviderSnapshot snapshot = internalId == null ? null : snapshots.get(internalId);
+        if (snapshot != null && snapshot.isCompiledFrom(model)) {
+            return snapshot;
+        }
+        UsosIdentityProviderConfig config = new UsosIdentityProviderConfig(model);
+        KeycloakContext context = session.getContext();
+        RealmModel realm = context == null ? null : context.getRealm();
+        UsosLoginMetrics metrics = meterRegistry == null ? UsosLoginMetrics.NOOP
+                : new UsosLoginMetrics(meterRegistry, realm == null ? null : realm.getName(), model.getAlias());
+        snapshot = UsosIdentityProviderSnapshot.builder(config, getTransport(config), getSigner(config))
+                .realmId(realm == null ? null : realm.getId())
+                .rateLimiter(getRateLimiter(session, config))
+                .requestTokenPools(requestTokenPools)
+                .userInfoCache(config.isUserInfoCacheEnabled() ? getUserInfoCache(session) : null)
+                .metrics(metrics)
+                .audit(auditQueue)
+                .enrichmentExecutor(hasEnrichmentCalls(config) ? getEnrichmentExecutor() : null)
+                .build();
+        if (internalId != null) {
+            snapshots.put(internalId, snapshot);
+        }
+        return snapshot;
+    }
+    
+    void invalidate(IdentityProviderModel model) {
+        if (model != null && model.getInternalId() != null) {
+            snapshots.remove(model.getInternalId());
+        }
+    }
+    
+    /**
+     * Returns the USOS installation the given config points at, creating its transport on first use
+     */
+    UsosInstallation getInstallation(UsosIdentityProviderConfig config) {
+        return installations.computeIfAbsent(UsosInstallation.keyOf(config), key -> {
+            UsosInstallation installation = new UsosInstallation(key, new UsosHttpTransport(
+                    maxConnectionsPerRoute, maxConnectionsTotal, idleConnectionTimeoutSeconds,
+                    connectTimeoutMillis, readTimeoutMillis, totalTimeoutMillis, createCircuitBreaker(),
+                    maxConcurrentCalls));
+            if (meterRegistry != null) {
+                UsosLoginMetrics.bindInstallation(meterRegistry, installation);
+            }
+            return installation;
+        });
+    }
+    
+    /**
+     * Returns the pooled transport for the USOS installation the given config points at
+     */
+    UsosHttpTransport getTransport(UsosIdentityProviderConfig config) {
+        return getInstallation(config).getTransport();
+    }
+    
+    private UsosCircuitBreaker createCircuitBreaker() {
+        if (!circuitBreakerEnabled) {
+            return null;
+        }
+        return new UsosCircuitBreaker(circuitBreakerFailureRateThreshold, circuitBreakerSlowCallRateThreshold,
+                circuitBreakerSlowCallDurationMillis, circuitBreakerWindowSize, circuitBreakerMinimumCalls,
+                circuitBreakerOpenMillis, circuitBreakerHalfOpenCalls);
+    }
+    
+    /**
+     * Returns the signer shared by every provider with the config's consumer key and secret, so providers that
+     * hold the same key with different secrets, such as during a rotation, each keep their own
+     */
+    UsosOAuthSigner getSigner(UsosIdentityProviderConfig config) {
+        String consumerKey = config.getConsumerKey() == null ? "" : config.getConsumerKey();
+        String consumerSecret = config.getConsumerSecret() == null ? "" : config.getConsumerSecret();
+        // The secret itself is not kept as a map key
+        return signers.computeIfAbsent(consumerKey + "|" + digest(consumerSecret),
+                key -> new UsosOAuthSigner(consumerKey, consumerSecret));
+    }
+    
+    private static String digest(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Returns the rate limiter shared by every provider using the config's consumer key at its installation, or
+     * null when calls are not rate limited
+     */
+    UsosRateLimiter getRateLimiter(KeycloakSession session, UsosIdentityProviderConfig config) {
+        if (rateLimitPerSecond <= 0) {
+            return null;
+        }
+        String consumerKey = config.getConsumerKey() == null ? "" : config.getConsumerKey();
+        return getInstallation(config).getRateLimiter(consumerKey, key -> new UsosRateLimiter(key,
+                rateLimitPerSecond, rateLimitBurst, rateLimitMaxWaitMillis, clusterSize(session)));
+    }
+    
+    /**
+     * Counts the Keycloak nodes in the Infinispan cluster, which share each consumer's request quota
+     */
+    private static IntSupplier clusterSize(KeycloakSession session) {
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        if (infinispan == null) {
+            return () -> 1;
+        }
+        EmbeddedCacheManager cacheManager = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME)
+                .getCacheManager();
+        return () -> {
+            List<Address> members = cacheManager.getMembers();
+            return members == null ? 1 : members.size();
+        };
+    }
+    
+    private static boolean hasEnrichmentCalls(UsosIdentityProviderConfig config) {
+        String calls = config.getEnrichmentCalls();
+        return calls != null && !calls.isBlank();
+    }
+    
+    /**
+     * Returns the executor enrichment calls of every provider share, starting it on first use
+     */
+    synchronized ExecutorService getEnrichmentExecutor() {
+        if (enrichmentExecutor == null) {
+            enrichmentExecutor = UsosEnrichment.newExecutor(enrichmentThreads, enrichmentQueueCapacity);
+        }
+        return enrichmentExecutor;
+    }
+    
+    /**
+     * Returns the shared user-info cache, defining it in Keycloak's Infinispan on first use
+     */
+    UsosUserInfoCache getUserInfoCache(KeycloakSession session) {
+        UsosUserInfoCache cache = userInfoCache;
+        if (cache != null) {
+            return cache;
+        }
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        if (infinispan == null) {
+            LOGGER.warn("Infinispan is not available, USOS user-info caching is disabled");
+            return null;
+        }
+        synchronized (this) {
+            if (userInfoCache == null) {
+                userInfoCache = UsosUserInfoCache.create(
+                        infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager(),
+                        userInfoCacheMaxEntries);
+                if (meterRegistry != null) {
+                    UsosLoginMetrics.bindUserInfoCache(meterRegistry, userInfoCache);
+                }
+            }
+            return userInfoCache;
+        }
+    }
+    
+    UsosUserInfoCache getUserInfoCache() {
+        return userInfoCache;
+    }
+    
+    /**
+     * Returns the API proxy's cache, defining it in Keycloak's Infinispan on first use; without Infinispan it only
+     * coalesces concurrent calls
+     */
+    UsosApiCache getApiCache(KeycloakSession session) {
+        UsosApiCache cache = apiCache;
+        if (cache != null) {
+            return cache;
+        }
+        InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+        synchronized (this) {
+            if (apiCache == null) {
+                if (infinispan == null) {
+                    LOGGER.warn("Infinispan is not available, USOS API proxy answers are not cached");
+                    apiCache = new UsosApiCache(null);
+                } else {
+                    apiCache = UsosApiCache.create(
+                            infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager(),
+                            apiCacheMaxEntries);
+                }
+                if (meterRegistry != null) {
+                    UsosLoginMetrics.bindApiCache(meterRegistry, apiCache);
+                }
+            }
+            return apiCache;
+        }
+    }
+    
+    private static int positiveOrDefault(Integer value, int defaultValue) {
+        return value != null && value > 0 ? value : defaultValue;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,274 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.models.IdentityProviderModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Immutable, compiled form of a USOS identity provider's configuration.
+ * <p>
+ * Resolved endpoint URLs, the consumer's signer and the shared transport, request-token pools and user-info cache
+ * are bound once per provider model, so building a provider for a login only reads final fields.
+ */
+public final class UsosIdentityProviderSnapshot {
+    
+    private final UsosIdentityProviderConfig config;
+    private final String realmId;
+    private final String alias;
+    private final Map<String, String> sourceConfig;
+    private final String installation;
+    private final UsosOAuthClient client;
+    private final UsosEnrichment enrichment;
+    private final UsosApiServices apiServices;
+    private final UsosRequestTokenPools requestTokenPools;
+    private final String requestTokenPoolKeyPrefix;
+    private final int requestTokenPoolSize;
+    private final int requestTokenRefillPerSecond;
+    private final int requestTokenTtlSeconds;
+    private final UsosUserInfoCache userInfoCache;
+    private final int userInfoCacheTtlSeconds;
+    private final boolean statelessCallbackEnabled;
+    private final boolean callbackDeduplicationEnabled;
+    private final int callbackDeduplicationWindowSeconds;
+    private final int callbackDeduplicationWaitMillis;
+    private final String callbackStateBinding;
+    private final UsosAccountLinking accountLinking;
+    private final UsosAccountLinkMisses accountLinkMisses;
+    private final UsosLoginMetrics metrics;
+    private final UsosAuditQueue audit;
+    
+    private UsosIdentityProviderSnapshot(Builder builder) {
+        UsosIdentityProviderConfig config = builder.config;
+        this.config = config;
+        this.realmId = builder.realmId;
+        this.alias = config.getAlias();
+        this.sourceConfig = Collections.unmodifiableMap(new HashMap<>(config.getConfig()));
+        this.installation = UsosInstallation.keyOf(config);
+        this.client = new UsosOAuthClient(config, builder.transport, builder.signer, builder.rateLimiter);
+        this.enrichment = UsosEnrichment.compile(config, builder.enrichmentExecutor);
+        this.apiServices = UsosApiServices.compile(config);
+        this.requestTokenPools = config.isRequestTokenPrefetchEnabled() ? builder.requestTokenPools : null;
+        this.requestTokenPoolKeyPrefix = config.getInternalId() + "|";
+        this.requestTokenPoolSize = config.getRequestTokenPoolSize();
+        this.requestTokenRefillPerSecond = config.getRequestTokenRefillPerSecond();
+        this.requestTokenTtlSeconds = config.getRequestTokenTtlSeconds();
+        this.userInfoCache = config.isUserInfoCacheEnabled() ? builder.userInfoCache : null;
+        this.userInfoCacheTtlSeconds = config.getUserInfoCacheTtlSeconds();
+        this.statelessCallbackEnabled = config.isStatelessCallbackEnabled();
+        this.callbackDeduplicationEnabled = config.isCallbackDeduplicationEnabled();
+        this.callbackDeduplicationWindowSeconds = config.getCallbackDeduplicationWindowSeconds();
+        this.callbackDeduplicationWaitMillis = config.getCallbackDeduplicationWaitMillis();
+        this.callbackStateBinding = "usos|" + config.getInternalId() + "|" + alias;
+        this.accountLinking = config.getAccountLinking();
+        this.accountLinkMisses = accountLinking == UsosAccountLinking.OFF ? null
+                : new UsosAccountLinkMisses(UsosAccountLinkMisses.DEFAULT_MAX_ENTRIES,
+                        config.getAccountLinkMissTtlSeconds());
+        this.metrics = builder.metrics;
+        this.audit = builder.audit;
+    }
+    
+    /**
+     * Starts a snapshot of the config that calls USOS through the transport, signing with the consumer's signer
+     */
+    public static Builder builder(UsosIdentityProviderConfig config, UsosHttpTransport transport,
+            UsosOAuthSigner signer) {
+        return new Builder(config, transport, signer);
+    }
+    
+    /**
+     * Whether this snapshot was compiled from a model with the same alias and config
+     */
+    public boolean isCompiledFrom(IdentityProviderModel model) {
+        return Objects.equals(alias, model.getAlias()) && sourceConfig.equals(model.getConfig());
+    }
+    
+    public UsosIdentityProviderConfig getConfig() {
+        return config;
+    }
+    
+    public String getRealmId() {
+        return realmId;
+    }
+    
+    /**
+     * Key of the USOS installation this provider talks to, shared by providers on the same base URL
+     */
+    public String getInstallation() {
+        return installation;
+    }
+    
+    public UsosOAuthClient getClient() {
+        return client;
+    }
+    
+    public UsosAttributeMapping getAttributeMapping() {
+        return client.getAttributeMapping();
+    }
+    
+    /**
+     * The enrichment calls a login makes, or null if none are configured
+     */
+    public UsosEnrichment getEnrichment() {
+        return enrichment;
+    }
+    
+    /**
+     * The methods the API proxy may call for this provider's users, or null if the proxy is off for it
+     */
+    public UsosApiServices getApiServices() {
+        return apiServices;
+    }
+    
+    public boolean isRequestTokenPrefetchEnabled() {
+        return requestTokenPools != null;
+    }
+    
+    public UsosRequestTokenPools getRequestTokenPools() {
+        return requestTokenPools;
+    }
+    
+    public String getRequestTokenPoolKeyPrefix() {
+        return requestTokenPoolKeyPrefix;
+    }
+    
+    public int getRequestTokenPoolSize() {
+        return requestTokenPoolSize;
+    }
+    
+    public int getRequestTokenRefillPerSecond() {
+        return requestTokenRefillPerSecond;
+    }
+    
+    public int getRequestTokenTtlSeconds() {
+        return requestTokenTtlSeconds;
+    }
+    
+    public UsosUserInfoCache getUserInfoCache() {
+        return userInfoCache;
+    }
+    
+    public int getUserInfoCacheTtlSeconds() {
+        return userInfoCacheTtlSeconds;
+    }
+    
+    public boolean isStatelessCallbackEnabled() {
+        return statelessCallbackEnabled;
+    }
+    
+    /**
+     * Identifies this provider in sealed callback state, so state sealed for one provider is refused by another
+     */
+    public String getCallbackStateBinding() {
+        return callbackStateBinding;
+    }
+    
+    public boolean isCallbackDeduplicationEnabled() {
+        return callbackDeduplicationEnabled;
+    }
+    
+    public int getCallbackDeduplicationWindowSeconds() {
+        return callbackDeduplicationWindowSeconds;
+    }
+    
+    public int getCallbackDeduplicationWaitMillis() {
+        return callbackDeduplicationWaitMillis;
+    }
+    
+    public UsosAccountLinking getAccountLinking() {
+        return accountLinking;
+    }
+    
+    /**
+     * Linking keys that recently matched no account in this provider's realm, or null when linking is off
+     */
+    public UsosAccountLinkMisses getAccountLinkMisses() {
+        return accountLinkMisses;
+    }
+    
+    public UsosLoginMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * The queue login audit events go to, or null when logins are not audited
+     */
+    public UsosAuditQueue getAudit() {
+        return audit;
+    }
+    
+    /**
+     * Shared resources a snapshot binds; prefetching and caching are only bound when enabled and their resource is
+     * given
+     */
+    public static final class Builder {
+        
+        private final UsosIdentityProviderConfig config;
+        private final UsosHttpTransport transport;
+        private final UsosOAuthSigner signer;
+        private String realmId;
+        private UsosRateLimiter rateLimiter;
+        private UsosRequestTokenPools requestTokenPools;
+        private UsosUserInfoCache userInfoCache;
+        private UsosLoginMetrics metrics = UsosLoginMetrics.NOOP;
+        private UsosAuditQueue audit;
+        private ExecutorService enrichmentExecutor;
+        
+        private Builder(UsosIdentityProviderConfig config, UsosHttpTransport transport, UsosOAuthSigner signer) {
+            this.config = config;
+            this.transport = transport;
+            this.signer = signer;
+        }
+        
+        public Builder realmId(String realmId) {
+            this.realmId = realmId;
+            return this;
+        }
+        
+        /**
+         * The consumer's rate limiter; calls are not rate limited without one
+         */
+        public Builder rateLimiter(UsosRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+        
+        public Builder requestTokenPools(UsosRequestTokenPools requestTokenPools) {
+            this.requestTokenPools = requestTokenPools;
+            return this;
+        }
+        
+        public Builder userInfoCache(UsosUserInfoCache userInfoCache) {
+            this.userInfoCache = userInfoCache;
+            return this;
+        }
+        
+        public Builder metrics(UsosLoginMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+        
+        /**
+         * The queue login audit events go to; logins are not audited without one
+         */
+        public Builder audit(UsosAuditQueue audit) {
+            this.audit = audit;
+            return this;
+        }
+        
+        /**
+         * The executor enrichment calls run on; they are ignored without one
+         */
+        public Builder enrichmentExecutor(ExecutorService enrichmentExecutor) {
+            this.enrichmentExecutor = enrichmentExecutor;
+            return this;
+        }
+        
+        public UsosIdentityProviderSnapshot build() {
+            return new UsosIdentityProviderSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admin-started job that creates Keycloak users linked to a USOS identity provider ahead of their first login, so
+ * the start of a semester does not send thousands of users through first-broker-login at once.
+ * <p>
+ * The job works through the given USOS user ids a page at a time: one throttled USOS call, made outside any
+ * transaction, fetches the page's profiles, which are mapped like a login and written in one transaction. Users
+ * already linked get their USOS attributes refreshed, and users whose username or email is taken by an unlinked
+ * account are left to first-broker-login. Each user created or refreshed is reported as an admin event of the admin
+ * who started the job. A checkpoint after each page lets the same id list, submitted again, resume where an
+ * interrupted job stopped.
+ */
+public final class UsosImportJob implements Runnable {
+    
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_CALLS_PER_SECOND = 2;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosImportJob.class);
+    private static final String CHECKPOINT_KEY_PREFIX = "usos-import:checkpoint:";
+    private static final String CHECKPOINT_OFFSET = "offset";
+    private static final long CHECKPOINT_LIFESPAN_SECONDS = TimeUnit.DAYS.toSeconds(7);
+    
+    /**
+     * Lifecycle of a job
+     */
+    public enum State { RUNNING, COMPLETED, CANCELLED, FAILED }
+    
+    /**
+     * Snapshot of a job's progress, with throughput in users per second since the job started or resumed
+     */
+    public record Progress(String realmId, String alias, State state, int total, int processed, int created,
+            int updated, int skipped, int failed, double usersPerSecond, long elapsedMillis, String error) {
+    }
+    
+    /**
+     * Outcome of one page: users created, linked users whose attributes changed, and ids skipped because USOS does
+     * not know them or their username or email is taken
+     */
+    record Page(int created, int updated, int skipped) {
+    }
+    
+    private final UsosIdentityProviderFactory providers;
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final String alias;
+    private final List<String> userIds;
+    private final int pageSize;
+    private final UsosRateLimiter throttle;
+    private final String checkpointKey;
+    private final AdminEventBuilder adminEvent;
+    
+    private volatile State state = State.RUNNING;
+    private volatile boolean cancelled;
+    private volatile int resumedFrom;
+    private volatile int processed;
+    private volatile int created;
+    private volatile int updated;
+    private volatile int skipped;
+    private volatile int failed;
+    private volatile long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private volatile String error;
+    
+    /**
+     * @param userIds        USOS ids of the users to import, without duplicates
+     * @param callsPerSecond USOS calls the job makes per second, on top of the consumer's own rate limit
+     * @param adminEvent     the starting request's admin events, or null to report none
+     */
+    public UsosImportJob(UsosIdentityProviderFactory providers, KeycloakSessionFactory sessionFactory,
+            String realmId, String alias, List<String> userIds, int pageSize, int callsPerSecond,
+            AdminEventBuilder adminEvent) {
+        this.providers = providers;
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.alias = alias;
+        this.userIds = List.copyOf(userIds);
+        this.pageSize = pageSize;
+        this.throttle = new UsosRateLimiter("import:" + alias, callsPerSecond, 1, Integer.MAX_VALUE, () -> 1);
+        this.checkpointKey = CHECKPOINT_KEY_PREFIX + realmId + ":" + alias + ":" + digest(this.userIds);
+        this.adminEvent = adminEvent;
+    }
+    
+    private static String digest(List<String> userIds) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String userId : userIds) {
+                digest.update(userId.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        try {
+            int offset = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                Map<String, String> checkpoint = session.singleUseObjects().get(checkpointKey);
+                return checkpoint == null ? 0 : Integer.parseInt(checkpoint.get(CHECKPOINT_OFFSET));
+            });
+            resumedFrom = offset;
+            processed = offset;
+            while (offset < userIds.size() && !cancelled) {
+                List<String> pageIds = userIds.subList(offset, Math.min(offset + pageSize, userIds.size()));
+                throttle.acquire();
+                Page result = importPage(pageIds);
+                offset += pageIds.size();
+                Map<String, String> checkpoint = Map.of(CHECKPOINT_OFFSET, String.valueOf(offset));
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.singleUseObjects()
+                        .put(checkpointKey, CHECKPOINT_LIFESPAN_SECONDS, checkpoint));
+                record(pageIds.size(), result);
+            }
+            if (cancelled) {
+                finish(State.CANCELLED, null);
+                return;
+            }
+            KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                    session -> session.singleUseObjects().remove(checkpointKey));
+            finish(State.COMPLETED, null);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+            finish(State.CANCELLED, null);
+        } catch (IOException | RuntimeException e) {
+            // The checkpoint stays, so submitting the same ids again resumes from the page that failed
+            finish(State.FAILED, e.getMessage());
+        }
+    }
+    
+    private void record(int pageUsers, Page result) {
+        processed += pageUsers;
+        created += result.created();
+        updated += result.updated();
+        skipped += result.skipped();
+        Progress progress = getProgress();
+        LOGGER.debugf("USOS import into %s/%s: %d of %d users, %.1f users/s", realmId, alias, progress.processed(),
+                progress.total(), progress.usersPerSecond());
+    }
+    
+    private void finish(State finalState, String failure) {
+        endNanos = System.nanoTime();
+        error = failure;
+        state = finalState;
+        Progress progress = getProgress();
+        LOGGER.infof("USOS import into %s/%s %s: %d of %d users, %d created, %d updated, %d skipped, %d failed, "
+                + "%.1f users/s%s", realmId, alias, finalState.name().toLowerCase(Locale.ROOT),
+                progress.processed(), progress.total(), progress.created(), progress.updated(), progress.skipped(),
+                progress.failed(), progress.usersPerSecond(), failure == null ? "" : ": " + failure);
+    }
+    
+    /**
+     * Fetches the profiles of one page of USOS ids and creates or refreshes their users
+     *
+     * @throws IllegalStateException if USOS is unavailable or did not answer in time, to stop the job
+     */
+    Page importPage(List<String> pageIds) {
+        UsosOAuthClient client = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, this::getClient);
+        Map<String, UsosUserProfile> profiles;
+        try {
+            profiles = client.fetchUserProfiles(pageIds);
+        } catch (IOException e) {
+            if (UsosUnavailableException.isUnavailable(e) || UsosTimeoutException.isTimeout(e)) {
+                throw new IllegalStateException("USOS is unavailable: " + e.getMessage(), e);
+            }
+            LOGGER.warnf("Skipping %d users in USOS import: %s", pageIds.size(), e.getMessage());
+            failed += pageIds.size();
+            return new Page(0, 0, 0);
+        }
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> writePage(session, pageIds, profiles));
+    }
+    
+    private UsosOAuthClient getClient(KeycloakSession session) {
+        getRealm(session);
+        IdentityProviderModel model = getModel(session);
+        UsosOAuthClient client = providers.getSnapshot(session, model).getClient();
+        if (!client.canFetchUserProfiles()) {
+            throw new IllegalStateException("USOS identity provider " + alias
+                    + " has neither a base URL nor a users URL");
+        }
+        return client;
+    }
+    
+    private RealmModel getRealm(KeycloakSession session) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            throw new IllegalStateException("Realm " + realmId + " no longer exists");
+        }
+        session.getContext().setRealm(realm);
+        return realm;
+    }
+    
+    private IdentityProviderModel getModel(KeycloakSession session) {
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !UsosIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())) {
+            throw new IllegalStateException("USOS identity provider " + alias + " no longer exists");
+        }
+        return model;
+    }
+    
+    private Page writePage(KeycloakSession session, List<String> pageIds, Map<String, UsosUserProfile> profiles) {
+        RealmModel realm = getRealm(session);
+        IdentityProviderModel model = getModel(session);
+        List<String> attributeNames = providers.getSnapshot(session, model).getAttributeMapping().attributeNames();
+        AdminEventBuilder events = adminEvent == null ? null : adminEvent.clone(session);
+        
+        int pageCreated = 0;
+        int pageUpdated = 0;
+        int pageSkipped = 0;
+        for (String userId : pageIds) {
+            UsosUserProfile profile = profiles.get(userId);
+            if (profile == null) {
+                pageSkipped++;
+                continue;
+            }
+            BrokeredIdentityContext identity = UsosIdentityProvider.toIdentity(profile, null, model);
+            FederatedIdentityModel link = new FederatedIdentityModel(alias, identity.getId(), identity.getUsername());
+            UserModel user = session.users().getUserByFederatedIdentity(realm, link);
+            if (user != null) {
+                if (UsosIdentityProvider.applyAttributes(user, identity.getContextData(), attributeNames)) {
+                    report(events, OperationType.UPDATE, user);
+                    pageUpdated++;
+                }
+            } else if (isTaken(session, realm, identity)) {
+                pageSkipped++;
+            } else {
+                report(events, OperationType.CREATE, createUser(session, realm, identity, link, attributeNames));
+                pageCreated++;
+            }
+        }
+        return new Page(pageCreated, pageUpdated, pageSkipped);
+    }
+    
+    private static void report(AdminEventBuilder events, OperationType operation, UserModel user) {
+        if (events != null) {
+            events.operation(operation)
+                    .resourcePath("users", user.getId())
+                    .representation(ModelToRepresentation.toBriefRepresentation(user))
+                    .success();
+        }
+    }
+    
+    private static boolean isTaken(KeycloakSession session, RealmModel realm, BrokeredIdentityContext identity) {
+        if (session.users().getUserByUsername(realm, identity.getUsername()) != null) {
+            return true;
+        }
+        String email = identity.getEmail();
+        return email != null && !email.isEmpty() && !realm.isDuplicateEmailsAllowed()
+                && session.users().getUserByEmail(realm, email) != null;
+    }
+    
+    private static UserModel createUser(KeycloakSession session, RealmModel realm, BrokeredIdentityContext identity,
+            FederatedIdentityModel link, List<String> attributeNames) {
+        UserModel user = session.users().addUser(realm, identity.getUsername());
+        user.setEnabled(true);
+        if (!identity.getEmail().isEmpty()) {
+            user.setEmail(identity.getEmail());
+        }
+        if (!identity.getFirstName().isEmpty()) {
+            user.setFirstName(identity.getFirstName());
+        }
+        if (!identity.getLastName().isEmpty()) {
+            user.setLastName(identity.getLastName());
+        }
+        UsosIdentityProvider.applyAttributes(user, identity.getContextData(), attributeNames);
+        session.users().addFederatedIdentity(realm, user, link);
+        return user;
+    }
+    
+    /**
+     * Asks the job to stop after the page in progress
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+    
+    public Progress getProgress() {
+        long elapsedNanos = (state == State.RUNNING ? System.nanoTime() : endNanos) - startNanos;
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        int done = processed;
+        return new Progress(realmId, alias, state, userIds.size(), done, created, updated, skipped, failed,
+                seconds > 0 ? (done - resumedFrom) / seconds : 0, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), error);
+    }
+}
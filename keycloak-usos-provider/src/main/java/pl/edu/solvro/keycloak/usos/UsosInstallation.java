@@ -0,0 +1,97 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * One USOS installation and the resources isolated to it: the pooled transport with its circuit breaker and
+ * bulkhead, and the rate limiters of the consumers registered with it.
+ * <p>
+ * Providers in any realm whose URLs normalize to the same installation share one instance, while a slow
+ * installation can only use up its own connections and call slots.
+ */
+public final class UsosInstallation implements Closeable {
+    
+    private final String key;
+    private final UsosHttpTransport transport;
+    private final Map<String, UsosRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    
+    public UsosInstallation(String key, UsosHttpTransport transport) {
+        this.key = key;
+        this.transport = transport;
+    }
+    
+    /**
+     * Key of the installation the config points at: its base URL, or the origin of its custom request-token URL,
+     * with the scheme and host in lower case, the default port dropped and no trailing slash
+     */
+    public static String keyOf(UsosIdentityProviderConfig config) {
+        String baseUrl = config.getUsosBaseUrl();
+        if (baseUrl != null && !baseUrl.isBlank()) {
+            return normalize(baseUrl.trim(), true);
+        }
+        String requestTokenUrl = config.getRequestTokenUrl();
+        if (requestTokenUrl == null || requestTokenUrl.isBlank()) {
+            return "";
+        }
+        return normalize(requestTokenUrl.trim(), false);
+    }
+    
+    private static String normalize(String url, boolean keepPath) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return url;
+        }
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return url;
+        }
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        boolean defaultPort = port == -1 || "https".equals(scheme) && port == 443
+                || "http".equals(scheme) && port == 80;
+        StringBuilder key = new StringBuilder(url.length())
+                .append(scheme)
+                .append("://")
+                .append(uri.getHost().toLowerCase(Locale.ROOT));
+        if (!defaultPort) {
+            key.append(':').append(port);
+        }
+        String path = uri.getRawPath();
+        if (keepPath && path != null) {
+            int end = path.length();
+            while (end > 0 && path.charAt(end - 1) == '/') {
+                end--;
+            }
+            key.append(path, 0, end);
+        }
+        return key.toString();
+    }
+    
+    public String getKey() {
+        return key;
+    }
+    
+    public UsosHttpTransport getTransport() {
+        return transport;
+    }
+    
+    /**
+     * Returns the rate limiter of the consumer at this installation, creating it on first use
+     */
+    public UsosRateLimiter getRateLimiter(String consumerKey, Function<String, UsosRateLimiter> factory) {
+        return rateLimiters.computeIfAbsent(consumerKey, factory);
+    }
+    
+    @Override
+    public void close() {
+        transport.close();
+        rateLimiters.clear();
+    }
+}
@@ -0,0 +1,27 @@
+package pl.edu.solvro.keycloak.usos;
+
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Cause;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Phase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audit record of one USOS login callback
+ *
+ * @param timeMillis when the callback finished, in epoch milliseconds
+ * @param usosUserId the USOS user the login resolved to, or null if it failed before the profile was read
+ * @param cause why the login failed, or null if it succeeded
+ * @param errorClass class of the exception that failed the login, or null
+ * @param phaseNanos duration of each {@link Phase} by ordinal, zero for phases the login did not reach
+ */
+public record UsosLoginEvent(long timeMillis, String realmId, String alias, String usosUserId, Cause cause,
+        String errorClass, long[] phaseNanos) {
+
+    public boolean isSuccess() {
+        return cause == null;
+    }
+
+    public long phaseMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()]);
+    }
+}
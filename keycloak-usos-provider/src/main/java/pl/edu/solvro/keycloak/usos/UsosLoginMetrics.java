@@ -0,0 +1,236 @@
+package pl.edu.solvro.keycloak.usos;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-phase latency and outcome meters for logins through one USOS identity provider.
+ * <p>
+ * All meters are registered up front for the provider's realm and alias, so recording an event is a lookup in
+ * an enum-indexed map followed by the meter update, with nothing allocated.
+ */
+public final class UsosLoginMetrics {
+    
+    public static final String PHASE_TIMER = "usos.login.phase";
+    public static final String RESULT_COUNTER = "usos.login.result";
+    public static final String USER_INFO_CACHE_COUNTER = "usos.userinfo.cache";
+    public static final String WARM_UP_TIMER = "usos.warmup";
+    public static final String CONNECTIONS_GAUGE = "usos.installation.connections";
+    public static final String CALLS_IN_FLIGHT_GAUGE = "usos.installation.calls.in.flight";
+    public static final String CIRCUIT_STATE_GAUGE = "usos.installation.circuit.state";
+    public static final String AUDIT_COUNTER = "usos.audit.events";
+    public static final String AUDIT_QUEUE_GAUGE = "usos.audit.queue.size";
+    public static final String API_CACHE_COUNTER = "usos.api.cache";
+    
+    /**
+     * Meters that are registered nowhere, for providers built outside the factory
+     */
+    public static final UsosLoginMetrics NOOP = new UsosLoginMetrics(new CompositeMeterRegistry(), "", "");
+    
+    private static final String UNKNOWN = "unknown";
+    
+    /**
+     * Timed steps of a login; profile parsing streams with the user-info response, so it is part of USER_INFO, and
+     * ENRICHMENT is only the wait for enrichment calls still running once the profile is read
+     */
+    public enum Phase {
+        REQUEST_TOKEN,
+        ACCESS_TOKEN,
+        USER_INFO,
+        ENRICHMENT,
+        PROFILE
+    }
+    
+    /**
+     * Reasons a login fails
+     */
+    public enum Cause {
+        MISSING_PARAMETERS,
+        SESSION_NOT_FOUND,
+        TOKEN_MISMATCH,
+        DUPLICATE_CALLBACK,
+        TIMEOUT,
+        UNAVAILABLE,
+        INVALID_PROFILE,
+        USOS_ERROR,
+        INTERNAL_ERROR
+    }
+    
+    private final Map<Phase, Timer> phaseTimers = new EnumMap<>(Phase.class);
+    private final Map<Cause, Counter> failureCounters = new EnumMap<>(Cause.class);
+    private final Counter successCounter;
+    
+    public UsosLoginMetrics(MeterRegistry registry, String realm, String alias) {
+        Tags tags = Tags.of("realm", tagValue(realm), "idp", tagValue(alias));
+        for (Phase phase : Phase.values()) {
+            phaseTimers.put(phase, Timer.builder(PHASE_TIMER)
+                    .description("Duration of a USOS login phase")
+                    .tags(tags)
+                    .tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        for (Cause cause : Cause.values()) {
+            failureCounters.put(cause, Counter.builder(RESULT_COUNTER)
+                    .description("USOS logins by outcome")
+                    .tags(tags)
+                    .tag("outcome", "failure")
+                    .tag("cause", cause.name().toLowerCase(Locale.ROOT))
+                    .register(registry));
+        }
+        successCounter = Counter.builder(RESULT_COUNTER)
+                .description("USOS logins by outcome")
+                .tags(tags)
+                .tag("outcome", "success")
+                .tag("cause", "none")
+                .register(registry);
+    }
+    
+    /**
+     * Registers hit and miss counters that read the shared user-info cache's statistics
+     */
+    public static void bindUserInfoCache(MeterRegistry registry, UsosUserInfoCache cache) {
+        FunctionCounter.builder(USER_INFO_CACHE_COUNTER, cache, UsosUserInfoCache::getHits)
+                .description("USOS user-info cache lookups")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder(USER_INFO_CACHE_COUNTER, cache, UsosUserInfoCache::getMisses)
+                .description("USOS user-info cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+    }
+    
+    /**
+     * Registers counters of the API proxy's cache lookups, including misses that joined a call already in flight
+     */
+    public static void bindApiCache(MeterRegistry registry, UsosApiCache cache) {
+        FunctionCounter.builder(API_CACHE_COUNTER, cache, UsosApiCache::getHits)
+                .description("USOS API proxy cache lookups")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder(API_CACHE_COUNTER, cache, UsosApiCache::getMisses)
+                .description("USOS API proxy cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder(API_CACHE_COUNTER, cache, UsosApiCache::getCoalesced)
+                .description("USOS API proxy cache lookups")
+                .tag("result", "coalesced")
+                .register(registry);
+    }
+    
+    /**
+     * Registers counters of the login audit events written and dropped, and a gauge of those waiting for a flush
+     */
+    public static void bindAudit(MeterRegistry registry, UsosAuditQueue queue) {
+        FunctionCounter.builder(AUDIT_COUNTER, queue, UsosAuditQueue::getWritten)
+                .description("USOS login audit events by outcome")
+                .tag("result", "written")
+                .register(registry);
+        FunctionCounter.builder(AUDIT_COUNTER, queue, UsosAuditQueue::getDropped)
+                .description("USOS login audit events by outcome")
+                .tag("result", "dropped")
+                .register(registry);
+        Gauge.builder(AUDIT_QUEUE_GAUGE, queue, UsosAuditQueue::size)
+                .description("USOS login audit events waiting for a flush")
+                .register(registry);
+    }
+    
+    /**
+     * Registers gauges for the installation's connection pool, bulkhead and circuit breaker, tagged with its key
+     */
+    public static void bindInstallation(MeterRegistry registry, UsosInstallation installation) {
+        Tags tags = Tags.of("installation", tagValue(installation.getKey()));
+        UsosHttpTransport transport = installation.getTransport();
+        Gauge.builder(CONNECTIONS_GAUGE, transport, pooled -> pooled.getPoolStats().getLeased())
+                .description("Pooled connections to a USOS installation")
+                .tags(tags)
+                .tag("state", "leased")
+                .register(registry);
+        Gauge.builder(CONNECTIONS_GAUGE, transport, pooled -> pooled.getPoolStats().getAvailable())
+                .description("Pooled connections to a USOS installation")
+                .tags(tags)
+                .tag("state", "idle")
+                .register(registry);
+        Gauge.builder(CONNECTIONS_GAUGE, transport, pooled -> pooled.getPoolStats().getPending())
+                .description("Pooled connections to a USOS installation")
+                .tags(tags)
+                .tag("state", "pending")
+                .register(registry);
+        Gauge.builder(CALLS_IN_FLIGHT_GAUGE, transport, UsosHttpTransport::getCallsInFlight)
+                .description("Calls to a USOS installation holding a bulkhead slot")
+                .tags(tags)
+                .register(registry);
+        UsosCircuitBreaker circuitBreaker = transport.getCircuitBreaker();
+        if (circuitBreaker != null) {
+            Gauge.builder(CIRCUIT_STATE_GAUGE, circuitBreaker, breaker -> breaker.getState().ordinal())
+                    .description("Circuit breaker state of a USOS installation: 0 closed, 1 open, 2 half-open")
+                    .tags(tags)
+                    .register(registry);
+        }
+    }
+    
+    /**
+     * Records how long the startup warm-up took and whether it reached every USOS installation
+     */
+    public static void recordWarmUp(MeterRegistry registry, long durationNanos, boolean complete) {
+        Timer.builder(WARM_UP_TIMER)
+                .description("Duration of the USOS provider warm-up at startup")
+                .tag("outcome", complete ? "complete" : "partial")
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Records the time since startNanos, a {@link System#nanoTime()} reading, against the phase
+     *
+     * @return the recorded duration in nanoseconds
+     */
+    public long recordPhase(Phase phase, long startNanos) {
+        long durationNanos = System.nanoTime() - startNanos;
+        phaseTimers.get(phase).record(durationNanos, TimeUnit.NANOSECONDS);
+        return durationNanos;
+    }
+    
+    public void success() {
+        successCounter.increment();
+    }
+    
+    public void failure(Cause cause) {
+        failureCounters.get(cause).increment();
+    }
+    
+    /**
+     * Classifies an exception thrown while talking to USOS
+     */
+    public static Cause causeOf(Throwable failure) {
+        if (UsosTimeoutException.isTimeout(failure)) {
+            return Cause.TIMEOUT;
+        }
+        if (UsosUnavailableException.isUnavailable(failure)) {
+            return Cause.UNAVAILABLE;
+        }
+        if (failure instanceof JsonProcessingException) {
+            return Cause.INVALID_PROFILE;
+        }
+        if (failure instanceof IOException) {
+            return Cause.USOS_ERROR;
+        }
+        return Cause.INTERNAL_ERROR;
+    }
+    
+    private static String tagValue(String value) {
+        return value == null || value.isEmpty() ? UNKNOWN : value;
+    }
+}
@@ -0,0 +1,416 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import pl.edu.solvro.keycloak.usos.UsosRequestTokenPool.RequestToken;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * OAuth 1.0a client for the three USOS legs, signing with {@link UsosOAuthSigner} and sending over the
+ * installation's {@link UsosHttpTransport}, within the consumer's {@link UsosRateLimiter} when there is one.
+ * <p>
+ * Failed calls are retried as the {@link UsosRetryPolicy} allows. When USOS refuses a timestamp, the offset of
+ * its clock is learned from the response's Date header and added to the timestamps of later signatures.
+ */
+public final class UsosOAuthClient {
+    
+    /**
+     * Upper bound on responses read as a whole, far above any token or API response this provider expects
+     */
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosOAuthClient.class);
+    private static final int MAX_ERROR_BODY_LENGTH = 200;
+    /**
+     * Date headers only have second precision, so smaller offsets are noise
+     */
+    private static final long MIN_CLOCK_OFFSET_SECONDS = 2;
+    
+    private final UsosHttpTransport transport;
+    private final UsosOAuthSigner signer;
+    private final UsosRateLimiter rateLimiter;
+    private final String requestTokenUrl;
+    private final String accessTokenUrl;
+    private final String authorizationUrlPrefix;
+    private final String userProfileUrl;
+    private final String userProfilesUrl;
+    private final UsosAttributeMapping attributeMapping;
+    private final UsosRetryPolicy retryPolicy;
+    private volatile long clockOffsetSeconds;
+    
+    public UsosOAuthClient(UsosIdentityProviderConfig config, UsosHttpTransport transport, UsosOAuthSigner signer) {
+        this(config, transport, signer, null);
+    }
+    
+    /**
+     * @param rateLimiter limiter every call waits on before it is sent, or null for none
+     */
+    public UsosOAuthClient(UsosIdentityProviderConfig config, UsosHttpTransport transport, UsosOAuthSigner signer,
+            UsosRateLimiter rateLimiter) {
+        this.transport = transport;
+        this.signer = signer;
+        this.rateLimiter = rateLimiter;
+        this.requestTokenUrl = config.getRequestTokenUrl();
+        this.accessTokenUrl = config.getAccessTokenUrl();
+        String authorizationUrl = config.getAuthorizationUrl();
+        boolean hasQuery = authorizationUrl != null && authorizationUrl.indexOf('?') >= 0;
+        this.authorizationUrlPrefix = authorizationUrl + (hasQuery ? "&" : "?") + "oauth_token=";
+        this.attributeMapping = UsosAttributeMapping.compile(config.getAttributeMappings());
+        String fields = UsosOAuthSigner.percentEncode(attributeMapping.fields());
+        this.userProfileUrl = config.getUserInfoUrl() + "?format=json&fields=" + fields;
+        String usersUrl = config.getUsersUrl();
+        this.userProfilesUrl = usersUrl == null ? null : usersUrl + "?format=json&fields=" + fields + "&user_ids=";
+        this.retryPolicy = new UsosRetryPolicy(config.getRetryMaxAttempts(), config.getRetryBudgetMillis());
+    }
+    
+    /**
+     * Token and secret pair returned by the access-token leg
+     */
+    public record AccessToken(String token, String tokenSecret) {
+        
+        /**
+         * Form-encodes the pair, as Keycloak stores it on the federated identity
+         */
+        public String toStoredToken() {
+            return "oauth_token=" + UsosOAuthSigner.percentEncode(token) + "&oauth_token_secret="
+                    + UsosOAuthSigner.percentEncode(tokenSecret);
+        }
+        
+        /**
+         * Reads a pair stored by {@link #toStoredToken()}
+         *
+         * @return the pair, or null for a token stored without its secret, which cannot sign calls
+         */
+        public static AccessToken fromStoredToken(String stored) {
+            return stored == null ? null : parse(stored);
+        }
+    }
+    
+    /**
+     * Reads a response body from its stream
+     */
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+    
+    public UsosHttpTransport getTransport() {
+        return transport;
+    }
+    
+    public UsosRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    
+    /**
+     * Seconds USOS's clock is ahead of ours, as last learned from a refused timestamp
+     */
+    public long getClockOffsetSeconds() {
+        return clockOffsetSeconds;
+    }
+    
+    /**
+     * Obtains an unauthorized request token whose authorization redirects back to the callback URL
+     */
+    public RequestToken fetchRequestToken(String callbackUrl) throws IOException {
+        // An unused request token just expires, so this leg is safe to repeat
+        AccessToken token = fetchToken(requestTokenUrl, true,
+                () -> sign("POST", requestTokenUrl, null, null, callbackUrl, null));
+        return new RequestToken(token.token(), token.tokenSecret(),
+                authorizationUrlPrefix + UsosOAuthSigner.percentEncode(token.token()), System.currentTimeMillis());
+    }
+    
+    /**
+     * Exchanges an authorized request token and its verifier for an access token
+     */
+    public AccessToken fetchAccessToken(String requestToken, String requestTokenSecret, String verifier)
+            throws IOException {
+        // USOS accepts a verifier once, so only calls it refused unread are sent again
+        return fetchToken(accessTokenUrl, false,
+                () -> sign("POST", accessTokenUrl, requestToken, requestTokenSecret, null, verifier));
+    }
+    
+    /**
+     * Fetches the user's profile, asking USOS for only the mapped fields and parsing it as it streams in
+     */
+    public UsosUserProfile fetchUserProfile(AccessToken accessToken) throws IOException {
+        return get(userProfileUrl, accessToken, body -> UsosUserProfile.read(body, attributeMapping),
+                UsosUserProfile.MAX_RESPONSE_BYTES);
+    }
+    
+    /**
+     * Whether the provider has a users URL, which {@link #fetchUserProfiles(Collection)} calls
+     */
+    public boolean canFetchUserProfiles() {
+        return userProfilesUrl != null;
+    }
+    
+    /**
+     * Fetches the profiles of several users in one call, signed by the consumer alone
+     *
+     * @return the profiles by USOS user id, leaving out ids USOS does not know
+     * @throws IOException also if the provider has neither a base URL nor a users URL
+     */
+    public Map<String, UsosUserProfile> fetchUserProfiles(Collection<String> userIds) throws IOException {
+        if (userProfilesUrl == null) {
+            throw new IOException("USOS identity provider has no users URL");
+        }
+        String url = userProfilesUrl + UsosOAuthSigner.percentEncode(String.join("|", userIds));
+        return send(() -> signed(new HttpGet(url), sign("GET", url, null, null, null, null)), true,
+                body -> UsosUserProfile.readAll(body, attributeMapping), DEFAULT_MAX_RESPONSE_BYTES);
+    }
+    
+    /**
+     * The attribute mapping profiles are read with
+     */
+    public UsosAttributeMapping getAttributeMapping() {
+        return attributeMapping;
+    }
+    
+    /**
+     * Performs a signed GET against a USOS API method and returns the response body
+     */
+    public String get(String url, AccessToken accessToken) throws IOException {
+        return get(url, accessToken, UsosOAuthClient::readString, DEFAULT_MAX_RESPONSE_BYTES);
+    }
+    
+    /**
+     * Performs a signed GET against a USOS API method and hands the body stream, cut off after maxBytes, to the
+     * reader
+     */
+    public <T> T get(String url, AccessToken accessToken, BodyReader<T> reader, int maxBytes) throws IOException {
+        return send(() -> signed(new HttpGet(url),
+                sign("GET", url, accessToken.token(), accessToken.tokenSecret(), null, null)), true, reader, maxBytes);
+    }
+    
+    private AccessToken fetchToken(String url, boolean repeatable, Supplier<String> authorization) throws IOException {
+        String body = send(() -> signed(new HttpPost(url), authorization.get()), repeatable,
+                UsosOAuthClient::readString, DEFAULT_MAX_RESPONSE_BYTES);
+        
+        AccessToken token = parse(body);
+        if (token == null) {
+            throw new IOException("USOS response from " + url + " did not contain a token and secret");
+        }
+        return token;
+    }
+    
+    /**
+     * Reads the token and secret of a form-encoded token response, or returns null if either is missing
+     */
+    private static AccessToken parse(String form) {
+        String token = null;
+        String tokenSecret = null;
+        for (String pair : form.trim().split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            String name = pair.substring(0, separator);
+            if ("oauth_token".equals(name)) {
+                token = URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            } else if ("oauth_token_secret".equals(name)) {
+                tokenSecret = URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return token == null || tokenSecret == null ? null : new AccessToken(token, tokenSecret);
+    }
+    
+    private String sign(String method, String url, String token, String tokenSecret, String callback,
+            String verifier) {
+        return signer.authorizationHeader(method, url, token, tokenSecret, callback, verifier,
+                System.currentTimeMillis() / 1000 + clockOffsetSeconds, null);
+    }
+    
+    private static HttpRequestBase signed(HttpRequestBase request, String authorization) {
+        request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        return request;
+    }
+    
+    /**
+     * Sends the request built and signed by the supplier, building and signing it again for each retry
+     *
+     * @param repeatable whether USOS acting on the call twice is harmless
+     */
+    private <T> T send(Supplier<HttpRequestBase> request, boolean repeatable, BodyReader<T> reader, int maxBytes)
+            throws IOException {
+        long start = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            HttpRequestBase signedRequest = request.get();
+            try {
+                return execute(signedRequest, reader, maxBytes);
+            } catch (IOException e) {
+                long delay = retryPolicy.retryDelayMillis(e, attempt, start, repeatable);
+                if (delay < 0) {
+                    throw e;
+                }
+                LOGGER.debugf("Retrying USOS call to %s in %d ms after attempt %d failed: %s",
+                        signedRequest.getURI(), delay, attempt, e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private <T> T execute(HttpRequestBase request, BodyReader<T> reader, int maxBytes) throws IOException {
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+        return transport.execute(request, response -> {
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 300) {
+                throw statusException(request, response, status);
+            }
+            if (entity == null) {
+                throw new IOException("Empty response from USOS API");
+            }
+            if (entity.getContentLength() > maxBytes) {
+                throw new IOException("USOS response from " + request.getURI() + " is " + entity.getContentLength()
+                        + " bytes, over the " + maxBytes + " byte limit");
+            }
+            try (InputStream body = new LimitedInputStream(entity.getContent(), maxBytes)) {
+                return reader.read(body);
+            }
+        });
+    }
+    
+    private static String readString(InputStream body) throws IOException {
+        return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    
+    private StatusException statusException(HttpRequestBase request, HttpResponse response, int status)
+            throws IOException {
+        String body = response.getEntity() == null ? ""
+                : EntityUtils.toString(response.getEntity(), "UTF-8").trim();
+        Header authenticate = response.getFirstHeader(HttpHeaders.WWW_AUTHENTICATE);
+        boolean signatureRefused = isSignatureRefused(body)
+                || authenticate != null && isSignatureRefused(authenticate.getValue());
+        if (signatureRefused) {
+            learnClockOffset(request, response);
+        }
+        if (body.length() > MAX_ERROR_BODY_LENGTH) {
+            body = body.substring(0, MAX_ERROR_BODY_LENGTH) + "...";
+        }
+        return new StatusException("USOS returned HTTP " + status + " for " + request.getURI()
+                + (body.isEmpty() ? "" : ": " + body), status, signatureRefused);
+    }
+    
+    private static boolean isSignatureRefused(String problem) {
+        return problem.contains("timestamp_refused") || problem.contains("nonce_used");
+    }
+    
+    /**
+     * Takes the offset of USOS's clock from the Date header of a response refusing our timestamp
+     */
+    private void learnClockOffset(HttpRequestBase request, HttpResponse response) {
+        Header dateHeader = response.getFirstHeader(HttpHeaders.DATE);
+        Date date = dateHeader == null ? null : DateUtils.parseDate(dateHeader.getValue());
+        if (date == null) {
+            return;
+        }
+        long offset = date.getTime() / 1000 - System.currentTimeMillis() / 1000;
+        if (Math.abs(offset) < MIN_CLOCK_OFFSET_SECONDS) {
+            offset = 0;
+        }
+        if (offset != clockOffsetSeconds) {
+            LOGGER.warnf("Clock of USOS at %s is %d s ahead of ours, adjusting OAuth timestamps",
+                    request.getURI().getHost(), offset);
+            clockOffsetSeconds = offset;
+        }
+    }
+    
+    /**
+     * Error status USOS answered a call with
+     */
+    static final class StatusException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int status;
+        private final boolean signatureRefused;
+        
+        StatusException(String message, int status, boolean signatureRefused) {
+            super(message);
+            this.status = status;
+            this.signatureRefused = signatureRefused;
+        }
+        
+        int getStatus() {
+            return status;
+        }
+        
+        /**
+         * Whether USOS refused the call's timestamp or nonce, before acting on it
+         */
+        boolean isSignatureRefused() {
+            return signatureRefused;
+        }
+    }
+    
+    /**
+     * Fails the read once more than the allowed number of bytes has been consumed
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        
+        private final int maxBytes;
+        private long count;
+        
+        LimitedInputStream(InputStream in, int maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consumed(1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                consumed(read);
+            }
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            consumed(skipped);
+            return skipped;
+        }
+        
+        private void consumed(long bytes) throws IOException {
+            count += bytes;
+            if (count > maxBytes) {
+                throw new IOException("USOS response exceeded the " + maxBytes + " byte limit");
+            }
+        }
+    }
+}
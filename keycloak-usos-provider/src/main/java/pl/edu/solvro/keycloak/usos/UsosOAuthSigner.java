@@ -0,0 +1,333 @@
+package pl.edu.solvro.keycloak.usos;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * OAuth 1.0a HMAC-SHA1 signer for a single USOS consumer.
+ * <p>
+ * The consumer part of the HMAC key is derived once, and the signature base string, digest and Base64 output
+ * are built in per-thread buffers together with a per-thread {@link Mac}, so signing a request allocates
+ * little beyond the returned Authorization header.
+ */
+public final class UsosOAuthSigner {
+    
+    private static final String HMAC_SHA1 = "HmacSHA1";
+    private static final String SIGNATURE_METHOD = "HMAC-SHA1";
+    private static final String VERSION = "1.0";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char[] NONCE_HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_PARAMETERS = 32;
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    
+    private final String consumerKey;
+    private final String consumerSecret;
+    private final String encodedConsumerKey;
+    private final String encodedConsumerSecret;
+    private final SecretKeySpec consumerKeySpec;
+    
+    public UsosOAuthSigner(String consumerKey, String consumerSecret) {
+        this.consumerKey = consumerKey == null ? "" : consumerKey;
+        this.consumerSecret = consumerSecret == null ? "" : consumerSecret;
+        this.encodedConsumerKey = percentEncode(this.consumerKey);
+        this.encodedConsumerSecret = percentEncode(this.consumerSecret);
+        this.consumerKeySpec = new SecretKeySpec((encodedConsumerSecret + "&").getBytes(StandardCharsets.US_ASCII),
+                HMAC_SHA1);
+    }
+    
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+    
+    /**
+     * Whether this signer was derived from the given consumer secret
+     */
+    public boolean hasConsumerSecret(String secret) {
+        return consumerSecret.equals(secret == null ? "" : secret);
+    }
+    
+    /**
+     * Signs a request and returns the value of its Authorization header. The token, callback and verifier are
+     * only included when non-null; query parameters of the URL are part of the signature.
+     */
+    public String authorizationHeader(String method, String url, String token, String tokenSecret,
+            String callback, String verifier) {
+        return authorizationHeader(method, url, token, tokenSecret, callback, verifier,
+                System.currentTimeMillis() / 1000, null);
+    }
+    
+    String authorizationHeader(String method, String url, String token, String tokenSecret, String callback,
+            String verifier, long timestamp, String nonce) {
+        Scratch scratch = SCRATCH.get();
+        scratch.count = 0;
+        scratch.add("oauth_consumer_key", encodedConsumerKey);
+        scratch.add("oauth_nonce", percentEncode(nonce == null ? scratch.nonce() : nonce));
+        scratch.add("oauth_signature_method", SIGNATURE_METHOD);
+        scratch.add("oauth_timestamp", Long.toString(timestamp));
+        scratch.add("oauth_version", VERSION);
+        if (token != null) {
+            scratch.add("oauth_token", percentEncode(token));
+        }
+        if (callback != null) {
+            scratch.add("oauth_callback", percentEncode(callback));
+        }
+        if (verifier != null) {
+            scratch.add("oauth_verifier", percentEncode(verifier));
+        }
+        int queryStart = url.indexOf('?');
+        int fragmentStart = url.indexOf('#');
+        int uriEnd = queryStart >= 0 ? queryStart : fragmentStart >= 0 ? fragmentStart : url.length();
+        if (queryStart >= 0) {
+            int queryEnd = fragmentStart > queryStart ? fragmentStart : url.length();
+            addQueryParameters(scratch, url, queryStart + 1, queryEnd);
+        }
+        scratch.sort();
+        
+        StringBuilder text = scratch.text;
+        text.setLength(0);
+        text.append(method).append('&');
+        appendBaseUri(text, url, uriEnd);
+        text.append('&');
+        for (int i = 0; i < scratch.count; i++) {
+            if (i > 0) {
+                text.append("%26");
+            }
+            appendEncoded(text, scratch.names[i]);
+            text.append("%3D");
+            appendEncoded(text, scratch.values[i]);
+        }
+        int signatureLength = sign(scratch, tokenSecret);
+        
+        text.setLength(0);
+        text.append("OAuth ");
+        for (int i = 0; i < scratch.count; i++) {
+            if (scratch.names[i].startsWith("oauth_")) {
+                text.append(scratch.names[i]).append("=\"").append(scratch.values[i]).append("\", ");
+            }
+        }
+        text.append("oauth_signature=\"");
+        for (int i = 0; i < signatureLength; i++) {
+            appendEncoded(text, (char) scratch.signature[i]);
+        }
+        text.append('"');
+        return text.toString();
+    }
+    
+    /**
+     * Percent-encodes a value as required by RFC 5849, returning the value itself when nothing needs escaping
+     */
+    public static String percentEncode(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!isUnreserved(value.charAt(i))) {
+                StringBuilder encoded = new StringBuilder(value.length() + 16);
+                appendEncoded(encoded, value);
+                return encoded.toString();
+            }
+        }
+        return value;
+    }
+    
+    private int sign(Scratch scratch, String tokenSecret) {
+        StringBuilder text = scratch.text;
+        byte[] bytes = scratch.bytes(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        try {
+            Mac mac = scratch.mac;
+            mac.init(tokenSecret == null ? consumerKeySpec : tokenKeySpec(tokenSecret));
+            mac.update(bytes, 0, text.length());
+            mac.doFinal(scratch.digest, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to compute OAuth signature", e);
+        }
+        return Base64.getEncoder().encode(scratch.digest, scratch.signature);
+    }
+    
+    private SecretKeySpec tokenKeySpec(String tokenSecret) {
+        String key = encodedConsumerSecret + "&" + percentEncode(tokenSecret);
+        return new SecretKeySpec(key.getBytes(StandardCharsets.US_ASCII), HMAC_SHA1);
+    }
+    
+    private static void addQueryParameters(Scratch scratch, String url, int start, int end) {
+        int position = start;
+        while (position < end) {
+            int pairEnd = url.indexOf('&', position);
+            if (pairEnd < 0 || pairEnd > end) {
+                pairEnd = end;
+            }
+            if (pairEnd > position) {
+                int separator = url.indexOf('=', position);
+                if (separator < 0 || separator > pairEnd) {
+                    scratch.add(percentEncode(decode(url.substring(position, pairEnd))), "");
+                } else {
+                    scratch.add(percentEncode(decode(url.substring(position, separator))),
+                            percentEncode(decode(url.substring(separator + 1, pairEnd))));
+                }
+            }
+            position = pairEnd + 1;
+        }
+    }
+    
+    private static String decode(String value) {
+        return value.indexOf('%') < 0 && value.indexOf('+') < 0 ? value : URLDecoder.decode(value,
+                StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Appends the encoded base string URI: lower-case scheme and host, no default port, no query or fragment
+     */
+    private static void appendBaseUri(StringBuilder out, String url, int end) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0 || schemeEnd > end) {
+            appendEncoded(out, url.substring(0, end));
+            return;
+        }
+        int authorityEnd = url.indexOf('/', schemeEnd + 3);
+        if (authorityEnd < 0 || authorityEnd > end) {
+            authorityEnd = end;
+        }
+        String scheme = url.substring(0, schemeEnd);
+        int hostEnd = authorityEnd;
+        if (url.startsWith(":80", authorityEnd - 3) && "http".equalsIgnoreCase(scheme)
+                || url.startsWith(":443", authorityEnd - 4) && "https".equalsIgnoreCase(scheme)) {
+            hostEnd = url.lastIndexOf(':', authorityEnd);
+        }
+        for (int i = 0; i < hostEnd; i++) {
+            appendEncoded(out, Character.toLowerCase(url.charAt(i)));
+        }
+        if (authorityEnd == end) {
+            out.append("%2F");
+        }
+        for (int i = authorityEnd; i < end; i++) {
+            appendEncoded(out, url.charAt(i));
+        }
+    }
+    
+    private static void appendEncoded(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                appendEncoded(out, c);
+            } else {
+                int codePoint = value.codePointAt(i);
+                if (Character.isSupplementaryCodePoint(codePoint)) {
+                    i++;
+                }
+                appendUtf8(out, codePoint);
+            }
+        }
+    }
+    
+    private static void appendEncoded(StringBuilder out, char c) {
+        if (isUnreserved(c)) {
+            out.append(c);
+        } else {
+            appendEscaped(out, c);
+        }
+    }
+    
+    private static void appendUtf8(StringBuilder out, int codePoint) {
+        if (codePoint < 0x800) {
+            appendEscaped(out, 0xC0 | codePoint >> 6);
+            appendEscaped(out, 0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            appendEscaped(out, 0xE0 | codePoint >> 12);
+            appendEscaped(out, 0x80 | codePoint >> 6 & 0x3F);
+            appendEscaped(out, 0x80 | codePoint & 0x3F);
+        } else {
+            appendEscaped(out, 0xF0 | codePoint >> 18);
+            appendEscaped(out, 0x80 | codePoint >> 12 & 0x3F);
+            appendEscaped(out, 0x80 | codePoint >> 6 & 0x3F);
+            appendEscaped(out, 0x80 | codePoint & 0x3F);
+        }
+    }
+    
+    private static void appendEscaped(StringBuilder out, int octet) {
+        out.append('%').append(HEX[octet >> 4 & 0xF]).append(HEX[octet & 0xF]);
+    }
+    
+    private static boolean isUnreserved(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+    
+    /**
+     * Per-thread buffers reused across signatures
+     */
+    private static final class Scratch {
+        
+        private final Mac mac;
+        private final StringBuilder text = new StringBuilder(512);
+        private final byte[] digest = new byte[20];
+        private final byte[] signature = new byte[28];
+        private final char[] nonceChars = new char[32];
+        private final String[] names = new String[MAX_PARAMETERS];
+        private final String[] values = new String[MAX_PARAMETERS];
+        private byte[] bytes = new byte[512];
+        private int count;
+        
+        Scratch() {
+            try {
+                mac = Mac.getInstance(HMAC_SHA1);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA1 is not available", e);
+            }
+        }
+        
+        void add(String name, String value) {
+            if (count == MAX_PARAMETERS) {
+                throw new IllegalArgumentException("Too many OAuth parameters to sign");
+            }
+            names[count] = name;
+            values[count] = value;
+            count++;
+        }
+        
+        /**
+         * Insertion sort by name, then value; requests carry only a handful of parameters
+         */
+        void sort() {
+            for (int i = 1; i < count; i++) {
+                String name = names[i];
+                String value = values[i];
+                int j = i - 1;
+                while (j >= 0 && compare(names[j], values[j], name, value) > 0) {
+                    names[j + 1] = names[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                names[j + 1] = name;
+                values[j + 1] = value;
+            }
+        }
+        
+        byte[] bytes(int length) {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            return bytes;
+        }
+        
+        String nonce() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long high = random.nextLong();
+            long low = random.nextLong();
+            for (int i = 0; i < 16; i++) {
+                nonceChars[i] = NONCE_HEX[(int) (high >>> (60 - 4 * i)) & 0xF];
+                nonceChars[16 + i] = NONCE_HEX[(int) (low >>> (60 - 4 * i)) & 0xF];
+            }
+            return new String(nonceChars);
+        }
+        
+        private static int compare(String leftName, String leftValue, String rightName, String rightValue) {
+            int byName = leftName.compareTo(rightName);
+            return byName != 0 ? byName : leftValue.compareTo(rightValue);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduled task that refreshes the USOS attributes of users linked to USOS identity providers, so status changes
+ * reach Keycloak without the users logging in.
+ * <p>
+ * A run walks each provider's linked users a page at a time, resuming where the previous run stopped. Each page is
+ * read in one short transaction and written in another, so no transaction stays open while USOS answers. Profiles are
+ * fetched through USOS's multi-user method in batches, a bounded
+ * number at once, and go through the installation's rate limiter, circuit breaker and bulkhead like login calls.
+ * Only one node in the cluster runs the task at a time.
+ * <p>
+ * The multi-user method is called without a user's token, so USOS leaves out the fields only the user may read, such
+ * as the student number and statuses at some installations. A run therefore only updates the attributes the response
+ * carries and never removes the others; logins, which read the user's own profile, still remove them.
+ */
+public final class UsosProfileSync implements ScheduledTask, Closeable {
+    
+    public static final String TASK_NAME = "usos-profile-sync";
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_USERS_PER_RUN = 10000;
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosProfileSync.class);
+    private static final String LEASE_KEY = "usos-profile-sync:lease";
+    private static final String CHECKPOINT_KEY_PREFIX = "usos-profile-sync:checkpoint:";
+    private static final String CHECKPOINT_OFFSET = "offset";
+    private static final long CHECKPOINT_LIFESPAN_SECONDS = TimeUnit.DAYS.toSeconds(7);
+    
+    private final UsosIdentityProviderFactory factory;
+    private final long intervalSeconds;
+    private final int pageSize;
+    private final int batchSize;
+    private final int maxUsersPerRun;
+    private final ExecutorService fetchers;
+    
+    /**
+     * @param concurrency USOS calls the task makes at once
+     */
+    public UsosProfileSync(UsosIdentityProviderFactory factory, long intervalSeconds, int pageSize, int batchSize,
+            int concurrency, int maxUsersPerRun) {
+        this.factory = factory;
+        this.intervalSeconds = intervalSeconds;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.maxUsersPerRun = maxUsersPerRun;
+        AtomicInteger threads = new AtomicInteger();
+        this.fetchers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "usos-profile-sync-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Outcome of one page: the linked users read, those whose attributes changed, and whether it was the last page
+     */
+    record Page(int users, int updated, boolean last) {
+    }
+    
+    private record Provider(String realmId, String alias) {
+    }
+    
+    /**
+     * Linked users of one page, keyed by USOS user id, with the provider to fetch their profiles through
+     */
+    private record Batch(UsosIdentityProviderSnapshot snapshot, int offset, int size,
+            Map<String, String> userIdsByUsosId) {
+    }
+    
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+    
+    @Override
+    public void run(KeycloakSession session) {
+        // The lease lapses before the next run is due, so a node that died mid-run cannot block the task for good
+        if (!session.singleUseObjects().putIfAbsent(LEASE_KEY, Math.max(1, intervalSeconds - 1))) {
+            return;
+        }
+        List<Provider> providers = new ArrayList<>();
+        session.realms().getRealmsStream().forEach(realm -> {
+            session.getContext().setRealm(realm);
+            session.identityProviders().getAllStream()
+                    .filter(model -> UsosIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId())
+                            && model.isEnabled())
+                    .forEach(model -> providers.add(new Provider(realm.getId(), model.getAlias())));
+        });
+        
+        long start = System.nanoTime();
+        int users = 0;
+        int updated = 0;
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        try {
+            for (int i = 0; i < providers.size() && users < maxUsersPerRun; i++) {
+                Provider provider = providers.get(i);
+                Page page;
+                do {
+                    int limit = Math.min(pageSize, maxUsersPerRun - users);
+                    page = syncPage(sessionFactory, provider.realmId(), provider.alias(), limit);
+                    users += page.users();
+                    updated += page.updated();
+                } while (!page.last() && users < maxUsersPerRun);
+            }
+        } catch (RuntimeException e) {
+            // Progress is checkpointed per page, so the next run picks up from the page that failed
+            LOGGER.warnf("USOS profile sync stopped after %d users: %s", users, e.getMessage());
+            return;
+        }
+        LOGGER.infof("USOS profile sync checked %d users and updated %d in %d ms", users, updated,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    
+    /**
+     * Refreshes the next page of users linked to the provider and moves its checkpoint past them, back to the start
+     * after the last page
+     */
+    Page syncPage(KeycloakSessionFactory sessionFactory, String realmId, String alias, int limit) {
+        Batch batch = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> readPage(session, realmId, alias, limit));
+        if (batch == null) {
+            return new Page(0, 0, true);
+        }
+        Map<String, UsosUserProfile> profiles = cachedProfiles(batch);
+        List<String> uncached = batch.userIdsByUsosId().keySet().stream()
+                .filter(usosId -> !profiles.containsKey(usosId))
+                .toList();
+        profiles.putAll(fetchProfiles(batch.snapshot().getClient(), uncached));
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> writePage(session, realmId, alias, limit, batch, profiles));
+    }
+    
+    /**
+     * Reads the users of the page the checkpoint points at, or returns null if the provider cannot be synced
+     */
+    private Batch readPage(KeycloakSession session, String realmId, String alias, int limit) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return null;
+        }
+        session.getContext().setRealm(realm);
+        IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+        if (model == null || !model.isEnabled()) {
+            return null;
+        }
+        
+        UsosIdentityProviderSnapshot snapshot = factory.getSnapshot(session, model);
+        if (!snapshot.getClient().canFetchUserProfiles()) {
+            LOGGER.warnf("Skipping USOS profile sync of %s, which has neither a base URL nor a users URL", alias);
+            return null;
+        }
+        
+        Map<String, String> checkpoint = session.singleUseObjects().get(checkpointKey(realmId, alias));
+        int offset = checkpoint == null ? 0 : Integer.parseInt(checkpoint.get(CHECKPOINT_OFFSET));
+        List<UserModel> users = session.users()
+                .searchForUserStream(realm, Map.of(UserModel.IDP_ALIAS, alias), offset, limit)
+                .toList();
+        Map<String, String> userIdsByUsosId = new LinkedHashMap<>();
+        for (UserModel user : users) {
+            FederatedIdentityModel link = session.users().getFederatedIdentity(realm, user, alias);
+            if (link != null && link.getUserId() != null) {
+                userIdsByUsosId.put(link.getUserId(), user.getId());
+            }
+        }
+        return new Batch(snapshot, offset, users.size(), userIdsByUsosId);
+    }
+    
+    /**
+     * Writes the fetched profiles to the page's users and moves the checkpoint past the page
+     */
+    private Page writePage(KeycloakSession session, String realmId, String alias, int limit, Batch batch,
+            Map<String, UsosUserProfile> profiles) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return new Page(batch.size(), 0, true);
+        }
+        session.getContext().setRealm(realm);
+        
+        List<String> attributeNames = batch.snapshot().getClient().getAttributeMapping().attributeNames();
+        int updated = 0;
+        for (Map.Entry<String, String> linked : batch.userIdsByUsosId().entrySet()) {
+            UsosUserProfile profile = profiles.get(linked.getKey());
+            // The user may have been removed while USOS answered
+            UserModel user = profile == null ? null : session.users().getUserById(realm, linked.getValue());
+            if (user == null) {
+                continue;
+            }
+            List<String> returned = attributeNames.stream().filter(profile.attributes()::containsKey).toList();
+            if (UsosIdentityProvider.applyAttributes(user, profile.attributes(), returned)) {
+                updated++;
+            }
+        }
+        
+        boolean last = batch.size() < limit;
+        session.singleUseObjects().put(checkpointKey(realmId, alias), CHECKPOINT_LIFESPAN_SECONDS,
+                Map.of(CHECKPOINT_OFFSET, String.valueOf(last ? 0 : batch.offset() + batch.size())));
+        return new Page(batch.size(), updated, last);
+    }
+    
+    private static String checkpointKey(String realmId, String alias) {
+        return CHECKPOINT_KEY_PREFIX + realmId + ":" + alias;
+    }
+    
+    /**
+     * Profiles that recent logins of the page's users cached, which the sync need not fetch again
+     */
+    private static Map<String, UsosUserProfile> cachedProfiles(Batch batch) {
+        Map<String, UsosUserProfile> profiles = new HashMap<>();
+        UsosUserInfoCache userInfoCache = batch.snapshot().getUserInfoCache();
+        if (userInfoCache == null) {
+            return profiles;
+        }
+        String installation = batch.snapshot().getInstallation();
+        UsosAttributeMapping mapping = batch.snapshot().getClient().getAttributeMapping();
+        for (String usosId : batch.userIdsByUsosId().keySet()) {
+            String userInfo = userInfoCache.get(installation, usosId);
+            if (userInfo == null) {
+                continue;
+            }
+            try {
+                profiles.put(usosId, UsosUserProfile.read(userInfo, mapping));
+            } catch (IOException e) {
+                LOGGER.debugf("Ignoring unreadable cached USOS profile of %s: %s", usosId, e.getMessage());
+            }
+        }
+        return profiles;
+    }
+    
+    private Map<String, UsosUserProfile> fetchProfiles(UsosOAuthClient client, List<String> userIds) {
+        List<CompletableFuture<Map<String, UsosUserProfile>>> batches = new ArrayList<>();
+        for (int from = 0; from < userIds.size(); from += batchSize) {
+            List<String> batch = userIds.subList(from, Math.min(from + batchSize, userIds.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> fetchBatch(client, batch), fetchers));
+        }
+        Map<String, UsosUserProfile> profiles = new HashMap<>();
+        try {
+            for (CompletableFuture<Map<String, UsosUserProfile>> batch : batches) {
+                profiles.putAll(batch.join());
+            }
+        } catch (CompletionException e) {
+            batches.forEach(batch -> batch.cancel(false));
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        return profiles;
+    }
+    
+    private static Map<String, UsosUserProfile> fetchBatch(UsosOAuthClient client, List<String> userIds) {
+        try {
+            return client.fetchUserProfiles(userIds);
+        } catch (IOException e) {
+            if (UsosUnavailableException.isUnavailable(e) || UsosTimeoutException.isTimeout(e)) {
+                // USOS is struggling, so stop the run rather than keep calling it
+                throw new IllegalStateException("USOS is unavailable: " + e.getMessage(), e);
+            }
+            LOGGER.warnf("Skipping %d users in USOS profile sync: %s", userIds.size(), e.getMessage());
+            return Map.of();
+        }
+    }
+    
+    @Override
+    public void close() {
+        fetchers.shutdownNow();
+    }
+}
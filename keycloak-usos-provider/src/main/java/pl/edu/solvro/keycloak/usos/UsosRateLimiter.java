@@ -0,0 +1,113 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket holding the calls made with one USOS consumer key under its request quota.
+ * <p>
+ * Calls over the rate wait their turn in arrival order, as long as that turn comes within the maximum wait; later
+ * calls are refused instead. Every Keycloak node in the cluster takes an equal share of the rate and burst, so the
+ * cluster as a whole stays within the quota without coordinating each call.
+ */
+public final class UsosRateLimiter {
+    
+    public static final int DEFAULT_MAX_WAIT_MILLIS = 2000;
+    
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLUSTER_SIZE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    private final String consumerKey;
+    private final int permitsPerSecond;
+    private final int burst;
+    private final long maxWaitNanos;
+    private final IntSupplier clusterSize;
+    private final LongSupplier nanoClock;
+    
+    private double nodePermitsPerNano;
+    private double nodeBurst;
+    private double storedPermits;
+    private long lastRefill;
+    private long clusterSizeCheckedAt;
+    
+    /**
+     * @param permitsPerSecond calls per second allowed for the consumer key across the cluster
+     * @param burst            calls allowed at once after a quiet period, across the cluster
+     * @param clusterSize      number of Keycloak nodes sharing the quota, read again every few seconds
+     */
+    public UsosRateLimiter(String consumerKey, int permitsPerSecond, int burst, int maxWaitMillis,
+            IntSupplier clusterSize) {
+        this(consumerKey, permitsPerSecond, burst, maxWaitMillis, clusterSize, System::nanoTime);
+    }
+    
+    UsosRateLimiter(String consumerKey, int permitsPerSecond, int burst, int maxWaitMillis, IntSupplier clusterSize,
+            LongSupplier nanoClock) {
+        this.consumerKey = consumerKey;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.clusterSize = clusterSize;
+        this.nanoClock = nanoClock;
+        this.lastRefill = nanoClock.getAsLong();
+        updateNodeShare(lastRefill);
+        this.storedPermits = nodeBurst;
+    }
+    
+    /**
+     * Waits until the call may be made
+     *
+     * @throws UsosUnavailableException if its turn would come later than the maximum wait
+     */
+    public void acquire() throws InterruptedIOException, UsosUnavailableException {
+        long waitNanos = reserve();
+        if (waitNanos < 0) {
+            throw new UsosUnavailableException("USOS request rate for consumer " + consumerKey
+                    + " is over its limit of " + permitsPerSecond + " per second");
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the USOS request rate limit");
+            }
+        }
+    }
+    
+    /**
+     * Takes a permit and returns how long to wait before using it, or -1 without taking one when the wait would
+     * exceed the maximum
+     */
+    synchronized long reserve() {
+        long now = nanoClock.getAsLong();
+        if (now - clusterSizeCheckedAt >= CLUSTER_SIZE_REFRESH_NANOS) {
+            updateNodeShare(now);
+        }
+        storedPermits = Math.min(nodeBurst, storedPermits + (now - lastRefill) * nodePermitsPerNano);
+        lastRefill = now;
+        if (storedPermits >= 1) {
+            storedPermits--;
+            return 0;
+        }
+        // A negative balance is the queue of calls already promised a later turn
+        long waitNanos = (long) Math.ceil((1 - storedPermits) / nodePermitsPerNano);
+        if (waitNanos > maxWaitNanos) {
+            return -1;
+        }
+        storedPermits--;
+        return waitNanos;
+    }
+    
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+    
+    private void updateNodeShare(long now) {
+        int nodes = Math.max(1, clusterSize.getAsInt());
+        nodePermitsPerNano = (double) permitsPerSecond / nodes / NANOS_PER_SECOND;
+        nodeBurst = Math.max(1.0, (double) burst / nodes);
+        clusterSizeCheckedAt = now;
+    }
+}
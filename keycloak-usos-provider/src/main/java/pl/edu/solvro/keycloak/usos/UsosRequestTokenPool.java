@@ -0,0 +1,105 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded pool of request tokens issued ahead of time by USOS for a fixed callback URL
+ */
+public final class UsosRequestTokenPool {
+    
+    /**
+     * Issues a single request token against USOS
+     */
+    @FunctionalInterface
+    public interface TokenSource {
+        RequestToken fetch() throws Exception;
+    }
+    
+    /**
+     * Request token together with the USOS authorization URL the browser should be sent to
+     */
+    public record RequestToken(String token, String tokenSecret, String authorizationUrl,
+            long issuedAtMillis) {
+    }
+    
+    private final Deque<RequestToken> tokens = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongSupplier clock;
+    
+    private volatile int capacity;
+    private volatile int refillPerTick;
+    private volatile long ttlMillis;
+    private volatile TokenSource source;
+    private volatile long lastUsedMillis;
+    
+    public UsosRequestTokenPool(int capacity, int refillPerTick, long ttlMillis, TokenSource source,
+            LongSupplier clock) {
+        this.clock = clock;
+        this.lastUsedMillis = clock.getAsLong();
+        reconfigure(capacity, refillPerTick, ttlMillis, source);
+    }
+    
+    /**
+     * Applies the latest provider settings; tokens already pooled stay valid until they expire
+     */
+    public void reconfigure(int newCapacity, int newRefillPerTick, long newTtlMillis, TokenSource newSource) {
+        this.capacity = newCapacity;
+        this.refillPerTick = newRefillPerTick;
+        this.ttlMillis = newTtlMillis;
+        this.source = newSource;
+    }
+    
+    /**
+     * Hands out the oldest unexpired token, or null when the pool is empty
+     */
+    public RequestToken poll() {
+        long now = clock.getAsLong();
+        lastUsedMillis = now;
+        RequestToken token;
+        while ((token = tokens.pollFirst()) != null) {
+            size.decrementAndGet();
+            if (!isExpired(token, now)) {
+                return token;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Drops expired tokens and issues up to the per-tick refill budget of new ones
+     *
+     * @return number of tokens added
+     */
+    public int refill() throws Exception {
+        long now = clock.getAsLong();
+        RequestToken oldest;
+        while ((oldest = tokens.peekFirst()) != null && isExpired(oldest, now)) {
+            if (tokens.remove(oldest)) {
+                size.decrementAndGet();
+            }
+        }
+        
+        int added = 0;
+        while (added < refillPerTick && size.get() < capacity) {
+            tokens.addLast(source.fetch());
+            size.incrementAndGet();
+            added++;
+        }
+        return added;
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+    
+    private boolean isExpired(RequestToken token, long now) {
+        return now - token.issuedAtMillis() >= ttlMillis;
+    }
+}
@@ -0,0 +1,65 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of request-token pools, one per provider and callback URL, refilled in the background
+ */
+public final class UsosRequestTokenPools implements Closeable {
+    
+    private static final Logger LOGGER = Logger.getLogger(UsosRequestTokenPools.class);
+    private static final long IDLE_POOL_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    
+    private final Map<String, UsosRequestTokenPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refiller;
+    
+    public UsosRequestTokenPools() {
+        this.refiller = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "usos-request-token-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refiller.scheduleWithFixedDelay(this::refillAll, 1, 1, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Returns the pool for the given key, creating it on first use and applying the current settings
+     */
+    public UsosRequestTokenPool pool(String key, int capacity, int refillPerSecond, int ttlSeconds,
+            UsosRequestTokenPool.TokenSource source) {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        UsosRequestTokenPool pool = pools.computeIfAbsent(key, k -> new UsosRequestTokenPool(
+                capacity, refillPerSecond, ttlMillis, source, System::currentTimeMillis));
+        pool.reconfigure(capacity, refillPerSecond, ttlMillis, source);
+        return pool;
+    }
+    
+    void refillAll() {
+        long now = System.currentTimeMillis();
+        pools.forEach((key, pool) -> {
+            if (now - pool.getLastUsedMillis() > IDLE_POOL_EXPIRY_MILLIS) {
+                // Stop issuing tokens for providers nobody logs in through
+                pools.remove(key, pool);
+                return;
+            }
+            try {
+                pool.refill();
+            } catch (Exception e) {
+                LOGGER.warnf(e, "Failed to prefetch USOS request tokens for %s, pool has %d left", key, pool.size());
+            }
+        });
+    }
+    
+    @Override
+    public void close() {
+        refiller.shutdownNow();
+        pools.clear();
+    }
+}
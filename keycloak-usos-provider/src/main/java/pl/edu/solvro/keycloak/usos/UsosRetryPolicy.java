@@ -0,0 +1,81 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a failed USOS call is sent again, and after how long.
+ * <p>
+ * Every attempt is signed anew, with a fresh nonce and timestamp. A call USOS refused for its timestamp or nonce, or
+ * one that never reached USOS, is retried on any leg. Connection resets and 5xx answers may come after USOS acted on
+ * the call, so they are only retried on legs that are safe to repeat, never on the verifier exchange. Calls refused
+ * by the circuit breaker, bulkhead or rate limiter and calls past their deadline are not retried. Retries wait a
+ * jittered, exponentially growing backoff and only start within the total time budget.
+ */
+public final class UsosRetryPolicy {
+    
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_BUDGET_MILLIS = 3000;
+    public static final int BASE_BACKOFF_MILLIS = 100;
+    public static final int MAX_BACKOFF_MILLIS = 1000;
+    
+    private final int maxAttempts;
+    private final long budgetNanos;
+    
+    /**
+     * @param maxAttempts  attempts per call including the first, so 1 turns retries off
+     * @param budgetMillis time from the first attempt after which no retry starts
+     */
+    public UsosRetryPolicy(int maxAttempts, int budgetMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+    
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    
+    /**
+     * Returns how long to wait before the next attempt, or -1 if the call is not retried
+     *
+     * @param attempt    the attempt that failed, starting at 1
+     * @param startNanos {@link System#nanoTime()} reading taken before the first attempt
+     * @param repeatable whether the call is safe to send again after USOS may have acted on it
+     */
+    long retryDelayMillis(IOException failure, int attempt, long startNanos, boolean repeatable) {
+        if (attempt >= maxAttempts || !isRetryable(failure, repeatable)) {
+            return -1;
+        }
+        // Full jitter keeps nodes that failed together from retrying together
+        long cap = Math.min(MAX_BACKOFF_MILLIS, (long) BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        long elapsed = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delay);
+        return elapsed < budgetNanos ? delay : -1;
+    }
+    
+    /**
+     * Tells whether the failure is transient and retrying cannot repeat an action USOS has already taken
+     */
+    static boolean isRetryable(IOException failure, boolean repeatable) {
+        if (UsosUnavailableException.isUnavailable(failure)) {
+            return false;
+        }
+        if (failure instanceof UsosOAuthClient.StatusException status) {
+            // USOS checks the timestamp and nonce before it looks at the call
+            return status.isSignatureRefused() || repeatable && status.getStatus() >= 500;
+        }
+        if (failure instanceof ConnectException || failure instanceof ConnectTimeoutException) {
+            return true;
+        }
+        if (UsosTimeoutException.isTimeout(failure)) {
+            return false;
+        }
+        return repeatable && (failure instanceof NoHttpResponseException || failure instanceof SocketException);
+    }
+}
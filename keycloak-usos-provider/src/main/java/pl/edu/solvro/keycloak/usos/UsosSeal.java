@@ -0,0 +1,89 @@
+package pl.edu.solvro.keycloak.usos;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.function.Function;
+
+/**
+ * AES-GCM sealing of values the provider hands to the browser or to the cluster, with a realm AES key.
+ * <p>
+ * A sealed value is bound to a context, such as one identity provider, so it cannot be opened in another. It names
+ * the key it was sealed with, which keeps it valid across a key rotation for as long as the old key is kept.
+ */
+final class UsosSeal {
+    
+    private static final byte VERSION = 1;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    
+    private UsosSeal() {
+    }
+    
+    /**
+     * Encrypts the plaintext with the key, binding it to the given context
+     */
+    static String seal(byte[] plaintext, String kid, SecretKey key, String binding) throws GeneralSecurityException {
+        byte[] kidBytes = kid.getBytes(StandardCharsets.UTF_8);
+        if (kidBytes.length > Byte.MAX_VALUE) {
+            throw new GeneralSecurityException("Key id is too long to seal with");
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(binding.getBytes(StandardCharsets.UTF_8));
+        byte[] ciphertext = cipher.doFinal(plaintext);
+        
+        return ENCODER.encodeToString(ByteBuffer.allocate(2 + kidBytes.length + IV_LENGTH + ciphertext.length)
+                .put(VERSION)
+                .put((byte) kidBytes.length)
+                .put(kidBytes)
+                .put(iv)
+                .put(ciphertext)
+                .array());
+    }
+    
+    /**
+     * Decrypts a sealed value
+     *
+     * @param keys    looks up the AES key by its id, returning null for an unknown one
+     * @param binding the context the value must have been sealed for
+     * @return the plaintext, or null if the value is malformed, was sealed for another context or with an unknown
+     *         key, or has been altered
+     */
+    static byte[] open(String sealed, Function<String, SecretKey> keys, String binding) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(DECODER.decode(sealed));
+            if (buffer.get() != VERSION) {
+                return null;
+            }
+            byte[] kid = new byte[buffer.get()];
+            buffer.get(kid);
+            byte[] iv = new byte[IV_LENGTH];
+            buffer.get(iv);
+            SecretKey key = keys.apply(new String(kid, StandardCharsets.UTF_8));
+            if (key == null) {
+                return null;
+            }
+            
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(binding.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(buffer.array(), buffer.position(), buffer.remaining());
+        } catch (GeneralSecurityException | IllegalArgumentException | BufferUnderflowException
+                | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a call to USOS exceeds its overall deadline and is aborted
+ */
+public class UsosTimeoutException extends InterruptedIOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public UsosTimeoutException(String message) {
+        super(message);
+    }
+    
+    /**
+     * Tells whether the failure was caused by a connect, read, pool or overall timeout anywhere in its cause chain
+     */
+    public static boolean isTimeout(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
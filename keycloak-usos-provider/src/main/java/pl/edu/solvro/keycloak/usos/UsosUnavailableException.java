@@ -0,0 +1,27 @@
+package pl.edu.solvro.keycloak.usos;
+
+import java.io.IOException;
+
+/**
+ * Thrown without contacting USOS when its circuit breaker is open or too many calls to it are already in flight
+ */
+public class UsosUnavailableException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public UsosUnavailableException(String message) {
+        super(message);
+    }
+    
+    /**
+     * Tells whether the failure was a call refused by the circuit breaker or bulkhead anywhere in its cause chain
+     */
+    public static boolean isUnavailable(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UsosUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cluster-wide cache of USOS user-info responses kept in Keycloak's Infinispan.
+ * <p>
+ * Logins store the profile they fetched under its USOS user id and installation. A login itself never reads it back,
+ * as USOS issues a new access token for every login and the user id is only known once the profile is fetched. The
+ * profile sync, which walks users by their USOS user id, reads it instead and skips the USOS call for users who
+ * logged in recently.
+ */
+public final class UsosUserInfoCache {
+    
+    public static final String CACHE_NAME = "usosUserInfo";
+    public static final long DEFAULT_MAX_ENTRIES = 10000;
+    
+    private final Cache<String, String> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    public UsosUserInfoCache(Cache<String, String> cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Defines the cache in the given cache manager if needed, distributed across the cluster when it is clustered
+     */
+    public static UsosUserInfoCache create(EmbeddedCacheManager cacheManager, long maxEntries) {
+        synchronized (cacheManager) {
+            if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+                ConfigurationBuilder builder = new ConfigurationBuilder();
+                if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+                    builder.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(2);
+                }
+                builder.memory().maxCount(maxEntries).whenFull(EvictionStrategy.REMOVE);
+                cacheManager.defineConfiguration(CACHE_NAME, builder.build());
+            }
+        }
+        return new UsosUserInfoCache(cacheManager.getCache(CACHE_NAME));
+    }
+    
+    /**
+     * Returns the cached user-info JSON of the USOS user, or null on a miss
+     */
+    public String get(String installation, String userId) {
+        String userInfo = cache.get(key(installation, userId));
+        if (userInfo == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return userInfo;
+    }
+    
+    public void put(String installation, String userId, String userInfo, long ttlSeconds) {
+        cache.put(key(installation, userId), userInfo, ttlSeconds, TimeUnit.SECONDS);
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    private static String key(String installation, String userId) {
+        return installation + "|" + userId;
+    }
+}
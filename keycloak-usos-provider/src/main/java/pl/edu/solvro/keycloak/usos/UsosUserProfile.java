@@ -0,0 +1,231 @@
+package pl.edu.solvro.keycloak.usos;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The USOS profile fields the provider maps, read with Jackson's streaming parser so no tree is built per login.
+ * <p>
+ * Besides the fixed identity fields, a profile carries the user attribute values its provider's
+ * {@link UsosAttributeMapping} extracted while the response was read.
+ */
+public record UsosUserProfile(String id, String firstName, String lastName, String email, String studentNumber,
+        String staffStatus, String studentStatus, Map<String, List<String>> attributes) {
+
+    /**
+     * USOS {@code fields} selector for exactly the fields this record holds
+     */
+    public static final String FIELDS = "id|first_name|last_name|email|student_number|staff_status|student_status";
+
+    /**
+     * Upper bound on a user-info response; a profile limited to {@link #FIELDS} is well under a kilobyte
+     */
+    public static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+    /**
+     * Field holding the mapped attribute values in the cached form of a profile; USOS itself never returns it
+     */
+    static final String CACHED_ATTRIBUTES_FIELD = "keycloak_attributes";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public UsosUserProfile {
+        attributes = attributes == null ? Map.of() : Map.copyOf(attributes);
+    }
+
+    /**
+     * A profile with the attributes the default mapping takes from its status fields
+     */
+    public UsosUserProfile(String id, String firstName, String lastName, String email, String studentNumber,
+            String staffStatus, String studentStatus) {
+        this(id, firstName, lastName, email, studentNumber, staffStatus, studentStatus,
+                defaultAttributes(studentNumber, staffStatus, studentStatus));
+    }
+
+    private static Map<String, List<String>> defaultAttributes(String studentNumber, String staffStatus,
+            String studentStatus) {
+        Map<String, List<String>> attributes = new HashMap<>(4);
+        if (studentNumber != null) {
+            attributes.put("student_number", List.of(studentNumber));
+        }
+        if (staffStatus != null) {
+            attributes.put("staff_status", List.of(staffStatus));
+        }
+        if (studentStatus != null) {
+            attributes.put("student_status", List.of(studentStatus));
+        }
+        return attributes;
+    }
+
+    public static UsosUserProfile read(InputStream json) throws IOException {
+        return read(json, UsosAttributeMapping.DEFAULT);
+    }
+
+    public static UsosUserProfile read(InputStream json, UsosAttributeMapping mapping) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            return read(parser, mapping);
+        }
+    }
+
+    public static UsosUserProfile read(String json) throws IOException {
+        return read(json, UsosAttributeMapping.DEFAULT);
+    }
+
+    public static UsosUserProfile read(String json, UsosAttributeMapping mapping) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            return read(parser, mapping);
+        }
+    }
+
+    /**
+     * Reads a {@code services/users/users} response, which maps each requested user id to a profile, or to null
+     * for an id USOS does not know
+     */
+    public static Map<String, UsosUserProfile> readAll(InputStream json) throws IOException {
+        return readAll(json, UsosAttributeMapping.DEFAULT);
+    }
+    
+    public static Map<String, UsosUserProfile> readAll(InputStream json, UsosAttributeMapping mapping)
+            throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "USOS users response is not a JSON object");
+            }
+            Map<String, UsosUserProfile> profiles = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String userId = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    profiles.put(userId, readFields(parser, mapping));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return profiles;
+        }
+    }
+
+    /**
+     * Serializes the profile back to USOS field names, as stored in the user-info cache
+     */
+    public String toJson() throws IOException {
+        StringWriter json = new StringWriter(256);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+            generator.writeStartObject();
+            writeField(generator, "id", id);
+            writeField(generator, "first_name", firstName);
+            writeField(generator, "last_name", lastName);
+            writeField(generator, "email", email);
+            writeField(generator, "student_number", studentNumber);
+            writeField(generator, "staff_status", staffStatus);
+            writeField(generator, "student_status", studentStatus);
+            generator.writeObjectFieldStart(CACHED_ATTRIBUTES_FIELD);
+            for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                generator.writeArrayFieldStart(attribute.getKey());
+                for (String value : attribute.getValue()) {
+                    generator.writeString(value);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return json.toString();
+    }
+
+    private static UsosUserProfile read(JsonParser parser, UsosAttributeMapping mapping) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "USOS user info is not a JSON object");
+        }
+        return readFields(parser, mapping);
+    }
+
+    private static UsosUserProfile readFields(JsonParser parser, UsosAttributeMapping mapping) throws IOException {
+        UsosAttributeMapping.Values values = mapping.newValues();
+        Map<String, List<String>> cachedAttributes = null;
+        String id = null;
+        String firstName = null;
+        String lastName = null;
+        String email = null;
+        String studentNumber = null;
+        String staffStatus = null;
+        String studentStatus = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT && CACHED_ATTRIBUTES_FIELD.equals(name)) {
+                cachedAttributes = readCachedAttributes(parser);
+                continue;
+            }
+            // The mapping takes what it needs; fields it does not map are skipped without materializing them
+            values.read(name, parser);
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                continue;
+            }
+            String value = token == JsonToken.VALUE_NULL ? null : parser.getText();
+            switch (name) {
+                case "id":
+                    id = value;
+                    break;
+                case "first_name":
+                    firstName = value;
+                    break;
+                case "last_name":
+                    lastName = value;
+                    break;
+                case "email":
+                    email = value;
+                    break;
+                case "student_number":
+                    studentNumber = value;
+                    break;
+                case "staff_status":
+                    staffStatus = value;
+                    break;
+                case "student_status":
+                    studentStatus = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (id == null) {
+            throw new JsonParseException(parser, "USOS user info does not contain an id");
+        }
+        return new UsosUserProfile(id, firstName, lastName, email, studentNumber, staffStatus, studentStatus,
+                cachedAttributes != null ? cachedAttributes : values.toMap());
+    }
+
+    private static Map<String, List<String>> readCachedAttributes(JsonParser parser) throws IOException {
+        Map<String, List<String>> attributes = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            List<String> attributeValues = new ArrayList<>(1);
+            while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                attributeValues.add(parser.getText());
+            }
+            attributes.put(name, attributeValues);
+        }
+        return attributes;
+    }
+
+    private static void writeField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+}
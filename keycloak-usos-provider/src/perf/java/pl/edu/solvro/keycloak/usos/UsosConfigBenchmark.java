@@ -0,0 +1,74 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.models.IdentityProviderModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Endpoint URL resolution from the raw config map against reuse and recompilation of the provider snapshot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsosConfigBenchmark {
+
+    private final UsosIdentityProviderFactory factory = new UsosIdentityProviderFactory();
+    private IdentityProviderModel model;
+    private UsosIdentityProviderConfig config;
+
+    @Setup
+    public void setUp() {
+        factory.init(null);
+        model = UsosLoginDriver.model("https://usosapps.pwr.edu.pl");
+        config = new UsosIdentityProviderConfig(model);
+        UsosLoginDriver.create(factory, model);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+    }
+
+    /**
+     * Resolves every endpoint URL from the config map, as each login did before snapshots
+     */
+    @Benchmark
+    public void resolveUrls(Blackhole blackhole) {
+        blackhole.consume(config.getRequestTokenUrl());
+        blackhole.consume(config.getAuthorizationUrl());
+        blackhole.consume(config.getAccessTokenUrl());
+        blackhole.consume(config.getUserInfoUrl());
+    }
+
+    /**
+     * Creates a provider from the cached snapshot, as every login does
+     */
+    @Benchmark
+    public UsosIdentityProvider createProvider() {
+        return UsosLoginDriver.create(factory, model);
+    }
+
+    /**
+     * Compiles a snapshot from scratch, as after the provider's configuration has changed
+     */
+    @Benchmark
+    public UsosIdentityProviderSnapshot compileSnapshot() {
+        return UsosIdentityProviderSnapshot.builder(new UsosIdentityProviderConfig(model),
+                factory.getTransport(config), factory.getSigner(config)).build();
+    }
+}
@@ -0,0 +1,191 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.apache.http.pool.PoolStats;
+import org.keycloak.Config;
+import org.keycloak.models.IdentityProviderModel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives many concurrent logins through one provider against {@link UsosStubServer} and reports latency
+ * percentiles, throughput, and thread and connection usage.
+ * <p>
+ * Runs offline with: {@code mvn -Pperf test-compile exec:exec -Dperf.main=pl.edu.solvro.keycloak.usos.UsosLoadGenerator
+ * -Dperf.args="--logins=20000 --concurrency=2000 --latency-ms=40"}. Options that are not the generator's own, such
+ * as {@code --max-connections-per-route=400}, are passed to the provider factory as SPI settings.
+ */
+public final class UsosLoadGenerator {
+
+    private static final String SPI_PROPERTY_PREFIX = "usos.load.spi.";
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+    static {
+        // Keycloak's log manager is on the classpath and must be installed before the first logger is created
+        System.setProperty("java.util.logging.manager", "org.jboss.logmanager.LogManager");
+    }
+
+    private static final Logger PROVIDER_LOGGER = Logger.getLogger(UsosLoadGenerator.class.getPackageName());
+
+    private final int logins;
+    private final int concurrency;
+    private final int warmup;
+    private final long[] latencies;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder succeeded = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private volatile int peakLeased;
+    private volatile int peakPending;
+    private volatile int peakThreads;
+
+    private UsosLoadGenerator(int logins, int concurrency, int warmup) {
+        this.logins = logins;
+        this.concurrency = concurrency;
+        this.warmup = warmup;
+        this.latencies = new long[logins];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        UsosLoadGenerator generator = new UsosLoadGenerator(intOption(options, "logins", 10000),
+                intOption(options, "concurrency", 500), intOption(options, "warmup", 1000));
+        int latencyMillis = intOption(options, "latency-ms", 40);
+        int jitterMillis = intOption(options, "jitter-ms", 20);
+        double errorRate = Double.parseDouble(options.getOrDefault("error-rate", "0"));
+        options.keySet().removeAll(List.of("logins", "concurrency", "warmup", "latency-ms", "jitter-ms",
+                "error-rate"));
+        // Anything else tunes the provider, e.g. --max-connections-per-route=400 becomes maxConnectionsPerRoute
+        options.forEach((name, value) -> System.setProperty(SPI_PROPERTY_PREFIX + camelCase(name), value));
+
+        // Failed logins are counted in the report; a logged stack trace per injected error would only slow the run
+        PROVIDER_LOGGER.setLevel(Level.OFF);
+
+        System.out.printf(Locale.ROOT, "USOS login load test: %d logins, %d concurrent, stub latency %d+%d ms,"
+                + " error rate %.1f%%%n", generator.logins, generator.concurrency, latencyMillis, jitterMillis,
+                errorRate * 100);
+        UsosIdentityProviderFactory factory = new UsosIdentityProviderFactory();
+        factory.init(new Config.SystemPropertiesScope(SPI_PROPERTY_PREFIX));
+        try (UsosStubServer usos = new UsosStubServer(latencyMillis, jitterMillis, errorRate)) {
+            IdentityProviderModel model = UsosLoginDriver.model(usos.getBaseUrl());
+            UsosHttpTransport transport = factory.getTransport(new UsosIdentityProviderConfig(model));
+            UsosLoginDriver driver = new UsosLoginDriver(UsosLoginDriver.create(factory, model));
+            generator.run(driver, transport);
+        } finally {
+            factory.close();
+        }
+    }
+
+    private void run(UsosLoginDriver driver, UsosHttpTransport transport) throws InterruptedException {
+        for (int i = 0; i < warmup; i++) {
+            try {
+                driver.login();
+            } catch (Exception e) {
+                // Injected errors are expected while warming up too
+            }
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            PoolStats pool = transport.getPoolStats();
+            peakLeased = Math.max(peakLeased, pool.getLeased());
+            peakPending = Math.max(peakPending, pool.getPending());
+            peakThreads = Math.max(peakThreads, threads.getThreadCount());
+        }, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    loginUntilDone(driver);
+                } finally {
+                    done.countDown();
+                }
+            }, "usos-load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+        sampler.shutdownNow();
+
+        report(elapsedNanos, transport.getPoolStats().getMax());
+    }
+
+    private void loginUntilDone(UsosLoginDriver driver) {
+        int login;
+        while ((login = next.getAndIncrement()) < logins) {
+            long start = System.nanoTime();
+            try {
+                driver.login();
+                latencies[login] = System.nanoTime() - start;
+                succeeded.increment();
+            } catch (Exception e) {
+                latencies[login] = -1;
+                failures.computeIfAbsent(String.valueOf(e.getMessage()), message -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private void report(long elapsedNanos, int maxConnections) {
+        long[] sorted = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "Completed    %d ok, %d failed in %.2f s%n", succeeded.sum(),
+                logins - succeeded.sum(), seconds);
+        System.out.printf(Locale.ROOT, "Throughput   %.1f logins/s%n", logins / seconds);
+        if (sorted.length > 0) {
+            System.out.printf(Locale.ROOT, "Latency      p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms%n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+        System.out.printf(Locale.ROOT, "Threads      %d workers, peak %d live%n", concurrency, peakThreads);
+        System.out.printf(Locale.ROOT, "Connections  peak %d leased of %d, peak %d waiting for one%n", peakLeased,
+                maxConnections, peakPending);
+        failures.forEach((message, count) -> System.out.printf(Locale.ROOT, "Failure      %d x %s%n", count.sum(),
+                message));
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String camelCase(String kebabCase) {
+        StringBuilder name = new StringBuilder(kebabCase.length());
+        boolean upper = false;
+        for (char c : kebabCase.toCharArray()) {
+            if (c == '-') {
+                upper = true;
+            } else {
+                name.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return name.toString();
+    }
+}
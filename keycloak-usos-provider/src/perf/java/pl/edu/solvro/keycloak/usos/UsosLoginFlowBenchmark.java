@@ -0,0 +1,53 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete login, from performLogin through the callback, against an in-process USOS stub answering at once.
+ * <p>
+ * The figure includes the loopback HTTP round trips, so it bounds the provider's own cost from above.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsosLoginFlowBenchmark {
+
+    private final UsosIdentityProviderFactory factory = new UsosIdentityProviderFactory();
+    private UsosStubServer usos;
+    private UsosLoginDriver driver;
+
+    @Setup
+    public void setUp() throws IOException {
+        factory.init(null);
+        usos = new UsosStubServer(0, 0, 0);
+        driver = new UsosLoginDriver(UsosLoginDriver.create(factory, UsosLoginDriver.model(usos.getBaseUrl())));
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+        usos.close();
+    }
+
+    @Benchmark
+    public BrokeredIdentityContext login() throws IOException {
+        return driver.login();
+    }
+}
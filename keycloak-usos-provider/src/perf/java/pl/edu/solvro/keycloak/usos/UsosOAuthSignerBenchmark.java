@@ -0,0 +1,48 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Authorization header for each of the three signed OAuth legs of a login
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsosOAuthSignerBenchmark {
+
+    private static final String BASE_URL = "https://usosapps.pwr.edu.pl";
+
+    private final UsosOAuthSigner signer = new UsosOAuthSigner(UsosLoginDriver.CONSUMER_KEY,
+            UsosLoginDriver.CONSUMER_SECRET);
+
+    @Benchmark
+    public String requestTokenLeg() {
+        return signer.authorizationHeader("POST", BASE_URL + "/services/oauth/request_token", null, null,
+                UsosLoginDriver.REDIRECT_URI + "?state=perf.perf-tab.perf-client", null);
+    }
+
+    @Benchmark
+    public String accessTokenLeg() {
+        return signer.authorizationHeader("POST", BASE_URL + "/services/oauth/access_token", "rt1Hs9dPq2LmX",
+                "rts8GfK2wQz", null, "41781603");
+    }
+
+    @Benchmark
+    public String userInfoLeg() {
+        return signer.authorizationHeader("GET", BASE_URL + "/services/users/user?format=json&fields="
+                + UsosOAuthSigner.percentEncode(UsosUserProfile.FIELDS), "at4Kx8VbN3", "ats2Rt7YuM", null, null);
+    }
+}
@@ -0,0 +1,63 @@
+package pl.edu.solvro.keycloak.usos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a user-info response, from a field-selected profile up to a full one with long nested lists
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsosUserProfileBenchmark {
+
+    @Param({"selected", "full", "large"})
+    private String payload;
+
+    private byte[] body;
+    private String cached;
+
+    @Setup
+    public void setUp() throws IOException {
+        String json = switch (payload) {
+            case "full" -> UsosPayloads.fullProfile(1);
+            case "large" -> UsosPayloads.largeProfile(1);
+            default -> UsosPayloads.profile(1);
+        };
+        body = json.getBytes(StandardCharsets.UTF_8);
+        cached = UsosUserProfile.read(json).toJson();
+    }
+
+    /**
+     * Reads the profile from a response stream, as on a user-info cache miss
+     */
+    @Benchmark
+    public UsosUserProfile readResponse() throws IOException {
+        return UsosUserProfile.read(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Reads the profile back from its cached form, as on a cache hit
+     */
+    @Benchmark
+    public UsosUserProfile readCached() throws IOException {
+        return UsosUserProfile.read(cached);
+    }
+}
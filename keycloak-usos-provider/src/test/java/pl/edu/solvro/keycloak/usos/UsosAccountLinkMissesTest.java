@@ -0,0 +1,45 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosAccountLinkMisses.
+ */
+class UsosAccountLinkMissesTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void contains_afterTtl_shouldForgetMiss() {
+        // Given
+        UsosAccountLinkMisses misses = new UsosAccountLinkMisses(10, 60, clock::get);
+        misses.add("123456");
+
+        // When & Then
+        assertThat(misses.contains("123456")).isTrue();
+        assertThat(misses.contains("654321")).isFalse();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertThat(misses.contains("123456")).isFalse();
+    }
+
+    @Test
+    void add_whenFull_shouldDropLeastRecentlyUsed() {
+        // Given
+        UsosAccountLinkMisses misses = new UsosAccountLinkMisses(2, 60, clock::get);
+        misses.add("a");
+        misses.add("b");
+        misses.contains("a");
+
+        // When
+        misses.add("c");
+
+        // Then
+        assertThat(misses.contains("a")).isTrue();
+        assertThat(misses.contains("b")).isFalse();
+        assertThat(misses.contains("c")).isTrue();
+    }
+}
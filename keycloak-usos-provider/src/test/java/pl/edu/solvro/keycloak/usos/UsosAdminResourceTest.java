@@ -0,0 +1,45 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import jakarta.ws.rs.BadRequestException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosAdminResource.
+ */
+class UsosAdminResourceTest {
+
+    @Test
+    void readUserIds_shouldSkipBlankLinesAndRepeatsInOrder() {
+        // When & Then
+        assertThat(UsosAdminResource.readUserIds(body("12\n\n 7 \r\n12\nab_1\n"), 10))
+                .containsExactly("12", "7", "ab_1");
+    }
+
+    @Test
+    void readUserIds_withInvalidId_shouldFail() {
+        // When & Then
+        assertThatThrownBy(() -> UsosAdminResource.readUserIds(body("1\n2|3\n"), 10))
+                .isInstanceOf(BadRequestException.class)
+                .hasMessageContaining("2|3");
+    }
+
+    @Test
+    void readUserIds_overLimitOrEmpty_shouldFail() {
+        // When & Then
+        assertThatThrownBy(() -> UsosAdminResource.readUserIds(body("1\n2\n3\n"), 2))
+                .isInstanceOf(BadRequestException.class)
+                .hasMessageContaining("at most 2");
+        assertThatThrownBy(() -> UsosAdminResource.readUserIds(body("\n \n"), 2))
+                .isInstanceOf(BadRequestException.class);
+    }
+
+    private static InputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
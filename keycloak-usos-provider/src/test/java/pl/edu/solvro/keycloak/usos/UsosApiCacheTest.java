@@ -0,0 +1,154 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosApiCache backed by a local Infinispan cache manager.
+ */
+class UsosApiCacheTest {
+
+    private static final String INSTALLATION = "https://usosweb.university.edu.pl";
+    private static final String CALL = "services/courses/user?active_terms_only=true";
+    private static final String ANSWER = "{\"course_editions\":{}}";
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final UsosApiCache.Seal SEAL = new UsosApiCache.Seal("kid", KEY,
+            kid -> "kid".equals(kid) ? KEY : null);
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private DefaultCacheManager cacheManager;
+    private UsosApiCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cacheManager = new DefaultCacheManager();
+        cache = UsosApiCache.create(cacheManager, 100);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        cacheManager.close();
+    }
+
+    @Test
+    void get_secondTime_shouldServeCachedAnswerOnlyToSameUser() throws Exception {
+        // When
+        String first = cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load);
+        String second = cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load);
+        cache.get(INSTALLATION, "67890", CALL, 60, SEAL, this::load);
+
+        // Then
+        assertThat(first).isEqualTo(ANSWER);
+        assertThat(second).isEqualTo(ANSWER);
+        assertThat(loads).hasValue(2);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    void get_shouldStoreAnswersSealed() throws Exception {
+        // When
+        cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load);
+
+        // Then
+        Cache<String, String> stored = cacheManager.getCache(UsosApiCache.CACHE_NAME);
+        assertThat(stored.values()).hasSize(1).noneMatch(value -> value.contains("course_editions"));
+    }
+
+    @Test
+    void get_withAnswerSealedWithRemovedKey_shouldLoadItAgain() throws Exception {
+        // Given
+        cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load);
+        UsosApiCache.Seal rotated = new UsosApiCache.Seal("new-kid", new SecretKeySpec(new byte[16], "AES"),
+                kid -> null);
+
+        // When
+        String answer = cache.get(INSTALLATION, "12345", CALL, 60, rotated, this::load);
+
+        // Then
+        assertThat(answer).isEqualTo(ANSWER);
+        assertThat(loads).hasValue(2);
+        assertThat(cache.getHits()).isZero();
+    }
+
+    @Test
+    void get_withoutSeal_shouldNotCache() throws Exception {
+        // When
+        cache.get(INSTALLATION, "12345", CALL, 60, null, this::load);
+        cache.get(INSTALLATION, "12345", CALL, 60, null, this::load);
+
+        // Then
+        assertThat(loads).hasValue(2);
+        assertThat(cacheManager.getCache(UsosApiCache.CACHE_NAME).isEmpty()).isTrue();
+    }
+
+    @Test
+    void get_whenLoadFails_shouldNotCacheTheFailure() throws Exception {
+        // Given
+        assertThatThrownBy(() -> cache.get(INSTALLATION, "12345", CALL, 60, SEAL, () -> {
+            throw new IOException("USOS returned HTTP 500");
+        })).isInstanceOf(IOException.class);
+
+        // When
+        String answer = cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load);
+
+        // Then
+        assertThat(answer).isEqualTo(ANSWER);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void get_concurrentMisses_shouldShareOneLoad() throws Exception {
+        // Given
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = callers.submit(() -> cache.get(INSTALLATION, "12345", CALL, 60, SEAL, () -> {
+                loading.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return load();
+            }));
+            loading.await(5, TimeUnit.SECONDS);
+
+            // When
+            Future<String> second = callers.submit(() -> cache.get(INSTALLATION, "12345", CALL, 60, SEAL, this::load));
+            while (cache.getCoalesced() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // Then
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(ANSWER);
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(ANSWER);
+            assertThat(loads).hasValue(1);
+            assertThat(cache.getCoalesced()).isEqualTo(1);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private String load() {
+        loads.incrementAndGet();
+        return ANSWER;
+    }
+}
@@ -0,0 +1,185 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.spec.SecretKeySpec;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.Constants;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+
+/**
+ * Integration tests for UsosApiResource using WireMock to simulate the USOS API.
+ */
+class UsosApiResourceIntegrationTest {
+
+    private static final String ALIAS = "usos";
+    private static final String USOS_USER_ID = "12345";
+    private static final String STORED_TOKEN = "oauth_token=test-access-token&oauth_token_secret=test-secret";
+    private static final String COURSES_JSON = "{\"course_editions\":{\"2026Z\":[]}}";
+
+    private WireMockServer wireMockServer;
+    private DefaultCacheManager cacheManager;
+    private UsosIdentityProviderFactory factory;
+    private IdentityProviderModel model;
+    private FederatedIdentityModel federatedIdentity;
+
+    @BeforeEach
+    void setUp() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+        WireMock.configureFor("localhost", wireMockServer.port());
+
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration(InfinispanConnectionProvider.WORK_CACHE_NAME,
+                new ConfigurationBuilder().build());
+        factory = new UsosIdentityProviderFactory();
+
+        Map<String, String> config = new HashMap<>();
+        config.put("usosBaseUrl", "http://localhost:" + wireMockServer.port());
+        config.put("clientId", "test-consumer-key");
+        config.put("clientSecret", "test-consumer-secret");
+        config.put("apiProxyServices", "services/courses/user=600");
+        model = new IdentityProviderModel();
+        model.setAlias(ALIAS);
+        model.setProviderId(UsosIdentityProviderFactory.PROVIDER_ID);
+        model.setEnabled(true);
+        model.setConfig(config);
+        federatedIdentity = new FederatedIdentityModel(ALIAS, USOS_USER_ID, USOS_USER_ID, STORED_TOKEN);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        factory.close();
+        cacheManager.close();
+        wireMockServer.stop();
+    }
+
+    @Test
+    void call_shouldSignWithStoredTokenAndServeRepeatsFromCache() {
+        // Given
+        stubFor(get(urlPathEqualTo("/services/courses/user"))
+                .willReturn(aResponse().withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(COURSES_JSON)));
+        UsosApiResource resource = resource(Constants.READ_TOKEN_ROLE);
+
+        // When
+        Response first = resource.call(ALIAS, "services/courses/user", query("active_terms_only", "true"));
+        Response second = resource.call(ALIAS, "services/courses/user", query("active_terms_only", "true"));
+
+        // Then
+        assertThat(first.getStatus()).isEqualTo(200);
+        assertThat(first.getEntity()).isEqualTo(COURSES_JSON);
+        assertThat(second.getEntity()).isEqualTo(COURSES_JSON);
+        assertThat(cacheManager.<String, String>getCache(UsosApiCache.CACHE_NAME).values())
+                .hasSize(1).noneMatch(answer -> answer.contains("course_editions"));
+        verify(1, getRequestedFor(urlPathEqualTo("/services/courses/user"))
+                .withQueryParam("active_terms_only", equalTo("true"))
+                .withHeader("Authorization", matching(".*oauth_token=\"test-access-token\".*")));
+    }
+
+    @Test
+    void call_withMethodNotAllowedOrWithoutRole_shouldRefuseWithoutCallingUsos() {
+        // When & Then
+        assertThatThrownBy(() -> resource(Constants.READ_TOKEN_ROLE)
+                .call(ALIAS, "services/users/user", query("fields", "pesel")))
+                .isInstanceOf(ForbiddenException.class);
+        assertThatThrownBy(() -> resource("manage-account")
+                .call(ALIAS, "services/courses/user", query("active_terms_only", "true")))
+                .isInstanceOf(ForbiddenException.class);
+        verify(0, anyRequestedFor(anyUrl()));
+    }
+
+    @Test
+    void call_withTokenStoredWithoutSecret_shouldAskForANewLogin() {
+        // Given
+        federatedIdentity = new FederatedIdentityModel(ALIAS, USOS_USER_ID, USOS_USER_ID, "test-access-token");
+
+        // When & Then
+        assertThatThrownBy(() -> resource(Constants.READ_TOKEN_ROLE)
+                .call(ALIAS, "services/courses/user", query("active_terms_only", "true")))
+                .isInstanceOf(BadRequestException.class)
+                .hasMessageContaining("log in through USOS again");
+        verify(0, anyRequestedFor(anyUrl()));
+    }
+
+    private UsosApiResource resource(String brokerRole) {
+        RealmModel realm = mock(RealmModel.class);
+        UserModel user = mock(UserModel.class);
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        IdentityProviderStorageProvider identityProviders = mock(IdentityProviderStorageProvider.class);
+        when(identityProviders.getByAlias(ALIAS)).thenReturn(model);
+        UserProvider users = mock(UserProvider.class);
+        when(users.getFederatedIdentity(realm, user, ALIAS)).thenReturn(federatedIdentity);
+        InfinispanConnectionProvider infinispan = mock(InfinispanConnectionProvider.class);
+        when(infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME))
+                .thenReturn(cacheManager.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getContext()).thenReturn(context);
+        when(session.identityProviders()).thenReturn(identityProviders);
+        when(session.users()).thenReturn(users);
+        when(session.getProvider(InfinispanConnectionProvider.class)).thenReturn(infinispan);
+        KeyManager keys = mock(KeyManager.class);
+        SecretKeySpec aesKey = new SecretKeySpec(new byte[16], "AES");
+        when(keys.getActiveAesKey(realm)).thenReturn(new KeyManager.ActiveAesKey("aes-kid", aesKey));
+        when(keys.getAesSecretKey(realm, "aes-kid")).thenReturn(aesKey);
+        when(session.keys()).thenReturn(keys);
+
+        AccessToken token = new AccessToken();
+        token.addAccess(Constants.BROKER_SERVICE_CLIENT_ID).addRole(brokerRole);
+        AuthResult auth = new AuthResult(user, null, token, null);
+        return new UsosApiResource(session, factory) {
+            @Override
+            AuthResult authenticate() {
+                return auth;
+            }
+        };
+    }
+
+    private static UriInfo query(String name, String value) {
+        MultivaluedHashMap<String, String> parameters = new MultivaluedHashMap<>();
+        parameters.add(name, value);
+        UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getQueryParameters()).thenReturn(parameters);
+        return uriInfo;
+    }
+}
@@ -0,0 +1,54 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosApiServices.
+ */
+class UsosApiServicesTest {
+
+    private static final String API_URL = "https://usosapps.university.edu.pl/";
+
+    @Test
+    void compile_shouldTakeListedTtlsOrTheDefault() {
+        // When
+        UsosApiServices services = UsosApiServices.compile(
+                "services/courses/user=600\n services/tt/user ;services/grades/terms2=30", API_URL, 300);
+
+        // Then
+        assertThat(services.ttlSeconds("services/courses/user")).isEqualTo(600);
+        assertThat(services.ttlSeconds("services/tt/user")).isEqualTo(300);
+        assertThat(services.ttlSeconds("services/grades/terms2")).isEqualTo(30);
+        assertThat(services.ttlSeconds("services/users/user")).isEqualTo(-1);
+    }
+
+    @Test
+    void compile_shouldSkipMalformedEntries() {
+        // When & Then
+        assertThat(UsosApiServices.compile("services/../oauth=60;services/courses/user=soon;services", API_URL, 300))
+                .isNull();
+        assertThat(UsosApiServices.compile("services/courses/user=0;services/tt/user", API_URL, 300)
+                .ttlSeconds("services/courses/user")).isEqualTo(-1);
+    }
+
+    @Test
+    void call_shouldSortAndEncodeTheQuery() {
+        // Given
+        UsosApiServices services = UsosApiServices.compile("services/tt/user", API_URL, 300);
+        Map<String, List<String>> query = new LinkedHashMap<>();
+        query.put("start", List.of("2026-10-19"));
+        query.put("fields", List.of("start_time|name"));
+
+        // When
+        String call = services.call("services/tt/user", query);
+
+        // Then
+        assertThat(call).isEqualTo("services/tt/user?fields=start_time%7Cname&start=2026-10-19");
+        assertThat(services.url(call)).isEqualTo(API_URL + call);
+    }
+}
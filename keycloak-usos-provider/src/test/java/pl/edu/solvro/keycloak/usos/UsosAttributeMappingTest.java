@@ -0,0 +1,76 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosAttributeMapping.
+ */
+class UsosAttributeMappingTest {
+
+    @Test
+    void compile_withBlankSpec_shouldUseDefaultMapping() {
+        // When
+        UsosAttributeMapping mapping = UsosAttributeMapping.compile(" ");
+
+        // Then
+        assertThat(mapping.fields()).isEqualTo(UsosUserProfile.FIELDS);
+        assertThat(mapping.attributeNames()).containsExactly("student_number", "staff_status", "student_status");
+    }
+
+    @Test
+    void compile_withNestedPaths_shouldMergeThemIntoFieldsSelector() {
+        // When
+        UsosAttributeMapping mapping = UsosAttributeMapping.compile(
+                "faculty=faculties.id\nprogramme=student_programmes.programme.id;"
+                        + "programme_name=student_programmes.programme.description.en, index=student_number");
+
+        // Then
+        assertThat(mapping.fields()).isEqualTo(UsosUserProfile.FIELDS
+                + "|faculties[id]|student_programmes[programme[id|description[en]]]");
+        assertThat(mapping.attributeNames()).containsExactly("faculty", "programme", "programme_name", "index");
+    }
+
+    @Test
+    void compile_withMalformedEntries_shouldSkipThem() {
+        // When
+        UsosAttributeMapping mapping = UsosAttributeMapping.compile("no_path\n=faculties.id\nbad=a..b\nok=sex");
+
+        // Then
+        assertThat(mapping.attributeNames()).containsExactly("ok");
+        assertThat(mapping.fields()).isEqualTo(UsosUserProfile.FIELDS + "|sex");
+    }
+
+    @Test
+    void read_shouldCollectValuesThroughArraysOnce() throws Exception {
+        // Given
+        UsosAttributeMapping mapping = UsosAttributeMapping.compile(
+                "faculty=faculties.id\nprogramme=student_programmes.programme.id\nindex=student_number");
+        String json = """
+                {
+                    "id": "7",
+                    "student_number": "123456",
+                    "faculties": [{"id": "W4", "name": {"pl": "Informatyka"}}, {"id": "W8"}, {"id": "W4"}],
+                    "student_programmes": [
+                        {"id": "1", "programme": {"id": "INF", "description": {"en": "Computer Science"}}},
+                        {"id": "2", "programme": {"id": null}}
+                    ],
+                    "photo_urls": {"50x50": "https://x"}
+                }
+                """;
+
+        // When
+        UsosUserProfile profile = UsosUserProfile.read(json, mapping);
+
+        // Then
+        assertThat(profile.studentNumber()).isEqualTo("123456");
+        assertThat(profile.attributes()).containsExactlyInAnyOrderEntriesOf(Map.of(
+                "faculty", List.of("W4", "W8"),
+                "programme", List.of("INF"),
+                "index", List.of("123456")));
+        assertThat(UsosUserProfile.read(profile.toJson(), mapping)).isEqualTo(profile);
+    }
+}
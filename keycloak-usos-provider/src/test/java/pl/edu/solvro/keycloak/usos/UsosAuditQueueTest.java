@@ -0,0 +1,79 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Cause;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Phase;
+
+/**
+ * Tests for UsosAuditQueue.
+ */
+class UsosAuditQueueTest {
+
+    private final List<List<UsosLoginEvent>> batches = new CopyOnWriteArrayList<>();
+
+    @Test
+    void flush_shouldWriteBufferedEventsInBatches() {
+        // Given
+        UsosAuditQueue queue = new UsosAuditQueue(batch -> batches.add(new ArrayList<>(batch)), 10, 2, 60_000);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(event(String.valueOf(i)));
+        }
+
+        // When
+        queue.flush();
+
+        // Then
+        assertThat(batches).extracting(List::size).containsExactly(2, 2, 1);
+        assertThat(queue.getWritten()).isEqualTo(5);
+        assertThat(queue.size()).isZero();
+        queue.close();
+    }
+
+    @Test
+    void offer_whenFull_shouldDropAndCountInsteadOfBlocking() {
+        // Given
+        UsosAuditQueue queue = new UsosAuditQueue(batches::add, 2, 10, 60_000);
+
+        // When
+        boolean first = queue.offer(event("1"));
+        boolean second = queue.offer(event("2"));
+        boolean third = queue.offer(event("3"));
+
+        // Then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(queue.getDropped()).isEqualTo(1);
+        queue.close();
+        assertThat(queue.getWritten()).isEqualTo(2);
+    }
+
+    @Test
+    void flush_whenSinkFails_shouldDropTheBatchAndKeepGoing() {
+        // Given
+        UsosAuditQueue queue = new UsosAuditQueue(batch -> {
+            throw new IllegalStateException("event store is down");
+        }, 10, 10, 60_000);
+        queue.offer(event("1"));
+
+        // When
+        queue.flush();
+
+        // Then
+        assertThat(queue.getDropped()).isEqualTo(1);
+        assertThat(queue.offer(event("2"))).isTrue();
+        queue.close();
+    }
+
+    private static UsosLoginEvent event(String usosUserId) {
+        long[] phaseNanos = new long[Phase.values().length];
+        phaseNanos[Phase.ACCESS_TOKEN.ordinal()] = 1_000_000;
+        return new UsosLoginEvent(System.currentTimeMillis(), "realm-id", "usos", usosUserId,
+                "3".equals(usosUserId) ? Cause.TIMEOUT : null, null, phaseNanos);
+    }
+}
@@ -0,0 +1,113 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventStoreProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.ArgumentCaptor;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Cause;
+import pl.edu.solvro.keycloak.usos.UsosLoginMetrics.Phase;
+
+/**
+ * Tests for the event store sink of UsosAuditSink.
+ */
+class UsosAuditSinkTest {
+
+    private static final String REALM_ID = "realm-id";
+
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    private final EventStoreProvider store = mock(EventStoreProvider.class);
+    private final RealmModel realm = mock(RealmModel.class);
+
+    @BeforeEach
+    void setUp() {
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(session.getProvider(EventStoreProvider.class)).thenReturn(store);
+        when(session.realms()).thenReturn(realms);
+        when(realms.getRealm(REALM_ID)).thenReturn(realm);
+        when(realm.isEventsEnabled()).thenReturn(true);
+    }
+
+    @Test
+    void eventStore_withLoginTypesEnabled_shouldStoreMarkedEvents() {
+        // Given
+        when(realm.getEnabledEventTypesStream()).thenReturn(Stream.of(EventType.IDENTITY_PROVIDER_LOGIN.name(),
+                EventType.IDENTITY_PROVIDER_LOGIN_ERROR.name()));
+
+        // When
+        UsosAuditSink.eventStore(sessionFactory).write(List.of(event(null), event(Cause.USOS_ERROR)));
+
+        // Then
+        ArgumentCaptor<Event> stored = ArgumentCaptor.forClass(Event.class);
+        verify(store, times(2)).onEvent(stored.capture());
+        assertThat(stored.getAllValues()).extracting(Event::getType)
+                .containsExactly(EventType.IDENTITY_PROVIDER_LOGIN, EventType.IDENTITY_PROVIDER_LOGIN_ERROR);
+        assertThat(stored.getAllValues()).allSatisfy(event -> assertThat(event.getDetails())
+                .containsEntry(UsosAuditSink.AUDIT_DETAIL, "true")
+                .containsEntry("identity_provider", "usos"));
+        assertThat(stored.getAllValues().get(1).getError()).isEqualTo("usos_usos_error");
+    }
+
+    @Test
+    void eventStore_whenTypeIsNotEnabled_shouldSkipTheEvent() {
+        // Given - the realm only saves failed logins
+        when(realm.getEnabledEventTypesStream())
+                .thenReturn(Stream.of(EventType.IDENTITY_PROVIDER_LOGIN_ERROR.name()));
+
+        // When
+        UsosAuditSink.eventStore(sessionFactory).write(List.of(event(null), event(Cause.USOS_ERROR)));
+
+        // Then
+        ArgumentCaptor<Event> stored = ArgumentCaptor.forClass(Event.class);
+        verify(store).onEvent(stored.capture());
+        assertThat(stored.getValue().getType()).isEqualTo(EventType.IDENTITY_PROVIDER_LOGIN_ERROR);
+    }
+
+    @Test
+    void eventStore_withDefaultEventTypes_shouldSkipIdentityProviderLogins() {
+        // Given - Keycloak does not save identity provider logins unless they are enabled
+        when(realm.getEnabledEventTypesStream()).thenReturn(Stream.empty());
+
+        // When
+        UsosAuditSink.eventStore(sessionFactory).write(List.of(event(null), event(Cause.USOS_ERROR)));
+
+        // Then
+        verify(store, never()).onEvent(any(Event.class));
+    }
+
+    @Test
+    void eventStore_whenRealmDoesNotSaveEvents_shouldSkipAll() {
+        // Given
+        when(realm.isEventsEnabled()).thenReturn(false);
+
+        // When
+        UsosAuditSink.eventStore(sessionFactory).write(List.of(event(null), event(Cause.USOS_ERROR)));
+
+        // Then
+        verify(store, never()).onEvent(any(Event.class));
+    }
+
+    private static UsosLoginEvent event(Cause cause) {
+        return new UsosLoginEvent(1700000000000L, REALM_ID, "usos", "12345", cause,
+                cause == null ? null : "java.io.IOException", new long[Phase.values().length]);
+    }
+}
@@ -0,0 +1,93 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Map;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+
+/**
+ * Tests for UsosCallbackFlight.
+ */
+class UsosCallbackFlightTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final Map<String, SecretKey> KEYS = Map.of("kid-1", KEY);
+
+    private final InMemorySingleUseObjects store = new InMemorySingleUseObjects();
+
+    @Test
+    void claim_shouldLetOnlyTheFirstCallbackExchange() throws Exception {
+        // Given
+        UsosCallbackFlight first = flight("verifier");
+        UsosCallbackFlight replay = flight("verifier");
+
+        // When
+        boolean firstClaimed = first.claim();
+        boolean replayClaimed = replay.claim();
+        first.complete(new AccessToken("access-token", "token-secret"), "{\"id\":\"1\"}", "kid-1", KEY);
+
+        // Then
+        assertThat(firstClaimed).isTrue();
+        assertThat(replayClaimed).isFalse();
+        assertThat(replay.await(100, KEYS::get)).isEqualTo(new UsosCallbackFlight.Outcome(
+                new AccessToken("access-token", "token-secret"), "{\"id\":\"1\"}", null));
+    }
+
+    @Test
+    void await_whenFirstFailed_shouldReturnItsError() throws Exception {
+        // Given
+        UsosCallbackFlight first = flight("verifier");
+        first.claim();
+        first.fail("USOS is temporarily unavailable, please try again later");
+
+        // When & Then
+        assertThat(flight("verifier").await(100, KEYS::get).error()).startsWith("USOS is temporarily unavailable");
+    }
+
+    @Test
+    void await_whileFirstIsRunningPastTheWait_shouldGiveUp() throws Exception {
+        // Given
+        flight("verifier").claim();
+
+        // When & Then
+        assertThat(flight("verifier").await(120, KEYS::get)).isNull();
+    }
+
+    @Test
+    void await_withDifferentVerifier_shouldFail() throws Exception {
+        // Given
+        UsosCallbackFlight first = flight("verifier");
+        first.claim();
+        first.complete(new AccessToken("access-token", "token-secret"), "{}", "kid-1", KEY);
+
+        // When & Then
+        assertThatThrownBy(() -> flight("forged").await(100, KEYS::get)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void complete_shouldKeepTheTokenSecretAndProfileSealed() throws Exception {
+        // Given
+        UsosCallbackFlight first = flight("verifier");
+        first.claim();
+
+        // When
+        first.complete(new AccessToken("access-token", "token-secret"), "{\"id\":\"12345\"}", "kid-1", KEY);
+
+        // Then
+        Map<String, String> stored = store.get(UsosCallbackFlight.KEY_PREFIX + "provider-id:request-token");
+        assertThat(String.join("|", stored.values()))
+                .doesNotContain("access-token")
+                .doesNotContain("token-secret")
+                .doesNotContain("12345")
+                .doesNotContain("verifier");
+        assertThat(flight("verifier").await(100, Map.<String, SecretKey>of()::get)).isNull();
+    }
+
+    private UsosCallbackFlight flight(String verifier) {
+        return new UsosCallbackFlight(store, "provider-id", "request-token", verifier, "usos|provider-id|usos", 60);
+    }
+}
@@ -0,0 +1,73 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosCallbackState.
+ */
+class UsosCallbackStateTest {
+
+    private static final String BINDING = "usos|internal-id|usos";
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final UsosCallbackState STATE =
+            new UsosCallbackState("request-token", "request-secret", 1700000000L);
+
+    @Test
+    void open_withSameKeyAndBinding_shouldReturnSealedState() throws GeneralSecurityException {
+        // Given
+        String sealed = STATE.seal("kid-1", KEY, BINDING);
+
+        // When
+        UsosCallbackState opened = UsosCallbackState.open(sealed, Map.of("kid-1", KEY)::get, BINDING);
+
+        // Then
+        assertThat(opened).isEqualTo(STATE);
+        assertThat(sealed).doesNotContain("request-secret");
+    }
+
+    @Test
+    void open_withOtherBinding_shouldReturnNull() throws GeneralSecurityException {
+        // Given
+        String sealed = STATE.seal("kid-1", KEY, BINDING);
+
+        // When & Then
+        assertThat(UsosCallbackState.open(sealed, Map.of("kid-1", KEY)::get, "usos|other-id|other")).isNull();
+    }
+
+    @Test
+    void open_whenAltered_shouldReturnNull() throws GeneralSecurityException {
+        // Given
+        byte[] sealed = Base64.getUrlDecoder().decode(STATE.seal("kid-1", KEY, BINDING));
+        sealed[sealed.length - 1] ^= 1;
+
+        // When & Then
+        assertThat(UsosCallbackState.open(Base64.getUrlEncoder().withoutPadding().encodeToString(sealed),
+                Map.of("kid-1", KEY)::get, BINDING)).isNull();
+        assertThat(UsosCallbackState.open("not-a-sealed-state", Map.of("kid-1", KEY)::get, BINDING)).isNull();
+    }
+
+    @Test
+    void open_withUnknownKey_shouldReturnNull() throws GeneralSecurityException {
+        // Given - the key it was sealed with has since been removed from the realm
+        String sealed = STATE.seal("kid-1", KEY, BINDING);
+
+        // When & Then
+        assertThat(UsosCallbackState.open(sealed, Map.of("kid-2", KEY)::get, BINDING)).isNull();
+    }
+
+    @Test
+    void cookieName_shouldDifferPerRequestToken() {
+        // When & Then
+        assertThat(UsosCallbackState.cookieName("token-a"))
+                .startsWith(UsosCallbackState.COOKIE_PREFIX)
+                .isEqualTo(UsosCallbackState.cookieName("token-a"))
+                .isNotEqualTo(UsosCallbackState.cookieName("token-b"));
+    }
+}
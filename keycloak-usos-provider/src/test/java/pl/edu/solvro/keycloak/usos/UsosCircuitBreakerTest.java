@@ -0,0 +1,119 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosCircuitBreaker state transitions.
+ */
+class UsosCircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    private final AtomicLong clock = new AtomicLong();
+    private UsosCircuitBreaker breaker;
+
+    @BeforeEach
+    void setUp() {
+        // 50% failures or 100% slow calls over the last 4 calls, 1 s open, 2 probes
+        breaker = new UsosCircuitBreaker(50, 100, 1000, 4, 4, 1000, 2, clock::get);
+    }
+
+    @Test
+    void onResult_whenFailureRateReachesThreshold_shouldOpen() {
+        // When
+        record(false, false, true, true);
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquirePermission()).isFalse();
+        assertThat(breaker.getRemainingOpenMillis()).isEqualTo(1000);
+    }
+
+    @Test
+    void onResult_beforeMinimumCalls_shouldStayClosed() {
+        // When
+        record(true, true, true);
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquirePermission()).isTrue();
+    }
+
+    @Test
+    void onResult_withOldFailuresLeavingWindow_shouldStayClosed() {
+        // When - the window only ever holds one failure
+        record(true, false, false, false, true, false, false, false);
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void onResult_whenAllCallsAreSlow_shouldOpen() {
+        // When
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission();
+            breaker.onResult(false, SLOW);
+        }
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void tryAcquirePermission_afterOpenDuration_shouldAllowOnlyProbes() {
+        // Given
+        record(true, true, true, true);
+
+        // When
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquirePermission()).isTrue();
+        assertThat(breaker.tryAcquirePermission()).isTrue();
+        assertThat(breaker.tryAcquirePermission()).isFalse();
+    }
+
+    @Test
+    void onResult_whenAllProbesSucceed_shouldClose() {
+        // Given
+        record(true, true, true, true);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        // When
+        record(false, false);
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.CLOSED);
+        record(true, true, true);
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void onResult_whenProbeFails_shouldReopen() {
+        // Given
+        record(true, true, true, true);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        // When
+        record(true);
+
+        // Then
+        assertThat(breaker.getState()).isEqualTo(UsosCircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquirePermission()).isFalse();
+    }
+
+    private void record(boolean... failures) {
+        for (boolean failed : failures) {
+            assertThat(breaker.tryAcquirePermission()).isTrue();
+            breaker.onResult(failed, FAST);
+        }
+    }
+}
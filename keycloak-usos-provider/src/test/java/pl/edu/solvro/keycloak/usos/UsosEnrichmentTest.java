@@ -0,0 +1,116 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.AccessToken;
+import pl.edu.solvro.keycloak.usos.UsosOAuthClient.BodyReader;
+
+/**
+ * Tests for UsosEnrichment.
+ */
+class UsosEnrichmentTest {
+
+    private static final String API_URL = "https://usos.example.edu/";
+    private static final String PROGRAMMES_URL = API_URL + "services/progs/student";
+    private static final String PHOTO_URL = API_URL + "services/photos/photo?size=50x50";
+    private static final String FACULTIES_URL = API_URL + "services/users/user?fields=faculties%5Bid%5D";
+
+    private final UsosOAuthClient client = mock(UsosOAuthClient.class);
+    private final AccessToken accessToken = new AccessToken("token", "secret");
+    private final ExecutorService executor = UsosEnrichment.newExecutor(4, 4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void compile_shouldGroupEntriesByMethodAndEncodeQueries() {
+        // When
+        UsosEnrichment enrichment = UsosEnrichment.compile("""
+                programme=services/progs/student#programme.id
+                faculty=services/users/user?fields=faculties[id]#faculties.id
+                programme_name=services/progs/student#programme.description.en
+                broken=services/progs/student
+                """, API_URL, 1000, executor);
+
+        // Then
+        assertThat(enrichment.getCalls()).extracting(UsosEnrichment.Call::url)
+                .containsExactly(PROGRAMMES_URL, FACULTIES_URL);
+        assertThat(enrichment.getCalls().get(0).mapping().attributeNames())
+                .containsExactly("programme", "programme_name");
+    }
+
+    @Test
+    void compile_withoutValidEntries_shouldReturnNull() {
+        // When & Then
+        assertThat(UsosEnrichment.compile("programme=/etc/passwd#id; =services/progs/student#id", API_URL, 1000,
+                executor)).isNull();
+    }
+
+    @Test
+    void await_shouldMergeAnswersInTimeAndDropTheRest() throws Exception {
+        // Given - programmes answer, the photo call fails and the faculties call outlives the deadline
+        UsosEnrichment enrichment = UsosEnrichment.compile("programme=services/progs/student#programme.id\n"
+                + "photo=services/photos/photo?size=50x50#url\nfaculty=services/users/user?fields=faculties[id]"
+                + "#faculties.id", API_URL, 300, executor);
+        answer(PROGRAMMES_URL, 0, "[{\"programme\":{\"id\":\"INF\"}},{\"programme\":{\"id\":\"MAT\"}}]");
+        when(client.get(eq(PHOTO_URL), eq(accessToken), any(), anyInt())).thenThrow(new IOException("HTTP 404"));
+        answer(FACULTIES_URL, 2000, "{\"faculties\":[{\"id\":\"W4\"}]}");
+
+        // When
+        long start = System.nanoTime();
+        UsosEnrichment.Result result = enrichment.start(client, accessToken).await();
+
+        // Then - the calls ran side by side, so the wait is the deadline rather than the sum
+        assertThat(System.nanoTime() - start).isLessThan(1_000_000_000L);
+        assertThat(result.attributes()).containsExactlyEntriesOf(Map.of("programme", List.of("INF", "MAT")));
+        assertThat(result.attributeNames()).containsExactly("programme");
+    }
+
+    @Test
+    void start_whenExecutorIsFull_shouldFailTheRejectedCallAtOnce() throws Exception {
+        // Given - one thread and one queue slot for three calls
+        ExecutorService small = UsosEnrichment.newExecutor(1, 1);
+        try {
+            UsosEnrichment enrichment = UsosEnrichment.compile("programme=services/progs/student#programme.id\n"
+                    + "photo=services/photos/photo?size=50x50#url\nfaculty=services/users/user?fields=faculties[id]"
+                    + "#faculties.id", API_URL, 1000, small);
+            answer(PROGRAMMES_URL, 200, "[{\"programme\":{\"id\":\"INF\"}}]");
+            answer(PHOTO_URL, 0, "{\"url\":\"https://photos.example.edu/1.jpg\"}");
+            answer(FACULTIES_URL, 0, "{\"faculties\":[{\"id\":\"W4\"}]}");
+
+            // When
+            UsosEnrichment.Result result = enrichment.start(client, accessToken).await();
+
+            // Then
+            assertThat(result.attributeNames()).containsExactly("programme", "photo");
+            verify(client, never()).get(eq(FACULTIES_URL), any(), any(), anyInt());
+        } finally {
+            small.shutdownNow();
+        }
+    }
+
+    private void answer(String url, long delayMillis, String json) throws IOException {
+        when(client.get(eq(url), eq(accessToken), any(), anyInt())).thenAnswer(invocation -> {
+            Thread.sleep(delayMillis);
+            BodyReader<?> reader = invocation.getArgument(2);
+            return reader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        });
+    }
+}
@@ -0,0 +1,200 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.http.Fault;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosHttpTransport timeouts, deadlines, circuit breaker and bulkhead.
+ */
+class UsosHttpTransportTest {
+
+    private WireMockServer wireMockServer;
+    private UsosHttpTransport transport;
+
+    @BeforeEach
+    void setUp() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (transport != null) {
+            transport.close();
+        }
+        wireMockServer.stop();
+    }
+
+    @Test
+    void execute_withFastResponse_shouldReturnHandledBody() throws IOException {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000);
+        wireMockServer.stubFor(get(urlPathEqualTo("/ok")).willReturn(aResponse().withBody("hello")));
+
+        // When
+        String body = transport.execute(new HttpGet(url("/ok")),
+                response -> EntityUtils.toString(response.getEntity()));
+
+        // Then
+        assertThat(body).isEqualTo("hello");
+    }
+
+    @Test
+    void execute_whenReadTimeoutExceeded_shouldFailWithTimeout() {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 200, 20000);
+        wireMockServer.stubFor(get(urlPathEqualTo("/slow")).willReturn(aResponse().withFixedDelay(2000)));
+
+        // When & Then
+        assertThatThrownBy(() -> transport.execute(new HttpGet(url("/slow")), response -> "unexpected"))
+                .isInstanceOf(SocketTimeoutException.class)
+                .satisfies(e -> assertThat(UsosTimeoutException.isTimeout(e)).isTrue());
+    }
+
+    @Test
+    void execute_whenTotalDeadlineExceeded_shouldAbortWithUsosTimeout() {
+        // Given - chunks keep the read timeout from firing while the whole body takes too long
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 5000, 300);
+        wireMockServer.stubFor(get(urlPathEqualTo("/dribble")).willReturn(aResponse()
+                .withBody("x".repeat(64))
+                .withChunkedDribbleDelay(8, 2000)));
+
+        // When & Then
+        assertThatThrownBy(() -> transport.execute(new HttpGet(url("/dribble")),
+                response -> EntityUtils.toString(response.getEntity())))
+                .isInstanceOf(UsosTimeoutException.class)
+                .hasMessageContaining("300 ms");
+    }
+
+    @Test
+    void execute_whenConnectionReset_shouldNotReportTimeout() {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000);
+        wireMockServer.stubFor(get(urlPathEqualTo("/reset"))
+                .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+
+        // When & Then
+        assertThatThrownBy(() -> transport.execute(new HttpGet(url("/reset")), response -> "unexpected"))
+                .isInstanceOf(IOException.class)
+                .satisfies(e -> assertThat(UsosTimeoutException.isTimeout(e)).isFalse());
+    }
+
+    @Test
+    void getPoolStats_afterExecute_shouldKeepConnectionIdleForReuse() throws IOException {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000);
+        wireMockServer.stubFor(get(urlPathEqualTo("/ok")).willReturn(aResponse().withBody("hello")));
+
+        // When
+        transport.execute(new HttpGet(url("/ok")), response -> EntityUtils.toString(response.getEntity()));
+
+        // Then
+        assertThat(transport.getPoolStats().getLeased()).isZero();
+        assertThat(transport.getPoolStats().getAvailable()).isEqualTo(1);
+        assertThat(transport.getPoolStats().getMax()).isEqualTo(10);
+    }
+
+    @Test
+    void preconnect_shouldLeaveConnectionsIdleForLaterCalls() throws IOException {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000);
+        wireMockServer.stubFor(get(urlPathEqualTo("/ok")).willReturn(aResponse().withBody("hello")));
+
+        // When
+        int idle = transport.preconnect(URI.create(url("/services/oauth/request_token")), 3);
+        transport.execute(new HttpGet(url("/ok")), response -> EntityUtils.toString(response.getEntity()));
+
+        // Then - the call reused a preconnected connection rather than opening a fourth
+        assertThat(idle).isEqualTo(3);
+        assertThat(transport.getPoolStats().getAvailable()).isEqualTo(3);
+        assertThat(transport.getPoolStats().getLeased()).isZero();
+    }
+
+    @Test
+    void execute_whenServerErrorsReachThreshold_shouldOpenCircuitAndRefuseCalls() {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000,
+                new UsosCircuitBreaker(50, 100, 5000, 2, 2, 60000, 1), 0);
+        wireMockServer.stubFor(get(urlPathEqualTo("/down")).willReturn(aResponse().withStatus(503)));
+        ResponseHandler<String> handler = response -> {
+            throw new IOException("HTTP " + response.getStatusLine().getStatusCode());
+        };
+
+        // When
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> transport.execute(new HttpGet(url("/down")), handler))
+                    .hasMessage("HTTP 503");
+        }
+
+        // Then
+        assertThatThrownBy(() -> transport.execute(new HttpGet(url("/down")), handler))
+                .isInstanceOf(UsosUnavailableException.class)
+                .hasMessageStartingWith("Circuit breaker for USOS at http://localhost:" + wireMockServer.port()
+                        + " is open");
+        wireMockServer.verify(2, getRequestedFor(urlPathEqualTo("/down")));
+    }
+
+    @Test
+    void execute_withClientErrors_shouldKeepCircuitClosed() {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000,
+                new UsosCircuitBreaker(50, 100, 5000, 2, 2, 60000, 1), 0);
+        wireMockServer.stubFor(get(urlPathEqualTo("/denied")).willReturn(aResponse().withStatus(401)));
+
+        // When
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> transport.execute(new HttpGet(url("/denied")), response -> {
+                throw new IOException("HTTP " + response.getStatusLine().getStatusCode());
+            })).hasMessage("HTTP 401");
+        }
+
+        // Then
+        assertThat(transport.getCircuitBreaker().getState()).isEqualTo(UsosCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void execute_whenConcurrentCallLimitReached_shouldRefuseCall() throws Exception {
+        // Given
+        transport = new UsosHttpTransport(5, 10, 30, 10000, 10000, 20000, null, 1);
+        wireMockServer.stubFor(get(urlPathEqualTo("/slow")).willReturn(aResponse().withFixedDelay(1000)));
+        CompletableFuture<String> inFlight = CompletableFuture.supplyAsync(() -> {
+            try {
+                return transport.execute(new HttpGet(url("/slow")), response -> "done");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        while (transport.getPoolStats().getLeased() == 0 && !inFlight.isDone()) {
+            Thread.sleep(10);
+        }
+
+        // When & Then
+        assertThatThrownBy(() -> transport.execute(new HttpGet(url("/ok")), response -> "unexpected"))
+                .isInstanceOf(UsosUnavailableException.class)
+                .hasMessageContaining("limit is 1");
+        assertThat(inFlight.get()).isEqualTo("done");
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + wireMockServer.port() + path;
+    }
+}
@@ -152,6 +152,36 @@ class UsosIdentityProviderConfigTest {
         assertThat(config.getClientSecret()).isEqualTo(TEST_CONSUMER_SECRET);
     }
 
+    @Test
+    void requestTokenPrefetch_whenNotConfigured_shouldBeDisabledWithDefaults() {
+        // Given
+        when(model.getConfig()).thenReturn(configMap);
+        config = new UsosIdentityProviderConfig(model);
+
+        // When & Then
+        assertThat(config.isRequestTokenPrefetchEnabled()).isFalse();
+        assertThat(config.getRequestTokenPoolSize()).isEqualTo(20);
+        assertThat(config.getRequestTokenRefillPerSecond()).isEqualTo(5);
+        assertThat(config.getRequestTokenTtlSeconds()).isEqualTo(300);
+    }
+
+    @Test
+    void requestTokenPrefetch_whenConfigured_shouldParseSettings() {
+        // Given
+        configMap.put("requestTokenPrefetch", "true");
+        configMap.put("requestTokenPoolSize", "50");
+        configMap.put("requestTokenRefillPerSecond", " 10 ");
+        configMap.put("requestTokenTtlSeconds", "not-a-number");
+        when(model.getConfig()).thenReturn(configMap);
+        config = new UsosIdentityProviderConfig(model);
+
+        // When & Then
+        assertThat(config.isRequestTokenPrefetchEnabled()).isTrue();
+        assertThat(config.getRequestTokenPoolSize()).isEqualTo(50);
+        assertThat(config.getRequestTokenRefillPerSecond()).isEqualTo(10);
+        assertThat(config.getRequestTokenTtlSeconds()).isEqualTo(300);
+    }
+
     @Test
     void config_shouldExtendOidcIdentityProviderConfig() {
         // Given
@@ -184,4 +214,32 @@ class UsosIdentityProviderConfigTest {
             assertThat(config.getUserInfoUrl()).isEqualTo(baseUrl + "/services/users/user");
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void callbackDeduplication_whenNotConfigured_shouldBeDisabled() {
+        // Given
+        when(model.getConfig()).thenReturn(configMap);
+        config = new UsosIdentityProviderConfig(model);
+
+        // When & Then
+        assertThat(config.isCallbackDeduplicationEnabled()).isFalse();
+        config.setCallbackDeduplicationEnabled(true);
+        assertThat(config.isCallbackDeduplicationEnabled()).isTrue();
+    }
+
+    @Test
+    void getAccountLinking_shouldParseModeAndDefaultToOff() {
+        // Given
+        when(model.getConfig()).thenReturn(configMap);
+        UsosIdentityProviderConfig unset = new UsosIdentityProviderConfig(model);
+        configMap.put("accountLinking", " Student_Number ");
+        UsosIdentityProviderConfig studentNumber = new UsosIdentityProviderConfig(model);
+        configMap.put("accountLinking", "email");
+        UsosIdentityProviderConfig unknown = new UsosIdentityProviderConfig(model);
+
+        // When & Then
+        assertThat(unset.getAccountLinking()).isEqualTo(UsosAccountLinking.OFF);
+        assertThat(studentNumber.getAccountLinking()).isEqualTo(UsosAccountLinking.STUDENT_NUMBER);
+        assertThat(unknown.getAccountLinking()).isEqualTo(UsosAccountLinking.OFF);
+    }
+}
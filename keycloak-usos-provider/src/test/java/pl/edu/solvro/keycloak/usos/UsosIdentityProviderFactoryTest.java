@@ -2,17 +2,28 @@ package pl.edu.solvro.keycloak.usos;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.Config;
 import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEventListener;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -154,6 +165,289 @@ class UsosIdentityProviderFactoryTest {
         factory.close();
     }
 
+    @Test
+    void create_withSameBaseUrl_shouldShareTransport() {
+        // Given
+        IdentityProviderModel otherModel = mock(IdentityProviderModel.class);
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        when(otherModel.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+
+        // When
+        UsosIdentityProvider first = factory.create(session, model);
+        UsosIdentityProvider second = factory.create(session, otherModel);
+
+        // Then
+        assertThat(first.getTransport()).isSameAs(second.getTransport());
+    }
+
+    @Test
+    void create_withDifferentBaseUrls_shouldUseSeparateTransports() {
+        // Given
+        IdentityProviderModel otherModel = mock(IdentityProviderModel.class);
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university1.edu.pl"));
+        when(otherModel.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university2.edu.pl"));
+
+        // When
+        UsosIdentityProvider first = factory.create(session, model);
+        UsosIdentityProvider second = factory.create(session, otherModel);
+
+        // Then
+        assertThat(first.getTransport()).isNotSameAs(second.getTransport());
+    }
+
+    @Test
+    void create_withEquivalentBaseUrlsInOtherRealm_shouldShareInstallation() {
+        // Given
+        IdentityProviderModel otherModel = mock(IdentityProviderModel.class);
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        when(otherModel.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://USOSweb.university.edu.pl/"));
+
+        // When
+        UsosIdentityProvider first = factory.create(session, model);
+        UsosIdentityProvider second = factory.create(session, otherModel);
+
+        // Then
+        assertThat(first.getTransport()).isSameAs(second.getTransport());
+    }
+
+    @Test
+    void getRateLimiter_withSameConsumerAtOtherInstallation_shouldUseSeparateLimiter() {
+        // Given
+        lenient().when(config.getInt("rateLimitPerSecond")).thenReturn(20);
+        factory.init(config);
+        UsosIdentityProviderConfig first = configWithConsumer("key", "secret");
+        first.setUsosBaseUrl("https://usosweb.university1.edu.pl");
+        UsosIdentityProviderConfig second = configWithConsumer("key", "secret");
+        second.setUsosBaseUrl("https://usosweb.university2.edu.pl");
+
+        // When & Then
+        assertThat(factory.getRateLimiter(session, first)).isNotSameAs(factory.getRateLimiter(session, second));
+    }
+
+    @Test
+    void init_withConnectionLimits_shouldApplyThemToTransports() {
+        // Given
+        when(config.getInt("maxConnectionsPerRoute")).thenReturn(7);
+        when(config.getInt("maxConnectionsTotal")).thenReturn(21);
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        factory.init(config);
+
+        // When
+        UsosHttpTransport transport = factory.create(session, model).getTransport();
+
+        // Then
+        assertThat(transport.getMaxConnectionsPerRoute()).isEqualTo(7);
+        assertThat(transport.getMaxConnectionsTotal()).isEqualTo(21);
+    }
+
+    @Test
+    void close_shouldReleaseTransports() {
+        // Given
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        UsosHttpTransport before = factory.create(session, model).getTransport();
+
+        // When
+        factory.close();
+        UsosHttpTransport after = factory.create(session, model).getTransport();
+
+        // Then
+        assertThat(after).isNotSameAs(before);
+    }
+
+    @Test
+    void close_shouldShutDownEnrichmentExecutor() {
+        // Given
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl",
+                "enrichmentCalls", "programme=services/progs/student#programme.id"));
+        factory.create(session, model);
+        ExecutorService executor = factory.getEnrichmentExecutor();
+
+        // When
+        factory.close();
+
+        // Then
+        assertThat(executor.isShutdown()).isTrue();
+        assertThat(factory.getEnrichmentExecutor()).isNotSameAs(executor);
+    }
+
+    @Test
+    void getSigner_withSameConsumer_shouldReuseSigner() {
+        // Given
+        UsosIdentityProviderConfig first = configWithConsumer("key", "secret");
+        UsosIdentityProviderConfig second = configWithConsumer("key", "secret");
+
+        // When & Then
+        assertThat(factory.getSigner(first)).isSameAs(factory.getSigner(second));
+    }
+
+    @Test
+    void getSigner_withRotatedSecret_shouldDeriveNewSigner() {
+        // Given
+        UsosOAuthSigner original = factory.getSigner(configWithConsumer("key", "secret"));
+
+        // When
+        UsosOAuthSigner rotated = factory.getSigner(configWithConsumer("key", "rotated"));
+
+        // Then
+        assertThat(rotated).isNotSameAs(original);
+        assertThat(rotated.hasConsumerSecret("rotated")).isTrue();
+    }
+
+    @Test
+    void getSigner_withSameKeyAndDifferentSecrets_shouldKeepBothSigners() {
+        // Given - two realms hold the same consumer key with different secrets
+        UsosIdentityProviderConfig first = configWithConsumer("key", "secret");
+        UsosIdentityProviderConfig second = configWithConsumer("key", "other-secret");
+
+        // When
+        UsosOAuthSigner firstSigner = factory.getSigner(first);
+        UsosOAuthSigner secondSigner = factory.getSigner(second);
+
+        // Then - neither replaces the other
+        assertThat(factory.getSigner(first)).isSameAs(firstSigner);
+        assertThat(factory.getSigner(second)).isSameAs(secondSigner);
+        assertThat(firstSigner.hasConsumerSecret("secret")).isTrue();
+        assertThat(secondSigner.hasConsumerSecret("other-secret")).isTrue();
+    }
+
+    @Test
+    void getRateLimiter_byDefault_shouldNotLimit() {
+        // When & Then
+        assertThat(factory.getRateLimiter(session, configWithConsumer("key", "secret"))).isNull();
+    }
+
+    @Test
+    void getRateLimiter_withSameConsumer_shouldShareLimiter() {
+        // Given
+        lenient().when(config.getInt("rateLimitPerSecond")).thenReturn(20);
+        factory.init(config);
+
+        // When
+        UsosRateLimiter first = factory.getRateLimiter(session, configWithConsumer("key", "secret"));
+        UsosRateLimiter second = factory.getRateLimiter(session, configWithConsumer("key", "rotated"));
+        UsosRateLimiter other = factory.getRateLimiter(session, configWithConsumer("other", "secret"));
+
+        // Then
+        assertThat(first).isNotNull().isSameAs(second).isNotSameAs(other);
+        assertThat(other.getConsumerKey()).isEqualTo("other");
+    }
+
+    @Test
+    void getSnapshot_withUnchangedModel_shouldReuseSnapshot() {
+        // Given
+        when(model.getInternalId()).thenReturn("idp-1");
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+
+        // When
+        UsosIdentityProviderSnapshot first = factory.getSnapshot(session, model);
+        UsosIdentityProviderSnapshot second = factory.getSnapshot(session, model);
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(factory.create(session, model).getConfig()).isSameAs(first.getConfig());
+    }
+
+    @Test
+    void getSnapshot_withChangedConfig_shouldRecompile() {
+        // Given
+        Map<String, String> modelConfig = new HashMap<>(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        when(model.getInternalId()).thenReturn("idp-1");
+        when(model.getConfig()).thenReturn(modelConfig);
+        UsosIdentityProviderSnapshot before = factory.getSnapshot(session, model);
+
+        // When
+        modelConfig.put("usosBaseUrl", "https://usos.other.edu.pl");
+        UsosIdentityProviderSnapshot after = factory.getSnapshot(session, model);
+
+        // Then
+        assertThat(after).isNotSameAs(before);
+        assertThat(after.getInstallation()).isEqualTo("https://usos.other.edu.pl");
+    }
+
+    @Test
+    void postInit_onIdentityProviderUpdated_shouldInvalidateSnapshot() {
+        // Given
+        when(model.getInternalId()).thenReturn("idp-1");
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        ProviderEventListener listener = registerListener();
+        UsosIdentityProviderSnapshot before = factory.getSnapshot(session, model);
+        RealmModel.IdentityProviderUpdatedEvent event = mock(RealmModel.IdentityProviderUpdatedEvent.class);
+        when(event.getUpdatedIdentityProvider()).thenReturn(model);
+
+        // When
+        listener.onEvent(event);
+
+        // Then
+        assertThat(factory.getSnapshot(session, model)).isNotSameAs(before);
+    }
+
+    @Test
+    void postInit_onRealmRemoved_shouldDropRealmSnapshots() {
+        // Given
+        KeycloakContext context = mock(KeycloakContext.class);
+        RealmModel realm = mock(RealmModel.class);
+        when(session.getContext()).thenReturn(context);
+        when(context.getRealm()).thenReturn(realm);
+        when(realm.getId()).thenReturn("realm-1");
+        when(model.getInternalId()).thenReturn("idp-1");
+        when(model.getConfig()).thenReturn(Map.of("usosBaseUrl", "https://usosweb.university.edu.pl"));
+        ProviderEventListener listener = registerListener();
+        UsosIdentityProviderSnapshot before = factory.getSnapshot(session, model);
+        RealmModel.RealmRemovedEvent event = mock(RealmModel.RealmRemovedEvent.class);
+        when(event.getRealm()).thenReturn(realm);
+
+        // When
+        listener.onEvent(event);
+
+        // Then
+        assertThat(before.getRealmId()).isEqualTo("realm-1");
+        assertThat(factory.getSnapshot(session, model)).isNotSameAs(before);
+    }
+
+    @Test
+    void warmUp_withProvidersOnOneInstallation_shouldConnectToItOnce() throws IOException {
+        // Given - the backlog accepts connections without the socket ever calling accept
+        try (ServerSocket usos = new ServerSocket(0, 10)) {
+            UsosIdentityProviderConfig first = configWithConsumer("key", "secret");
+            first.setUsosBaseUrl("http://localhost:" + usos.getLocalPort());
+            UsosIdentityProviderConfig second = configWithConsumer("other-key", "secret");
+            second.setUsosBaseUrl("http://localhost:" + usos.getLocalPort());
+
+            // When
+            int connected = factory.warmUp(List.of(first, second));
+
+            // Then
+            assertThat(connected).isEqualTo(1);
+            assertThat(factory.getTransport(first).getPoolStats().getAvailable())
+                    .isEqualTo(UsosIdentityProviderFactory.DEFAULT_WARM_UP_CONNECTIONS);
+        }
+    }
+
+    @Test
+    void warmUp_withUnreachableInstallation_shouldSkipIt() throws IOException {
+        // Given
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        UsosIdentityProviderConfig unreachable = configWithConsumer("key", "secret");
+        unreachable.setUsosBaseUrl("http://localhost:" + closedPort);
+
+        // When & Then
+        assertThat(factory.warmUp(List.of(unreachable))).isZero();
+        assertThat(factory.getTransport(unreachable).getPoolStats().getAvailable()).isZero();
+    }
+
+    @Test
+    void warmUp_whenNoSessionCanBeOpened_shouldSkipIt() {
+        // When - a session factory that is not running opens no session
+        int connected = factory.warmUp(sessionFactory);
+
+        // Then
+        assertThat(connected).isZero();
+        verify(sessionFactory).create();
+    }
+
     @Test
     void providerIdConstant_shouldBeUsos() {
         // Then
@@ -165,4 +459,18 @@ class UsosIdentityProviderFactoryTest {
         // Then
         assertThat(factory).isInstanceOf(org.keycloak.broker.provider.IdentityProviderFactory.class);
     }
-}
\ No newline at end of file
+
+    private static UsosIdentityProviderConfig configWithConsumer(String consumerKey, String consumerSecret) {
+        UsosIdentityProviderConfig consumerConfig = new UsosIdentityProviderConfig();
+        consumerConfig.setConsumerKey(consumerKey);
+        consumerConfig.setConsumerSecret(consumerSecret);
+        return consumerConfig;
+    }
+
+    private ProviderEventListener registerListener() {
+        ArgumentCaptor<ProviderEventListener> listener = ArgumentCaptor.forClass(ProviderEventListener.class);
+        factory.postInit(sessionFactory);
+        verify(sessionFactory).register(listener.capture());
+        return listener.getValue();
+    }
+}
@@ -1,17 +1,36 @@
 package pl.edu.solvro.keycloak.usos;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderSyncMode;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.userprofile.config.UPAttribute;
+import org.keycloak.representations.userprofile.config.UPAttributePermissions;
+import org.keycloak.representations.userprofile.config.UPConfig;
+import org.keycloak.userprofile.UserProfileProvider;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -96,4 +115,185 @@ class UsosIdentityProviderTest {
         assertThat(provider.getConfig()).isNotNull();
         assertThat(provider.getConfig().getUsosBaseUrl()).isEqualTo(TEST_BASE_URL);
     }
-}
\ No newline at end of file
+
+    @Test
+    void updateBrokeredUser_inForceSyncMode_shouldWriteChangedAndRemoveMissingAttributes() {
+        // Given
+        config.setSyncMode(IdentityProviderSyncMode.FORCE);
+        UserModel user = mock(UserModel.class);
+        when(user.getFirstAttribute("student_number")).thenReturn("123456");
+        when(user.getFirstAttribute("staff_status")).thenReturn("1");
+        when(user.getFirstAttribute("student_status")).thenReturn("2");
+        BrokeredIdentityContext context = mock(BrokeredIdentityContext.class);
+        when(context.getContextData()).thenReturn(Map.of("student_number", "123456", "student_status", "0"));
+
+        // When
+        provider.updateBrokeredUser(session, realm, user, context);
+
+        // Then
+        verify(user).setSingleAttribute("student_status", "0");
+        verify(user).removeAttribute("staff_status");
+        verify(user, never()).setSingleAttribute("student_number", "123456");
+    }
+
+    @Test
+    void updateBrokeredUser_inImportSyncMode_shouldLeaveAttributesAlone() {
+        // Given
+        config.setSyncMode(IdentityProviderSyncMode.IMPORT);
+        UserModel user = mock(UserModel.class);
+        BrokeredIdentityContext context = mock(BrokeredIdentityContext.class);
+        lenient().when(context.getContextData()).thenReturn(Map.of("student_number", "123456", "student_status", "0"));
+
+        // When
+        provider.updateBrokeredUser(session, realm, user, context);
+
+        // Then
+        verifyNoInteractions(user);
+    }
+
+    @Test
+    void applyAttributes_withSeveralValues_shouldWriteThemAsList() {
+        // Given
+        UserModel user = mock(UserModel.class);
+        when(user.getAttributeStream("faculty")).thenReturn(Stream.of("W4"));
+
+        // When
+        boolean changed = UsosIdentityProvider.applyAttributes(user, Map.of("faculty", List.of("W4", "W8")),
+                List.of("faculty"));
+
+        // Then
+        assertThat(changed).isTrue();
+        verify(user).setAttribute("faculty", List.of("W4", "W8"));
+    }
+
+    @Test
+    void preprocessFederatedIdentity_withStudentNumberLinking_shouldLinkTheOneMatchingAccount() {
+        // Given
+        configMap.put("accountLinking", "student_number");
+        UsosIdentityProvider linkingProvider = new UsosIdentityProvider(session, new UsosIdentityProviderConfig(
+                usosModel()));
+        givenStudentNumberEditableBy("admin");
+        UserProvider users = mock(UserProvider.class);
+        when(session.users()).thenReturn(users);
+        UserModel account = mock(UserModel.class);
+        when(users.searchForUserByUserAttributeStream(realm, "student_number", "123456"))
+                .thenReturn(Stream.of(account));
+
+        // When
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", "123456"));
+
+        // Then
+        verify(users).addFederatedIdentity(eq(realm), eq(account), argThat(link -> "12345".equals(link.getUserId())));
+    }
+
+    @Test
+    void preprocessFederatedIdentity_withUserEditableStudentNumber_shouldNotLink() {
+        // Given
+        configMap.put("accountLinking", "student_number");
+        UsosIdentityProvider linkingProvider = new UsosIdentityProvider(session, new UsosIdentityProviderConfig(
+                usosModel()));
+        givenStudentNumberEditableBy("admin", "user");
+        UserProvider users = mock(UserProvider.class);
+        lenient().when(session.users()).thenReturn(users);
+
+        // When
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", "123456"));
+
+        // Then
+        verify(users, never()).searchForUserByUserAttributeStream(any(), any(), any());
+        verify(users, never()).addFederatedIdentity(any(), any(), any());
+    }
+
+    @Test
+    void preprocessFederatedIdentity_withAccountLinkedToAnotherProvider_shouldNotLink() {
+        // Given
+        configMap.put("accountLinking", "student_number");
+        UsosIdentityProvider linkingProvider = new UsosIdentityProvider(session, new UsosIdentityProviderConfig(
+                usosModel()));
+        givenStudentNumberEditableBy("admin");
+        UserProvider users = mock(UserProvider.class);
+        when(session.users()).thenReturn(users);
+        UserModel account = mock(UserModel.class);
+        when(users.searchForUserByUserAttributeStream(realm, "student_number", "123456"))
+                .thenReturn(Stream.of(account));
+        when(users.getFederatedIdentitiesStream(realm, account))
+                .thenReturn(Stream.of(new FederatedIdentityModel("google", "g-1", "student@example.com")));
+
+        // When
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", "123456"));
+
+        // Then
+        verify(users, never()).addFederatedIdentity(any(), any(), any());
+    }
+
+    @Test
+    void preprocessFederatedIdentity_withIdLinkingAndEditableUsernames_shouldNotLookUpUsers() {
+        // Given
+        configMap.put("accountLinking", "id");
+        UsosIdentityProvider linkingProvider = new UsosIdentityProvider(session, new UsosIdentityProviderConfig(
+                usosModel()));
+        UserProvider users = mock(UserProvider.class);
+        lenient().when(session.users()).thenReturn(users);
+        when(realm.isEditUsernameAllowed()).thenReturn(true);
+
+        // When
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", null));
+
+        // Then
+        verify(users, never()).getUserByUsername(any(), any());
+    }
+
+    @Test
+    void preprocessFederatedIdentity_withIdLinkingAndNoAccount_shouldRememberTheMiss() {
+        // Given
+        configMap.put("accountLinking", "id");
+        UsosIdentityProvider linkingProvider = new UsosIdentityProvider(session, new UsosIdentityProviderConfig(
+                usosModel()));
+        UserProvider users = mock(UserProvider.class);
+        when(session.users()).thenReturn(users);
+
+        // When
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", null));
+        linkingProvider.preprocessFederatedIdentity(session, realm, brokeredIdentity("12345", null));
+
+        // Then
+        verify(users, times(1)).getUserByUsername(realm, "12345");
+        verify(users, never()).addFederatedIdentity(any(), any(), any());
+    }
+
+    @Test
+    void preprocessFederatedIdentity_whenLinkingOff_shouldNotLookUpUsers() {
+        // When
+        provider.preprocessFederatedIdentity(session, realm, mock(BrokeredIdentityContext.class));
+
+        // Then
+        verify(session, never()).users();
+    }
+
+    private org.keycloak.models.IdentityProviderModel usosModel() {
+        org.keycloak.models.IdentityProviderModel model = mock(org.keycloak.models.IdentityProviderModel.class);
+        when(model.getConfig()).thenReturn(configMap);
+        when(model.getAlias()).thenReturn("usos");
+        return model;
+    }
+
+    private void givenStudentNumberEditableBy(String... roles) {
+        UPConfig profile = new UPConfig().addOrReplaceAttribute(new UPAttribute("student_number",
+                new UPAttributePermissions(Set.of("admin", "user"), Set.of(roles))));
+        UserProfileProvider profiles = mock(UserProfileProvider.class);
+        when(profiles.getConfiguration()).thenReturn(profile);
+        when(session.getProvider(UserProfileProvider.class)).thenReturn(profiles);
+    }
+
+    private static BrokeredIdentityContext brokeredIdentity(String usosId, String studentNumber) {
+        BrokeredIdentityContext context = mock(BrokeredIdentityContext.class);
+        when(context.getId()).thenReturn(usosId);
+        when(context.getUsername()).thenReturn(usosId);
+        Map<String, Object> contextData = new HashMap<>();
+        if (studentNumber != null) {
+            contextData.put("student_number", studentNumber);
+        }
+        lenient().when(context.getContextData()).thenReturn(contextData);
+        return context;
+    }
+}
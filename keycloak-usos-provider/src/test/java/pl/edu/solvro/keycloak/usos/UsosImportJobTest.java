@@ -0,0 +1,160 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.mockito.InOrder;
+
+/**
+ * Tests for UsosImportJob.
+ */
+class UsosImportJobTest {
+
+    private static final String REALM_ID = "realm-id";
+    private static final String ALIAS = "usos";
+
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final KeycloakTransactionManager transaction = mock(KeycloakTransactionManager.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private final UserProvider users = mock(UserProvider.class);
+    private final UsosOAuthClient client = mock(UsosOAuthClient.class);
+    private final AdminEventBuilder adminEvent = mock(AdminEventBuilder.class);
+    private final AdminEventBuilder events = mock(AdminEventBuilder.class, RETURNS_SELF);
+    private UsosImportJob job;
+
+    @BeforeEach
+    void setUp() {
+        RealmProvider realms = mock(RealmProvider.class);
+        IdentityProviderStorageProvider identityProviders = mock(IdentityProviderStorageProvider.class);
+        IdentityProviderModel model = mock(IdentityProviderModel.class);
+        UsosIdentityProviderFactory factory = mock(UsosIdentityProviderFactory.class);
+        UsosIdentityProviderSnapshot snapshot = mock(UsosIdentityProviderSnapshot.class);
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(transaction);
+        when(session.realms()).thenReturn(realms);
+        when(session.getContext()).thenReturn(mock(KeycloakContext.class));
+        when(session.identityProviders()).thenReturn(identityProviders);
+        when(session.users()).thenReturn(users);
+        when(realms.getRealm(REALM_ID)).thenReturn(realm);
+        when(identityProviders.getByAlias(ALIAS)).thenReturn(model);
+        when(model.getAlias()).thenReturn(ALIAS);
+        when(model.getProviderId()).thenReturn(UsosIdentityProviderFactory.PROVIDER_ID);
+        when(factory.getSnapshot(session, model)).thenReturn(snapshot);
+        when(snapshot.getClient()).thenReturn(client);
+        when(snapshot.getAttributeMapping()).thenReturn(UsosAttributeMapping.DEFAULT);
+        when(adminEvent.clone(session)).thenReturn(events);
+        when(client.getAttributeMapping()).thenReturn(UsosAttributeMapping.DEFAULT);
+        when(client.canFetchUserProfiles()).thenReturn(true);
+        job = new UsosImportJob(factory, sessionFactory, REALM_ID, ALIAS, List.of("1", "2", "3", "4"), 4, 10,
+                adminEvent);
+    }
+
+    @Test
+    void importPage_shouldCreateNewUsersRefreshLinkedOnesAndSkipConflicts() throws Exception {
+        // Given - 1 is new, 2 is already linked, 3 collides with an unlinked account and 4 is unknown to USOS
+        when(client.fetchUserProfiles(List.of("1", "2", "3", "4"))).thenReturn(Map.of(
+                "1", new UsosUserProfile("1", "Jan", "Kowalski", "jan@example.com", "111", "0", "2"),
+                "2", new UsosUserProfile("2", "Anna", "Nowak", null, "222", "0", "1"),
+                "3", new UsosUserProfile("3", "Piotr", "Zieliński", null, null, "1", null)));
+        UserModel created = mock(UserModel.class);
+        when(created.getId()).thenReturn("created-id");
+        when(users.addUser(realm, "1")).thenReturn(created);
+        UserModel linked = mock(UserModel.class);
+        when(linked.getId()).thenReturn("linked-id");
+        when(users.getUserByFederatedIdentity(eq(realm), argThat(link -> "2".equals(link.getUserId()))))
+                .thenReturn(linked);
+        when(users.getUserByUsername(realm, "3")).thenReturn(mock(UserModel.class));
+
+        // When
+        UsosImportJob.Page page = job.importPage(List.of("1", "2", "3", "4"));
+
+        // Then
+        assertThat(page).isEqualTo(new UsosImportJob.Page(1, 1, 2));
+        verify(created).setEnabled(true);
+        verify(created).setEmail("jan@example.com");
+        verify(created).setSingleAttribute("student_status", "2");
+        verify(users).addFederatedIdentity(eq(realm), eq(created),
+                argThat(link -> ALIAS.equals(link.getIdentityProvider()) && "1".equals(link.getUserId())));
+        verify(linked).setSingleAttribute("student_number", "222");
+        verify(users, never()).addUser(realm, "3");
+        InOrder reported = inOrder(events);
+        reported.verify(events).operation(OperationType.CREATE);
+        reported.verify(events).resourcePath("users", "created-id");
+        reported.verify(events).success();
+        reported.verify(events).operation(OperationType.UPDATE);
+        reported.verify(events).resourcePath("users", "linked-id");
+        reported.verify(events).success();
+    }
+
+    @Test
+    void importPage_shouldFetchProfilesOutsideTransactions() throws Exception {
+        // Given
+        when(client.fetchUserProfiles(List.of("1"))).thenReturn(Map.of());
+
+        // When
+        job.importPage(List.of("1"));
+
+        // Then - the provider is looked up and the page written in separate transactions around the USOS call
+        InOrder order = inOrder(transaction, session, client);
+        order.verify(transaction).begin();
+        order.verify(session).close();
+        order.verify(client).fetchUserProfiles(List.of("1"));
+        order.verify(transaction).begin();
+        order.verify(session).close();
+    }
+
+    @Test
+    void importPage_whenUsosUnavailable_shouldStopJob() throws Exception {
+        // Given
+        when(client.fetchUserProfiles(any())).thenThrow(new UsosUnavailableException("Circuit open"));
+
+        // When & Then
+        assertThatThrownBy(() -> job.importPage(List.of("1")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Circuit open");
+        verify(users, never()).addUser(any(), anyString());
+    }
+
+    @Test
+    void importPage_withUsosError_shouldCountPageAsFailed() throws Exception {
+        // Given
+        when(client.fetchUserProfiles(any())).thenThrow(new IOException("USOS returned HTTP 400"));
+
+        // When
+        UsosImportJob.Page page = job.importPage(List.of("1", "2"));
+
+        // Then
+        assertThat(page).isEqualTo(new UsosImportJob.Page(0, 0, 0));
+        assertThat(job.getProgress().failed()).isEqualTo(2);
+        verify(users, never()).addFederatedIdentity(any(), any(), any(FederatedIdentityModel.class));
+    }
+}
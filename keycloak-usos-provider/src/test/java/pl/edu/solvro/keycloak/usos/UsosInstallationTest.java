@@ -0,0 +1,67 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.IdentityProviderModel;
+import org.mockito.Mockito;
+
+/**
+ * Tests for UsosInstallation.
+ */
+class UsosInstallationTest {
+
+    @Test
+    void keyOf_withEquivalentBaseUrls_shouldNormalizeToSameKey() {
+        // When & Then
+        assertThat(UsosInstallation.keyOf(configWithBaseUrl("HTTPS://USOSweb.University.edu.pl:443/")))
+                .isEqualTo(UsosInstallation.keyOf(configWithBaseUrl("https://usosweb.university.edu.pl")))
+                .isEqualTo("https://usosweb.university.edu.pl");
+    }
+
+    @Test
+    void keyOf_withBaseUrlPathOrPort_shouldKeepThem() {
+        // When & Then
+        assertThat(UsosInstallation.keyOf(configWithBaseUrl("https://usos.example.edu.pl:8443/usosapi/")))
+                .isEqualTo("https://usos.example.edu.pl:8443/usosapi");
+    }
+
+    @Test
+    void keyOf_withCustomEndpoints_shouldUseOrigin() {
+        // Given
+        IdentityProviderModel model = Mockito.mock(IdentityProviderModel.class);
+        Mockito.when(model.getConfig())
+                .thenReturn(Map.of("requestTokenUrl", "https://usos.example.edu.pl:8443/oauth/rt"));
+
+        // When
+        String key = UsosInstallation.keyOf(new UsosIdentityProviderConfig(model));
+
+        // Then
+        assertThat(key).isEqualTo("https://usos.example.edu.pl:8443");
+    }
+
+    @Test
+    void getRateLimiter_withSameConsumer_shouldCreateLimiterOnce() {
+        // Given
+        UsosInstallation installation = new UsosInstallation("https://usos.example.edu.pl",
+                new UsosHttpTransport(5, 10, 30, 1000, 1000, 2000));
+
+        // When
+        UsosRateLimiter first = installation.getRateLimiter("key", key -> new UsosRateLimiter(key, 10, 10, 0,
+                () -> 1));
+        UsosRateLimiter second = installation.getRateLimiter("key", key -> {
+            throw new AssertionError("Limiter created twice");
+        });
+
+        // Then
+        assertThat(second).isSameAs(first);
+        installation.close();
+    }
+
+    private static UsosIdentityProviderConfig configWithBaseUrl(String baseUrl) {
+        UsosIdentityProviderConfig config = new UsosIdentityProviderConfig();
+        config.setUsosBaseUrl(baseUrl);
+        return config;
+    }
+}
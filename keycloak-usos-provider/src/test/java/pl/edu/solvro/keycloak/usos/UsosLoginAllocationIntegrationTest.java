@@ -0,0 +1,74 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Allocation budget of a login, per phase, against an in-process USOS stub.
+ * <p>
+ * Bytes are counted on the login's own thread, so the stub's threads are left out while the HTTP client, signing,
+ * parsing and mapping are all in. Each budget can be overridden in bytes per login with the
+ * {@code usos.allocation.redirect} and {@code usos.allocation.callback} system properties.
+ */
+class UsosLoginAllocationIntegrationTest {
+
+    private static final int WARM_UP_LOGINS = 2000;
+    private static final int MEASURED_LOGINS = 1000;
+    private static final long REDIRECT_BUDGET_BYTES = Long.getLong("usos.allocation.redirect", 30_000);
+    private static final long CALLBACK_BUDGET_BYTES = Long.getLong("usos.allocation.callback", 45_000);
+
+    private final UsosIdentityProviderFactory factory = new UsosIdentityProviderFactory();
+    private UsosStubServer usos;
+    private UsosLoginDriver driver;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        factory.init(null);
+        usos = new UsosStubServer(0, 0, 0);
+        driver = new UsosLoginDriver(UsosLoginDriver.create(factory, UsosLoginDriver.model(usos.getBaseUrl())));
+    }
+
+    @AfterEach
+    void tearDown() {
+        factory.close();
+        usos.close();
+    }
+
+    @Test
+    void login_shouldStayWithinPerPhaseAllocationBudgets() throws Exception {
+        // Given
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "per-thread allocation is not measurable here");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < WARM_UP_LOGINS; i++) {
+            driver.login();
+        }
+
+        // When
+        long redirectBytes = 0;
+        long callbackBytes = 0;
+        for (int i = 0; i < MEASURED_LOGINS; i++) {
+            long start = threads.getCurrentThreadAllocatedBytes();
+            UsosLoginDriver.Redirected login = driver.redirect();
+            long redirected = threads.getCurrentThreadAllocatedBytes();
+            driver.callback(login);
+            long finished = threads.getCurrentThreadAllocatedBytes();
+            redirectBytes += redirected - start;
+            callbackBytes += finished - redirected;
+        }
+
+        // Then
+        System.out.printf("USOS login allocation: redirect %d B, callback %d B per login%n",
+                redirectBytes / MEASURED_LOGINS, callbackBytes / MEASURED_LOGINS);
+        assertThat(redirectBytes / MEASURED_LOGINS).as("bytes allocated by performLogin per login")
+                .isLessThanOrEqualTo(REDIRECT_BUDGET_BYTES);
+        assertThat(callbackBytes / MEASURED_LOGINS).as("bytes allocated by the callback per login")
+                .isLessThanOrEqualTo(CALLBACK_BUDGET_BYTES);
+    }
+}
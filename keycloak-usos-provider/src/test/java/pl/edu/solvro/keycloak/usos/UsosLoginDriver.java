@@ -0,0 +1,172 @@
+package pl.edu.solvro.keycloak.usos;
+
+import jakarta.ws.rs.core.Response;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Drives complete USOS logins through the provider, from performLogin to the broker callback, without a Keycloak
+ * server.
+ * <p>
+ * The Keycloak types the flow touches are backed by plain dynamic proxies rather than mocks, so nothing records
+ * invocations and allocation figures reflect the provider alone.
+ */
+public final class UsosLoginDriver {
+
+    public static final String CONSUMER_KEY = "perf-consumer-key";
+    public static final String CONSUMER_SECRET = "perf-consumer-secret";
+    public static final String REDIRECT_URI = "https://keycloak.example.com/realms/perf/broker/usos/endpoint";
+
+    private static final KeycloakSession NULL_SESSION = proxy(KeycloakSession.class, (target, method, args) -> null);
+
+    private final UsosIdentityProvider provider;
+    private final InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+
+    public UsosLoginDriver(UsosIdentityProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Builds a provider model pointing at the given USOS base URL, as an administrator would configure it
+     */
+    public static IdentityProviderModel model(String baseUrl) {
+        UsosIdentityProviderConfig config = new UsosIdentityProviderConfig();
+        config.setAlias("usos");
+        config.setInternalId(UUID.randomUUID().toString());
+        config.setProviderId(UsosIdentityProviderFactory.PROVIDER_ID);
+        config.setUsosBaseUrl(baseUrl);
+        config.setConsumerKey(CONSUMER_KEY);
+        config.setConsumerSecret(CONSUMER_SECRET);
+        return config;
+    }
+
+    /**
+     * Creates a provider for the model the way Keycloak does, through a factory and outside any realm
+     */
+    public static UsosIdentityProvider create(UsosIdentityProviderFactory factory, IdentityProviderModel model) {
+        return factory.create(NULL_SESSION, model);
+    }
+
+    /**
+     * A login redirected to USOS, waiting for the browser to come back to the callback
+     */
+    public record Redirected(AuthenticationSessionModel authSession, IdentityBrokerState state, String oauthToken) {
+    }
+
+    /**
+     * Runs one login and returns the brokered identity
+     *
+     * @throws IOException if the provider fails the login, with the message it reported
+     */
+    public BrokeredIdentityContext login() throws IOException {
+        return callback(redirect());
+    }
+
+    /**
+     * Runs the first half of a login, up to the redirect to USOS's authorize page
+     */
+    public Redirected redirect() {
+        Map<String, String> notes = new HashMap<>(4);
+        AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (target, method, args) -> {
+            switch (method.getName()) {
+                case "setClientNote":
+                    notes.put((String) args[0], (String) args[1]);
+                    return null;
+                case "getClientNote":
+                    return notes.get(args[0]);
+                default:
+                    return null;
+            }
+        });
+        IdentityBrokerState state = IdentityBrokerState.decoded("perf", "perf-client", "perf-client", "perf-tab",
+                null);
+        Response redirect = provider.performLogin(new AuthenticationRequest(null, null, authSession, null, null,
+                state, REDIRECT_URI));
+        // The browser would carry the request token from USOS's authorize page back to the callback
+        String query = redirect.getLocation().getRawQuery();
+        String oauthToken = query.substring(query.indexOf("oauth_token=") + "oauth_token=".length());
+        return new Redirected(authSession, state, oauthToken);
+    }
+
+    /**
+     * Runs the second half of a login, from the browser's return to the broker endpoint
+     *
+     * @throws IOException if the provider fails the login, with the message it reported
+     */
+    public BrokeredIdentityContext callback(Redirected login) throws IOException {
+        AuthenticationSessionModel authSession = login.authSession();
+        KeycloakContext context = proxy(KeycloakContext.class, (target, method, args) ->
+                "getAuthenticationSession".equals(method.getName()) ? authSession : null);
+        Callback callback = new Callback();
+        UsosIdentityProvider.Endpoint endpoint = (UsosIdentityProvider.Endpoint) provider.callback(null, callback,
+                null);
+        endpoint.session = proxy(KeycloakSession.class, (target, method, args) -> {
+            switch (method.getName()) {
+                case "getContext":
+                    return context;
+                case "singleUseObjects":
+                    return singleUseObjects;
+                default:
+                    return null;
+            }
+        });
+        endpoint.authResponse(login.oauthToken(), "verifier", login.state().getEncoded());
+        if (callback.identity == null) {
+            throw new IOException(callback.error);
+        }
+        return callback.identity;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(UsosLoginDriver.class.getClassLoader(), new Class<?>[] {type},
+                handler));
+    }
+
+    private static final class Callback implements IdentityProvider.AuthenticationCallback {
+
+        private BrokeredIdentityContext identity;
+        private String error;
+
+        @Override
+        public AuthenticationSessionModel getAndVerifyAuthenticationSession(String encodedCode) {
+            return null;
+        }
+
+        @Override
+        public Response authenticated(BrokeredIdentityContext context) {
+            identity = context;
+            return null;
+        }
+
+        @Override
+        public Response cancelled(IdentityProviderModel idpConfig) {
+            error = "Login cancelled";
+            return null;
+        }
+
+        @Override
+        public Response retryLogin(IdentityProvider<?> identityProvider, AuthenticationSessionModel authSession) {
+            error = "Login retried";
+            return null;
+        }
+
+        @Override
+        public Response error(String message) {
+            error = message;
+            return null;
+        }
+    }
+}
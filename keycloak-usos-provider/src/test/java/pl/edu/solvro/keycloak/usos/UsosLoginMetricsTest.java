@@ -0,0 +1,113 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for UsosLoginMetrics.
+ */
+class UsosLoginMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void recordPhase_shouldTimePhaseUnderRealmAndAlias() {
+        // Given
+        UsosLoginMetrics metrics = new UsosLoginMetrics(registry, "students", "usos-pwr");
+
+        // When
+        metrics.recordPhase(UsosLoginMetrics.Phase.ACCESS_TOKEN, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5));
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.PHASE_TIMER)
+                .tags("realm", "students", "idp", "usos-pwr", "phase", "access_token")
+                .timer().totalTime(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(5.0);
+    }
+
+    @Test
+    void successAndFailure_shouldCountByOutcomeAndCause() {
+        // Given
+        UsosLoginMetrics metrics = new UsosLoginMetrics(registry, "students", "usos-pwr");
+
+        // When
+        metrics.success();
+        metrics.failure(UsosLoginMetrics.Cause.TIMEOUT);
+        metrics.failure(UsosLoginMetrics.Cause.TIMEOUT);
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER).tags("outcome", "success").counter().count())
+                .isEqualTo(1.0);
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER).tags("outcome", "failure", "cause", "timeout")
+                .counter().count()).isEqualTo(2.0);
+    }
+
+    @Test
+    void bindInstallation_shouldReportPoolBulkheadAndBreakerUnderInstallationKey() {
+        // Given
+        UsosHttpTransport transport = new UsosHttpTransport(5, 10, 30, 1000, 1000, 2000,
+                UsosCircuitBreaker.withDefaults(), 4);
+        UsosInstallation installation = new UsosInstallation("https://usos.example.edu.pl", transport);
+
+        // When
+        UsosLoginMetrics.bindInstallation(registry, installation);
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.CONNECTIONS_GAUGE)
+                .tags("installation", "https://usos.example.edu.pl", "state", "leased").gauge().value()).isZero();
+        assertThat(registry.get(UsosLoginMetrics.CALLS_IN_FLIGHT_GAUGE).gauge().value()).isZero();
+        assertThat(registry.get(UsosLoginMetrics.CIRCUIT_STATE_GAUGE).gauge().value()).isZero();
+        installation.close();
+    }
+
+    @Test
+    void constructor_withSameTags_shouldReuseRegisteredMeters() {
+        // Given
+        new UsosLoginMetrics(registry, "students", "usos-pwr").success();
+
+        // When
+        new UsosLoginMetrics(registry, "students", "usos-pwr").success();
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER).tags("outcome", "success").counters()).hasSize(1);
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER).tags("outcome", "success").counter().count())
+                .isEqualTo(2.0);
+    }
+
+    @Test
+    void causeOf_shouldClassifyFailures() {
+        // When & Then
+        assertThat(UsosLoginMetrics.causeOf(new UsosTimeoutException("slow")))
+                .isEqualTo(UsosLoginMetrics.Cause.TIMEOUT);
+        assertThat(UsosLoginMetrics.causeOf(new UsosUnavailableException("circuit open")))
+                .isEqualTo(UsosLoginMetrics.Cause.UNAVAILABLE);
+        assertThat(UsosLoginMetrics.causeOf(new JsonParseException(null, "bad")))
+                .isEqualTo(UsosLoginMetrics.Cause.INVALID_PROFILE);
+        assertThat(UsosLoginMetrics.causeOf(new IOException("HTTP 500")))
+                .isEqualTo(UsosLoginMetrics.Cause.USOS_ERROR);
+        assertThat(UsosLoginMetrics.causeOf(new IllegalStateException()))
+                .isEqualTo(UsosLoginMetrics.Cause.INTERNAL_ERROR);
+    }
+
+    @Test
+    void bindUserInfoCache_shouldExposeHitsAndMisses() {
+        // Given
+        UsosUserInfoCache cache = Mockito.mock(UsosUserInfoCache.class);
+        Mockito.when(cache.getHits()).thenReturn(3L);
+        Mockito.when(cache.getMisses()).thenReturn(1L);
+
+        // When
+        UsosLoginMetrics.bindUserInfoCache(registry, cache);
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.USER_INFO_CACHE_COUNTER).tag("result", "hit")
+                .functionCounter().count()).isEqualTo(3.0);
+        assertThat(registry.get(UsosLoginMetrics.USER_INFO_CACHE_COUNTER).tag("result", "miss")
+                .functionCounter().count()).isEqualTo(1.0);
+    }
+}
@@ -3,21 +3,64 @@ package pl.edu.solvro.keycloak.usos;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.NewCookie;
+import jakarta.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.http.client.utils.DateUtils;
+import org.infinispan.manager.DefaultCacheManager;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.broker.provider.IdentityProvider.AuthenticationCallback;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.http.HttpResponse;
 import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 /**
@@ -32,10 +75,25 @@ class UsosOAuthIntegrationTest {
     private static final String TEST_ACCESS_TOKEN = "test-access-token";
     private static final String TEST_ACCESS_TOKEN_SECRET = "test-access-token-secret";
     private static final String TEST_OAUTH_VERIFIER = "test-verifier";
+    private static final String TEST_REDIRECT_URI = "https://keycloak.example.com/realms/test/broker/usos/endpoint";
+    private static final String USER_INFO_JSON = """
+            {
+                "id": "12345",
+                "first_name": "Jan",
+                "last_name": "Kowalski",
+                "email": "jan.kowalski@student.university.edu.pl",
+                "student_number": "123456",
+                "staff_status": "0",
+                "student_status": "2"
+            }
+            """;
 
     private WireMockServer wireMockServer;
     private String baseUrl;
     private UsosIdentityProviderConfig config;
+    private UsosHttpTransport transport;
+    private final ExecutorService enrichmentExecutor = UsosEnrichment.newExecutor(4, 16);
+    private UsosRequestTokenPools requestTokenPools;
 
     @BeforeEach
     void setUp() {
@@ -60,11 +118,705 @@ class UsosOAuthIntegrationTest {
 
     @AfterEach
     void tearDown() {
+        if (requestTokenPools != null) {
+            requestTokenPools.close();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+        enrichmentExecutor.shutdownNow();
         if (wireMockServer != null) {
             wireMockServer.stop();
         }
     }
 
+    @Test
+    void fullLoginFlow_shouldRedirectToUsosAndAuthenticateWithProfile() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        Map<String, String> notes = new HashMap<>();
+        AuthenticationSessionModel authSession = authenticationSession(notes);
+
+        // When - Step 1
+        Response redirect = provider.performLogin(authenticationRequest(authSession));
+
+        // Then
+        assertThat(redirect.getStatus()).isEqualTo(303);
+        assertThat(redirect.getLocation().toString())
+                .startsWith(baseUrl + "/services/oauth/authorize")
+                .contains("oauth_token=" + TEST_REQUEST_TOKEN);
+        assertThat(notes).containsValues(TEST_REQUEST_TOKEN, TEST_REQUEST_TOKEN_SECRET);
+
+        // When - Steps 2 and 3
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+        Response result = callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(200);
+        ArgumentCaptor<BrokeredIdentityContext> identity = ArgumentCaptor.forClass(BrokeredIdentityContext.class);
+        verify(callback).authenticated(identity.capture());
+        assertThat(identity.getValue().getId()).isEqualTo("12345");
+        assertThat(identity.getValue().getEmail()).isEqualTo("jan.kowalski@student.university.edu.pl");
+        assertThat(identity.getValue().getFirstName()).isEqualTo("Jan");
+        assertThat(identity.getValue().getLastName()).isEqualTo("Kowalski");
+        // Without the API proxy the token secret is not stored
+        assertThat(identity.getValue().getToken()).isEqualTo(TEST_ACCESS_TOKEN);
+        assertThat(identity.getValue().getContextData())
+                .containsEntry("student_number", "123456")
+                .containsEntry("staff_status", "0")
+                .containsEntry("student_status", "2");
+    }
+
+    @Test
+    void fullLoginFlow_withEnrichmentCalls_shouldMergeAnswersSignedWithAccessToken() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        stubFor(get(urlPathEqualTo("/services/progs/student")).willReturn(aResponse().withStatus(200)
+                .withFixedDelay(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody("[{\"id\":\"1\",\"programme\":{\"id\":\"INF\"}},{\"programme\":{\"id\":\"MAT\"}}]")));
+        stubFor(get(urlPathEqualTo("/services/photos/photo")).willReturn(aResponse().withStatus(500)));
+        config.setEnrichmentCalls("programme=services/progs/student?active_only=true#programme.id\n"
+                + "photo=services/photos/photo#url");
+        transport = UsosHttpTransport.withDefaults();
+        UsosIdentityProvider provider = new UsosIdentityProvider(mock(KeycloakSession.class),
+                UsosIdentityProviderSnapshot.builder(config, transport,
+                                new UsosOAuthSigner(TEST_CONSUMER_KEY, TEST_CONSUMER_SECRET))
+                        .enrichmentExecutor(enrichmentExecutor)
+                        .build());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        Response result = callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then - the failed photo call leaves its attribute out of those the login resolved
+        assertThat(result.getStatus()).isEqualTo(200);
+        ArgumentCaptor<BrokeredIdentityContext> identity = ArgumentCaptor.forClass(BrokeredIdentityContext.class);
+        verify(callback).authenticated(identity.capture());
+        assertThat(identity.getValue().getContextData())
+                .containsEntry("student_number", "123456")
+                .containsEntry("programme", List.of("INF", "MAT"))
+                .containsEntry(UsosEnrichment.RESOLVED_ATTRIBUTES, List.of("programme"))
+                .doesNotContainKey("photo");
+        WireMock.verify(getRequestedFor(urlPathEqualTo("/services/progs/student"))
+                .withQueryParam("active_only", equalTo("true"))
+                .withHeader("Authorization", matching(".*oauth_token=\"" + TEST_ACCESS_TOKEN + "\".*")));
+    }
+
+    @Test
+    void prefetchedLoginFlow_shouldUseFixedCallbackAndResolveStateFromToken() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        config.setRequestTokenPrefetchEnabled(true);
+        requestTokenPools = new UsosRequestTokenPools();
+        transport = UsosHttpTransport.withDefaults();
+        InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.singleUseObjects()).thenReturn(singleUseObjects);
+        UsosIdentityProvider provider = new UsosIdentityProvider(session, config, transport, requestTokenPools);
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+
+        // When - Step 1
+        Response redirect = provider.performLogin(authenticationRequest(authSession));
+
+        // Then - the callback URL carries no state, the token maps to it instead
+        assertThat(redirect.getStatus()).isEqualTo(303);
+        WireMock.verify(WireMock.postRequestedFor(urlPathEqualTo("/services/oauth/request_token"))
+                .withHeader("Authorization", WireMock.containing("oauth_callback=\"https%3A%2F%2Fkeycloak"))
+                .withHeader("Authorization", WireMock.notMatching(".*state.*")));
+        assertThat(singleUseObjects.get("usos-request-token-state:" + TEST_REQUEST_TOKEN))
+                .containsEntry("state", "test-state");
+
+        // When - callback without state lands on a node without the auth session in context
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.getAndVerifyAuthenticationSession("test-state")).thenReturn(authSession);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(session.getContext()).thenReturn(context);
+        UsosIdentityProvider.Endpoint endpoint = (UsosIdentityProvider.Endpoint) provider
+                .callback(mock(RealmModel.class), callback, null);
+        endpoint.session = session;
+        Response result = endpoint.authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, null);
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(200);
+        verify(context).setAuthenticationSession(authSession);
+        assertThat(singleUseObjects.contains("usos-request-token-state:" + TEST_REQUEST_TOKEN)).isFalse();
+    }
+
+    @Test
+    void statelessLoginFlow_shouldCarrySealedRequestTokenInCookieInsteadOfSession() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        config.setStatelessCallbackEnabled(true);
+        transport = UsosHttpTransport.withDefaults();
+        KeyManager keys = mock(KeyManager.class);
+        SecretKeySpec aesKey = new SecretKeySpec(new byte[16], "AES");
+        when(keys.getActiveAesKey(any())).thenReturn(new KeyManager.ActiveAesKey("aes-kid", aesKey));
+        when(keys.getAesSecretKey(any(), Mockito.eq("aes-kid"))).thenReturn(aesKey);
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.keys()).thenReturn(keys);
+        when(session.singleUseObjects()).thenReturn(new InMemorySingleUseObjects());
+        UsosIdentityProvider provider = new UsosIdentityProvider(session, config, transport);
+        Map<String, String> notes = new HashMap<>();
+        AuthenticationSessionModel authSession = authenticationSession(notes);
+
+        // When - Step 1
+        Response redirect = provider.performLogin(authenticationRequest(authSession));
+
+        // Then - nothing is written to the auth session
+        assertThat(redirect.getStatus()).isEqualTo(303);
+        assertThat(notes).isEmpty();
+        NewCookie cookie = redirect.getCookies().get(UsosCallbackState.cookieName(TEST_REQUEST_TOKEN));
+        assertThat(cookie).isNotNull();
+        assertThat(cookie.getValue()).doesNotContain(TEST_REQUEST_TOKEN_SECRET);
+        assertThat(cookie.getPath()).isEqualTo("/realms/test/broker/usos/endpoint");
+        assertThat(cookie.isHttpOnly()).isTrue();
+        assertThat(cookie.isSecure()).isTrue();
+
+        // When - the browser returns the cookie to the callback
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(session.getContext()).thenReturn(context);
+        when(context.getAuthenticationSession()).thenReturn(authSession);
+        HttpResponse response = mock(HttpResponse.class);
+        when(context.getHttpResponse()).thenReturn(response);
+        KeycloakUriInfo uri = mock(KeycloakUriInfo.class);
+        when(uri.getRequestUri()).thenReturn(URI.create("https://keycloak.example.com/realms/test/broker/usos/endpoint"
+                + "?oauth_token=" + TEST_REQUEST_TOKEN));
+        when(context.getUri()).thenReturn(uri);
+        UsosIdentityProvider.Endpoint endpoint = (UsosIdentityProvider.Endpoint) provider
+                .callback(mock(RealmModel.class), callback, null);
+        endpoint.session = session;
+        endpoint.headers = mock(HttpHeaders.class);
+        when(endpoint.headers.getCookies()).thenReturn(Map.of(cookie.getName(), new Cookie.Builder(cookie.getName())
+                .value(cookie.getValue())
+                .build()));
+        Response result = endpoint.authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(200);
+        ArgumentCaptor<BrokeredIdentityContext> identity = ArgumentCaptor.forClass(BrokeredIdentityContext.class);
+        verify(callback).authenticated(identity.capture());
+        assertThat(identity.getValue().getId()).isEqualTo("12345");
+        assertThat(identity.getValue().getAuthenticationSession()).isSameAs(authSession);
+        WireMock.verify(postRequestedFor(urlPathEqualTo("/services/oauth/access_token"))
+                .withHeader("Authorization", WireMock.containing("oauth_token=\"" + TEST_REQUEST_TOKEN + "\"")));
+        ArgumentCaptor<NewCookie> expired = ArgumentCaptor.forClass(NewCookie.class);
+        verify(response).setCookieIfAbsent(expired.capture());
+        assertThat(expired.getValue().getName()).isEqualTo(cookie.getName());
+        assertThat(expired.getValue().getPath()).isEqualTo(cookie.getPath());
+        assertThat(expired.getValue().getMaxAge()).isZero();
+    }
+
+    @Test
+    void statelessCallback_withoutCookie_shouldFailAsSessionNotFound() {
+        // Given
+        config.setStatelessCallbackEnabled(true);
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+        UsosIdentityProvider.Endpoint endpoint = callbackEndpoint(provider, callback,
+                authenticationSession(new HashMap<>()));
+        endpoint.headers = mock(HttpHeaders.class);
+
+        // When
+        Response result = endpoint.authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(400);
+        verify(callback).error("Request token not found in session");
+    }
+
+    @Test
+    void repeatedLogin_withUserInfoCache_shouldFetchProfileAndCacheItByUserId() throws Exception {
+        // Given
+        stubTokenEndpoints();
+        stubFor(post(urlPathEqualTo("/services/oauth/access_token")).inScenario("new token per login")
+                .whenScenarioStateIs(Scenario.STARTED).willSetStateTo("second login")
+                .willReturn(aResponse().withStatus(200)
+                        .withBody("oauth_token=first-access-token&oauth_token_secret=first-secret")));
+        stubFor(post(urlPathEqualTo("/services/oauth/access_token")).inScenario("new token per login")
+                .whenScenarioStateIs("second login")
+                .willReturn(aResponse().withStatus(200)
+                        .withBody("oauth_token=second-access-token&oauth_token_secret=second-secret")));
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        transport = UsosHttpTransport.withDefaults();
+        try (DefaultCacheManager cacheManager = new DefaultCacheManager()) {
+            UsosUserInfoCache userInfoCache = UsosUserInfoCache.create(cacheManager, 100);
+            config.setUserInfoCacheEnabled(true);
+            UsosIdentityProviderSnapshot snapshot = UsosIdentityProviderSnapshot.builder(config, transport,
+                    new UsosOAuthSigner(TEST_CONSUMER_KEY, TEST_CONSUMER_SECRET)).userInfoCache(userInfoCache).build();
+            UsosIdentityProvider provider = new UsosIdentityProvider(mock(KeycloakSession.class), snapshot);
+
+            // When
+            for (int i = 0; i < 2; i++) {
+                AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+                provider.performLogin(authenticationRequest(authSession));
+                AuthenticationCallback callback = mock(AuthenticationCallback.class);
+                when(callback.authenticated(any())).thenReturn(Response.ok().build());
+                callbackEndpoint(provider, callback, authSession)
+                        .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+                verify(callback).authenticated(any());
+            }
+
+            // Then - logins never read the cache, since the user id is only known from the profile
+            WireMock.verify(2, WireMock.getRequestedFor(urlPathEqualTo("/services/users/user")));
+            assertThat(userInfoCache.getHits()).isZero();
+            assertThat(userInfoCache.getMisses()).isZero();
+            assertThat(userInfoCache.get(snapshot.getInstallation(), "12345")).contains("\"id\":\"12345\"");
+        }
+    }
+
+    @Test
+    void replayedCallback_whileFirstIsRunning_shouldReuseItsExchange() throws Exception {
+        // Given
+        config.setCallbackDeduplicationEnabled(true);
+        config.setApiProxyServices("services/courses/user");
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withFixedDelay(300)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+        InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+        AuthenticationCallback first = mock(AuthenticationCallback.class);
+        when(first.authenticated(any())).thenReturn(Response.ok().build());
+        AuthenticationCallback replay = mock(AuthenticationCallback.class);
+        when(replay.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When - the browser retries while the first callback waits for USOS
+        CompletableFuture<Response> firstResult = CompletableFuture.supplyAsync(
+                () -> callbackEndpoint(provider, first, authSession, singleUseObjects)
+                        .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state"));
+        Thread.sleep(100);
+        Response replayResult = callbackEndpoint(provider, replay, authSession, singleUseObjects)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(firstResult.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+        assertThat(replayResult.getStatus()).isEqualTo(200);
+        ArgumentCaptor<BrokeredIdentityContext> identity = ArgumentCaptor.forClass(BrokeredIdentityContext.class);
+        verify(replay).authenticated(identity.capture());
+        assertThat(identity.getValue().getId()).isEqualTo("12345");
+        // The API proxy is on, so the replay stores the secret it needs to sign calls
+        assertThat(identity.getValue().getToken())
+                .isEqualTo("oauth_token=" + TEST_ACCESS_TOKEN + "&oauth_token_secret=" + TEST_ACCESS_TOKEN_SECRET);
+        assertThat(identity.getValue().getContextData()).containsEntry("student_number", "123456");
+        WireMock.verify(1, postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+        WireMock.verify(1, getRequestedFor(urlPathEqualTo("/services/users/user")));
+    }
+
+    @Test
+    void firstCallback_withoutActiveAesKey_shouldStillLogInAndReleaseReplays() throws Exception {
+        // Given
+        config.setCallbackDeduplicationEnabled(true);
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+        InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+        AuthenticationCallback first = mock(AuthenticationCallback.class);
+        when(first.authenticated(any())).thenReturn(Response.ok().build());
+        UsosIdentityProvider.Endpoint firstEndpoint = callbackEndpoint(provider, first, authSession, singleUseObjects);
+        when(firstEndpoint.session.keys()).thenReturn(mock(KeyManager.class));
+        AuthenticationCallback replay = mock(AuthenticationCallback.class);
+        when(replay.error(any())).thenReturn(Response.status(400).build());
+
+        // When
+        Response firstResult = firstEndpoint.authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+        Response replayResult = callbackEndpoint(provider, replay, authSession, singleUseObjects)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then - the outcome could not be sealed, so the replay is told to start over instead of waiting
+        assertThat(firstResult.getStatus()).isEqualTo(200);
+        verify(first).authenticated(any());
+        assertThat(replayResult.getStatus()).isEqualTo(400);
+        verify(replay).error(Mockito.contains("start it again"));
+        WireMock.verify(1, postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+    }
+
+    @Test
+    void replayedPrefetchedCallback_withoutState_shouldReachTheFirstCallbacksExchange() throws Exception {
+        // Given
+        config.setCallbackDeduplicationEnabled(true);
+        config.setRequestTokenPrefetchEnabled(true);
+        requestTokenPools = new UsosRequestTokenPools();
+        transport = UsosHttpTransport.withDefaults();
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200)
+                .withFixedDelay(300)
+                .withHeader("Content-Type", "application/json")
+                .withBody(USER_INFO_JSON));
+        InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.singleUseObjects()).thenReturn(singleUseObjects);
+        UsosIdentityProvider provider = new UsosIdentityProvider(session, config, transport, requestTokenPools);
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+        AuthenticationCallback first = mock(AuthenticationCallback.class);
+        when(first.getAndVerifyAuthenticationSession("test-state")).thenReturn(authSession);
+        when(first.authenticated(any())).thenReturn(Response.ok().build());
+        AuthenticationCallback replay = mock(AuthenticationCallback.class);
+        when(replay.getAndVerifyAuthenticationSession("test-state")).thenReturn(authSession);
+        when(replay.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When - the retried callback carries no state either, and lands on a node without the auth session
+        CompletableFuture<Response> firstResult = CompletableFuture.supplyAsync(
+                () -> callbackEndpoint(provider, first, null, singleUseObjects)
+                        .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, null));
+        Thread.sleep(100);
+        Response replayResult = callbackEndpoint(provider, replay, null, singleUseObjects)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, null);
+
+        // Then
+        assertThat(firstResult.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+        assertThat(replayResult.getStatus()).isEqualTo(200);
+        ArgumentCaptor<BrokeredIdentityContext> identity = ArgumentCaptor.forClass(BrokeredIdentityContext.class);
+        verify(replay).authenticated(identity.capture());
+        assertThat(identity.getValue().getId()).isEqualTo("12345");
+        assertThat(identity.getValue().getAuthenticationSession()).isSameAs(authSession);
+        WireMock.verify(1, postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+        WireMock.verify(1, getRequestedFor(urlPathEqualTo("/services/users/user")));
+    }
+
+    @Test
+    void fullLoginFlow_shouldRecordPhaseTimingsAndOutcome() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody(USER_INFO_JSON));
+        transport = UsosHttpTransport.withDefaults();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        UsosIdentityProviderSnapshot snapshot = UsosIdentityProviderSnapshot.builder(config, transport,
+                new UsosOAuthSigner(TEST_CONSUMER_KEY, TEST_CONSUMER_SECRET))
+                .metrics(new UsosLoginMetrics(registry, "test", "usos"))
+                .build();
+        UsosIdentityProvider provider = new UsosIdentityProvider(mock(KeycloakSession.class), snapshot);
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        for (String phase : new String[] {"request_token", "access_token", "user_info", "profile"}) {
+            assertThat(registry.get(UsosLoginMetrics.PHASE_TIMER).tags("realm", "test", "idp", "usos", "phase", phase)
+                    .timer().count()).as(phase).isEqualTo(1);
+        }
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER).tags("outcome", "success").counter().count())
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    void callback_failingBeforeTheFirstTimedPhase_shouldCountTheFailure() {
+        // Given
+        transport = UsosHttpTransport.withDefaults();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        UsosIdentityProviderSnapshot snapshot = UsosIdentityProviderSnapshot.builder(config, transport,
+                new UsosOAuthSigner(TEST_CONSUMER_KEY, TEST_CONSUMER_SECRET))
+                .metrics(new UsosLoginMetrics(registry, "test", "usos"))
+                .build();
+        UsosIdentityProvider provider = new UsosIdentityProvider(mock(KeycloakSession.class), snapshot);
+        AuthenticationSessionModel authSession = mock(AuthenticationSessionModel.class);
+        when(authSession.getClientNote(anyString())).thenThrow(new IllegalStateException("Session store is down"));
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+
+        // When
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(registry.get(UsosLoginMetrics.RESULT_COUNTER)
+                .tags("outcome", "failure", "cause", "internal_error").counter().count()).isEqualTo(1.0);
+        WireMock.verify(0, postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+    }
+
+    @Test
+    void fullLoginFlow_withAuditQueue_shouldEmitOneEventWithUserIdAndPhaseTimings() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody(USER_INFO_JSON));
+        transport = UsosHttpTransport.withDefaults();
+        List<UsosLoginEvent> written = new CopyOnWriteArrayList<>();
+        UsosAuditQueue audit = new UsosAuditQueue(written::addAll, 10, 10, 60_000);
+        UsosIdentityProviderSnapshot snapshot = UsosIdentityProviderSnapshot.builder(config, transport,
+                new UsosOAuthSigner(TEST_CONSUMER_KEY, TEST_CONSUMER_SECRET)).realmId("realm-id").audit(audit).build();
+        UsosIdentityProvider provider = new UsosIdentityProvider(mock(KeycloakSession.class), snapshot);
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+        audit.close();
+
+        // Then
+        assertThat(written).hasSize(1);
+        UsosLoginEvent event = written.get(0);
+        assertThat(event.isSuccess()).isTrue();
+        assertThat(event.realmId()).isEqualTo("realm-id");
+        assertThat(event.usosUserId()).isEqualTo("12345");
+        assertThat(event.phaseNanos()[UsosLoginMetrics.Phase.ACCESS_TOKEN.ordinal()]).isPositive();
+        assertThat(event.phaseNanos()[UsosLoginMetrics.Phase.USER_INFO.ordinal()]).isPositive();
+    }
+
+    @Test
+    void callback_withForeignOauthToken_shouldBeRejected() {
+        // Given
+        stubTokenEndpoints();
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+
+        // When
+        Response result = callbackEndpoint(provider, callback, authSession)
+                .authResponse("some-other-token", TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(400);
+        verify(callback).error("Request token mismatch");
+    }
+
+    @Test
+    void callback_whenUserInfoExceedsDeadline_shouldReturnCallbackError() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody(USER_INFO_JSON).withFixedDelay(3000));
+        UsosIdentityProvider provider = createProvider(new UsosHttpTransport(5, 10, 30, 10000, 10000, 1500));
+        Map<String, String> notes = new HashMap<>();
+        AuthenticationSessionModel authSession = authenticationSession(notes);
+        provider.performLogin(authenticationRequest(authSession));
+
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+
+        // When
+        Response result = callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(400);
+        verify(callback).error("USOS did not respond in time, please try again");
+    }
+
+    @Test
+    void fullLoginFlow_shouldSignEveryLegWithTheMatchingToken() {
+        // Given
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody(USER_INFO_JSON));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        WireMock.verify(postRequestedFor(urlPathEqualTo("/services/oauth/request_token"))
+                .withHeader("Authorization", matching(".*oauth_callback=\"https%3A%2F%2Fkeycloak[^\"]*\", "
+                        + "oauth_consumer_key=\"" + TEST_CONSUMER_KEY + "\".*")));
+        WireMock.verify(postRequestedFor(urlPathEqualTo("/services/oauth/access_token"))
+                .withHeader("Authorization", matching(".*oauth_token=\"" + TEST_REQUEST_TOKEN + "\", "
+                        + "oauth_verifier=\"" + TEST_OAUTH_VERIFIER + "\".*")));
+        WireMock.verify(getRequestedFor(urlPathEqualTo("/services/users/user"))
+                .withQueryParam("format", equalTo("json"))
+                .withQueryParam("fields", equalTo(UsosUserProfile.FIELDS))
+                .withHeader("Authorization", matching(".*oauth_token=\"" + TEST_ACCESS_TOKEN + "\".*"
+                        + "oauth_signature=\"[A-Za-z0-9%]+\"")));
+    }
+
+    @Test
+    void performLogin_whenUsosRejectsConsumer_shouldThrowIdentityBrokerException() {
+        // Given
+        stubFor(post(urlPathEqualTo("/services/oauth/request_token"))
+                .willReturn(aResponse().withStatus(401).withBody("Unauthorized")));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationRequest request = authenticationRequest(authenticationSession(new HashMap<>()));
+
+        // When & Then
+        assertThatThrownBy(() -> provider.performLogin(request))
+                .isInstanceOf(IdentityBrokerException.class)
+                .hasMessage("Failed to retrieve request token from USOS")
+                .hasRootCauseMessage("USOS returned HTTP 401 for " + baseUrl
+                        + "/services/oauth/request_token: Unauthorized");
+    }
+
+    @Test
+    void callback_whenUserInfoExceedsSizeLimit_shouldReturnCallbackError() {
+        // Given
+        String padding = "x".repeat(UsosUserProfile.MAX_RESPONSE_BYTES);
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody("{\"id\":\"12345\",\"padding\":\"" + padding + "\"}"));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        provider.performLogin(authenticationRequest(authSession));
+
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+
+        // When
+        Response result = callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        assertThat(result.getStatus()).isEqualTo(400);
+        verify(callback).error(contains("byte limit"));
+        verify(callback, Mockito.never()).authenticated(any());
+    }
+
+    @Test
+    void performLogin_whenUsosKeepsFailing_shouldOpenCircuitAndFailFast() {
+        // Given
+        stubFor(post(urlPathEqualTo("/services/oauth/request_token"))
+                .willReturn(aResponse().withStatus(503).withBody("Service Unavailable")));
+        config.setRetryMaxAttempts(1); // one request per login, so the breaker's window fills predictably
+        UsosIdentityProvider provider = createProvider(new UsosHttpTransport(5, 10, 30, 10000, 10000, 15000,
+                new UsosCircuitBreaker(50, 100, 5000, 4, 4, 60000, 1), 0));
+        AuthenticationRequest request = authenticationRequest(authenticationSession(new HashMap<>()));
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> provider.performLogin(request))
+                    .hasMessage("Failed to retrieve request token from USOS");
+        }
+
+        // When & Then
+        assertThatThrownBy(() -> provider.performLogin(request))
+                .isInstanceOf(IdentityBrokerException.class)
+                .hasMessageStartingWith("USOS is temporarily unavailable: Circuit breaker for USOS at " + baseUrl
+                        + " is open");
+        WireMock.verify(4, postRequestedFor(urlPathEqualTo("/services/oauth/request_token")));
+    }
+
+    @Test
+    void callback_whenUsosRefusesTimestamp_shouldRetrySignedWithItsClock() {
+        // Given - USOS runs an hour ahead and refuses the first exchange
+        stubTokenEndpoints();
+        stubUserInfo(aResponse().withStatus(200).withBody(USER_INFO_JSON));
+        stubFor(post(urlPathEqualTo("/services/oauth/access_token")).inScenario("clock skew")
+                .whenScenarioStateIs(Scenario.STARTED).willSetStateTo("refused")
+                .willReturn(aResponse().withStatus(401)
+                        .withHeader("Date", DateUtils.formatDate(new Date(System.currentTimeMillis() + 3_600_000)))
+                        .withHeader("WWW-Authenticate", "OAuth oauth_problem=\"timestamp_refused\"")));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then - the verifier is exchanged again, signed with USOS's time, and later calls keep using it
+        verify(callback).authenticated(any());
+        List<LoggedRequest> exchanges = wireMockServer.findAll(
+                postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+        assertThat(exchanges).hasSize(2);
+        long now = System.currentTimeMillis() / 1000;
+        assertThat(oauthTimestamp(exchanges.get(1))).isBetween(now + 3590, now + 3610);
+        assertThat(oauthTimestamp(wireMockServer.findAll(getRequestedFor(urlPathEqualTo("/services/users/user")))
+                .get(0))).isBetween(now + 3590, now + 3610);
+    }
+
+    @Test
+    void callback_whenUserInfoFailsOnce_shouldRetryAndAuthenticate() {
+        // Given
+        stubTokenEndpoints();
+        stubFor(get(urlPathEqualTo("/services/users/user")).inScenario("flaky")
+                .whenScenarioStateIs(Scenario.STARTED).willSetStateTo("recovered")
+                .willReturn(aResponse().withStatus(503)));
+        stubFor(get(urlPathEqualTo("/services/users/user")).inScenario("flaky")
+                .whenScenarioStateIs("recovered")
+                .willReturn(aResponse().withStatus(200).withBody(USER_INFO_JSON)));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.authenticated(any())).thenReturn(Response.ok().build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        verify(callback).authenticated(any());
+        WireMock.verify(2, getRequestedFor(urlPathEqualTo("/services/users/user")));
+    }
+
+    @Test
+    void callback_whenAccessTokenLegFailsWithServerError_shouldNotExchangeVerifierAgain() {
+        // Given - USOS may have consumed the verifier before failing
+        stubTokenEndpoints();
+        stubFor(post(urlPathEqualTo("/services/oauth/access_token"))
+                .willReturn(aResponse().withStatus(500).withBody("Internal Server Error")));
+        UsosIdentityProvider provider = createProvider(UsosHttpTransport.withDefaults());
+        AuthenticationSessionModel authSession = authenticationSession(new HashMap<>());
+        AuthenticationCallback callback = mock(AuthenticationCallback.class);
+        when(callback.error(anyString())).thenReturn(Response.status(400).build());
+
+        // When
+        provider.performLogin(authenticationRequest(authSession));
+        callbackEndpoint(provider, callback, authSession)
+                .authResponse(TEST_REQUEST_TOKEN, TEST_OAUTH_VERIFIER, "test-state");
+
+        // Then
+        verify(callback).error(contains("HTTP 500"));
+        WireMock.verify(1, postRequestedFor(urlPathEqualTo("/services/oauth/access_token")));
+    }
+
+    @Test
+    void performLogin_whenRequestTokenExceedsDeadline_shouldFailFast() {
+        // Given
+        stubFor(post(urlPathEqualTo("/services/oauth/request_token"))
+                .willReturn(aResponse().withStatus(200).withFixedDelay(3000)
+                        .withBody("oauth_token=" + TEST_REQUEST_TOKEN
+                                + "&oauth_token_secret=" + TEST_REQUEST_TOKEN_SECRET)));
+        UsosIdentityProvider provider = createProvider(new UsosHttpTransport(5, 10, 30, 10000, 10000, 1500));
+        AuthenticationRequest request = authenticationRequest(authenticationSession(new HashMap<>()));
+
+        // When & Then
+        assertThatThrownBy(() -> provider.performLogin(request))
+                .isInstanceOf(IdentityBrokerException.class)
+                .hasMessage("Timed out retrieving request token from USOS");
+    }
+
     @Test
     void oauth_urlGeneration_shouldGenerateCorrectUrls() {
         // Then
@@ -225,4 +977,84 @@ class UsosOAuthIntegrationTest {
             assertThat(testConfig.getUserInfoUrl()).isEqualTo(testUrl + "/services/users/user");
         }
     }
-}
\ No newline at end of file
+
+    private void stubTokenEndpoints() {
+        stubFor(post(urlPathEqualTo("/services/oauth/request_token"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/x-www-form-urlencoded")
+                        .withBody("oauth_token=" + TEST_REQUEST_TOKEN
+                                + "&oauth_token_secret=" + TEST_REQUEST_TOKEN_SECRET
+                                + "&oauth_callback_confirmed=true")));
+        stubFor(post(urlPathEqualTo("/services/oauth/access_token"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/x-www-form-urlencoded")
+                        .withBody("oauth_token=" + TEST_ACCESS_TOKEN
+                                + "&oauth_token_secret=" + TEST_ACCESS_TOKEN_SECRET)));
+    }
+
+    private static long oauthTimestamp(LoggedRequest request) {
+        Matcher timestamp = Pattern.compile("oauth_timestamp=\"(\\d+)\"").matcher(request.getHeader("Authorization"));
+        assertThat(timestamp.find()).isTrue();
+        return Long.parseLong(timestamp.group(1));
+    }
+
+    private void stubUserInfo(com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder response) {
+        stubFor(get(urlPathEqualTo("/services/users/user")).willReturn(response));
+    }
+
+    private UsosIdentityProvider createProvider(UsosHttpTransport usosTransport) {
+        this.transport = usosTransport;
+        return new UsosIdentityProvider(mock(KeycloakSession.class), config, usosTransport);
+    }
+
+    private static AuthenticationSessionModel authenticationSession(Map<String, String> notes) {
+        AuthenticationSessionModel authSession = mock(AuthenticationSessionModel.class);
+        Mockito.doAnswer(invocation -> notes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(authSession).setClientNote(anyString(), anyString());
+        when(authSession.getClientNote(anyString())).thenAnswer(invocation -> notes.get(invocation.getArgument(0)));
+        return authSession;
+    }
+
+    private static AuthenticationRequest authenticationRequest(AuthenticationSessionModel authSession) {
+        IdentityBrokerState state = mock(IdentityBrokerState.class);
+        when(state.getEncoded()).thenReturn("test-state");
+        AuthenticationRequest request = mock(AuthenticationRequest.class);
+        when(request.getRedirectUri()).thenReturn(TEST_REDIRECT_URI);
+        when(request.getState()).thenReturn(state);
+        when(request.getAuthenticationSession()).thenReturn(authSession);
+        when(request.getRealm()).thenReturn(mock(RealmModel.class));
+        return request;
+    }
+
+    private static UsosIdentityProvider.Endpoint callbackEndpoint(UsosIdentityProvider provider,
+            AuthenticationCallback callback, AuthenticationSessionModel authSession) {
+        return callbackEndpoint(provider, callback, authSession, new InMemorySingleUseObjects());
+    }
+
+    private static UsosIdentityProvider.Endpoint callbackEndpoint(UsosIdentityProvider provider,
+            AuthenticationCallback callback, AuthenticationSessionModel authSession,
+            SingleUseObjectProvider singleUseObjects) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(session.getContext()).thenReturn(context);
+        when(session.singleUseObjects()).thenReturn(singleUseObjects);
+        KeyManager keys = mock(KeyManager.class);
+        SecretKeySpec aesKey = new SecretKeySpec(new byte[16], "AES");
+        when(keys.getActiveAesKey(any())).thenReturn(new KeyManager.ActiveAesKey("aes-kid", aesKey));
+        when(keys.getAesSecretKey(any(), Mockito.eq("aes-kid"))).thenReturn(aesKey);
+        when(session.keys()).thenReturn(keys);
+        when(context.getAuthenticationSession()).thenReturn(authSession);
+        HttpResponse response = mock(HttpResponse.class);
+        when(context.getHttpResponse()).thenReturn(response);
+        KeycloakUriInfo uri = mock(KeycloakUriInfo.class);
+        when(uri.getRequestUri()).thenReturn(URI.create("https://keycloak.example.com/realms/test/broker/usos/endpoint"
+                + "?oauth_token=" + TEST_REQUEST_TOKEN));
+        when(context.getUri()).thenReturn(uri);
+        UsosIdentityProvider.Endpoint endpoint = (UsosIdentityProvider.Endpoint) provider
+                .callback(mock(RealmModel.class), callback, null);
+        endpoint.session = session;
+        return endpoint;
+    }
+}
@@ -0,0 +1,99 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosOAuthSigner.
+ */
+class UsosOAuthSignerTest {
+
+    @Test
+    void authorizationHeader_withOAuthSpecExample_shouldProduceKnownSignature() {
+        // Given - OAuth Core 1.0 Appendix A.5
+        UsosOAuthSigner signer = new UsosOAuthSigner("dpf43f3p2l4k3l03", "kd94hf93k423kf44");
+
+        // When
+        String header = signer.authorizationHeader("GET",
+                "http://photos.example.net/photos?file=vacation.jpg&size=original",
+                "nnch734d00sl2jdk", "pfkkdhi9sl3r4s00", null, null, 1191242096L, "kllo9940pd9333jh");
+
+        // Then
+        assertThat(header).isEqualTo("OAuth oauth_consumer_key=\"dpf43f3p2l4k3l03\", "
+                + "oauth_nonce=\"kllo9940pd9333jh\", oauth_signature_method=\"HMAC-SHA1\", "
+                + "oauth_timestamp=\"1191242096\", oauth_token=\"nnch734d00sl2jdk\", oauth_version=\"1.0\", "
+                + "oauth_signature=\"tR3%2BTy81lMeYAr%2FFid0kMTYa%2FWM%3D\"");
+    }
+
+    @Test
+    void authorizationHeader_withoutToken_shouldSignWithConsumerSecretOnly() throws Exception {
+        // Given
+        UsosOAuthSigner signer = new UsosOAuthSigner("key", "s&cret");
+        String baseString = "POST&https%3A%2F%2Fusos.example.edu%2Fservices%2Foauth%2Frequest_token&"
+                + "oauth_callback%3Dhttps%253A%252F%252Fkc.example.edu%252Fcb%253Fstate%253Da%252Bb"
+                + "%26oauth_consumer_key%3Dkey%26oauth_nonce%3Dn%26oauth_signature_method%3DHMAC-SHA1"
+                + "%26oauth_timestamp%3D1%26oauth_version%3D1.0";
+
+        // When
+        String header = signer.authorizationHeader("POST",
+                "HTTPS://USOS.example.edu:443/services/oauth/request_token", null, null,
+                "https://kc.example.edu/cb?state=a+b", null, 1L, "n");
+
+        // Then
+        assertThat(header).contains("oauth_callback=\"https%3A%2F%2Fkc.example.edu%2Fcb%3Fstate%3Da%2Bb\"")
+                .doesNotContain("oauth_token=")
+                .endsWith("oauth_signature=\"" + UsosOAuthSigner.percentEncode(hmac("s%26cret&", baseString))
+                        + "\"");
+    }
+
+    @Test
+    void authorizationHeader_calledTwice_shouldUseFreshNonces() {
+        // Given
+        UsosOAuthSigner signer = new UsosOAuthSigner("key", "secret");
+
+        // When
+        String first = signer.authorizationHeader("GET", "https://usos.example.edu/services/users/user",
+                "token", "secret", null, null);
+        String second = signer.authorizationHeader("GET", "https://usos.example.edu/services/users/user",
+                "token", "secret", null, null);
+
+        // Then
+        assertThat(first).containsPattern("oauth_nonce=\"[0-9a-f]{32}\"");
+        assertThat(nonce(first)).isNotEqualTo(nonce(second));
+    }
+
+    @Test
+    void percentEncode_shouldEscapeReservedAndNonAsciiCharacters() {
+        // When & Then
+        assertThat(UsosOAuthSigner.percentEncode("abc-._~XYZ019")).isEqualTo("abc-._~XYZ019");
+        assertThat(UsosOAuthSigner.percentEncode("a b&c=d*")).isEqualTo("a%20b%26c%3Dd%2A");
+        assertThat(UsosOAuthSigner.percentEncode("Łódź")).isEqualTo("%C5%81%C3%B3d%C5%BA");
+        assertThat(UsosOAuthSigner.percentEncode("😀")).isEqualTo("%F0%9F%98%80");
+    }
+
+    @Test
+    void hasConsumerSecret_shouldMatchOnlyTheDerivingSecret() {
+        // Given
+        UsosOAuthSigner signer = new UsosOAuthSigner("key", "secret");
+
+        // When & Then
+        assertThat(signer.hasConsumerSecret("secret")).isTrue();
+        assertThat(signer.hasConsumerSecret("rotated")).isFalse();
+    }
+
+    private static String hmac(String key, String baseString) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.US_ASCII), "HmacSHA1"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(baseString.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String nonce(String header) {
+        int start = header.indexOf("oauth_nonce=\"") + "oauth_nonce=\"".length();
+        return header.substring(start, header.indexOf('"', start));
+    }
+}
@@ -0,0 +1,54 @@
+package pl.edu.solvro.keycloak.usos;
+
+/**
+ * Realistic USOS {@code services/users/user} responses of increasing size
+ */
+public final class UsosPayloads {
+
+    private UsosPayloads() {
+    }
+
+    /**
+     * Response limited to the provider's {@code fields} selector
+     */
+    public static String profile(long id) {
+        return "{\"id\":\"" + id + "\",\"first_name\":\"Jan\",\"last_name\":\"Kowalski\","
+                + "\"email\":\"jan.kowalski" + id + "@student.pwr.edu.pl\",\"student_number\":\"" + (200000 + id)
+                + "\",\"staff_status\":0,\"student_status\":2}";
+    }
+
+    /**
+     * Response for the default field set plus common optional fields, as returned without a selector
+     */
+    public static String fullProfile(long id) {
+        StringBuilder json = new StringBuilder(profile(id));
+        json.setLength(json.length() - 1);
+        json.append(",\"middle_names\":null,\"sex\":\"M\",\"titles\":{\"before\":null,\"after\":null},")
+                .append("\"has_photo\":true,\"photo_urls\":{\"50x50\":\"https://usos.pwr.edu.pl/photos/")
+                .append(id).append("_50.jpg\",\"100x100\":\"https://usos.pwr.edu.pl/photos/")
+                .append(id).append("_100.jpg\"},\"student_programmes\":[");
+        for (int i = 0; i < 3; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":\"").append(900 + i)
+                    .append("\",\"programme\":{\"id\":\"W4-INA-").append(i).append("\",\"description\":{")
+                    .append("\"pl\":\"Informatyka Algorytmiczna, stacjonarne pierwszego stopnia\",")
+                    .append("\"en\":\"Algorithmic Computer Science, full-time first-cycle\"}}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Full profile with a long list of nested records, approaching tens of kilobytes
+     */
+    public static String largeProfile(long id) {
+        StringBuilder json = new StringBuilder(fullProfile(id));
+        json.setLength(json.length() - 1);
+        json.append(",\"course_editions\":[");
+        for (int i = 0; i < 120; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"course_id\":\"W04INA-SI").append(i)
+                    .append("\",\"term_id\":\"2024/25-Z\",\"course_name\":{\"pl\":\"Kurs numer ").append(i)
+                    .append("\",\"en\":\"Course number ").append(i).append("\"},\"ects\":").append(i % 7 + 1)
+                    .append(",\"lecturers\":[{\"id\":\"").append(5000 + i).append("\",\"name\":\"Dr Anna Nowak\"}]}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,243 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.InOrder;
+
+/**
+ * Tests for UsosProfileSync.
+ */
+class UsosProfileSyncTest {
+
+    private static final String REALM_ID = "realm-id";
+    private static final String ALIAS = "usos";
+    private static final String INSTALLATION = "https://usosweb.university.edu.pl";
+
+    private final InMemorySingleUseObjects singleUseObjects = new InMemorySingleUseObjects();
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private final KeycloakTransactionManager transaction = mock(KeycloakTransactionManager.class);
+    private final UserProvider users = mock(UserProvider.class);
+    private final UsosOAuthClient client = mock(UsosOAuthClient.class);
+    private final UsosIdentityProviderSnapshot snapshot = mock(UsosIdentityProviderSnapshot.class);
+    private UsosProfileSync sync;
+
+    @BeforeEach
+    void setUp() {
+        RealmProvider realms = mock(RealmProvider.class);
+        IdentityProviderStorageProvider identityProviders = mock(IdentityProviderStorageProvider.class);
+        IdentityProviderModel model = mock(IdentityProviderModel.class);
+        UsosIdentityProviderFactory factory = mock(UsosIdentityProviderFactory.class);
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(transaction);
+        when(session.realms()).thenReturn(realms);
+        when(session.getContext()).thenReturn(mock(KeycloakContext.class));
+        when(session.identityProviders()).thenReturn(identityProviders);
+        when(session.singleUseObjects()).thenReturn(singleUseObjects);
+        when(session.users()).thenReturn(users);
+        when(realms.getRealm(REALM_ID)).thenReturn(realm);
+        when(realm.getId()).thenReturn(REALM_ID);
+        when(identityProviders.getByAlias(ALIAS)).thenReturn(model);
+        when(model.isEnabled()).thenReturn(true);
+        when(factory.getSnapshot(session, model)).thenReturn(snapshot);
+        when(snapshot.getClient()).thenReturn(client);
+        when(client.getAttributeMapping()).thenReturn(UsosAttributeMapping.DEFAULT);
+        when(client.canFetchUserProfiles()).thenReturn(true);
+        sync = new UsosProfileSync(factory, 3600, 2, 1, 2, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sync.close();
+    }
+
+    @Test
+    void syncPage_withChangedProfile_shouldFetchInBatchesUpdateUserAndAdvanceCheckpoint() throws Exception {
+        // Given
+        UserModel changed = linkedUser("1", Map.of("student_number", "111", "student_status", "2"));
+        UserModel unchanged = linkedUser("2", Map.of("staff_status", "1"));
+        givenUsers(0, changed, unchanged);
+        when(client.fetchUserProfiles(List.of("1")))
+                .thenReturn(Map.of("1", new UsosUserProfile("1", null, null, null, "111", null, "0")));
+        when(client.fetchUserProfiles(List.of("2")))
+                .thenReturn(Map.of("2", new UsosUserProfile("2", null, null, null, null, "1", null)));
+
+        // When
+        UsosProfileSync.Page page = sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+        // Then
+        assertThat(page).isEqualTo(new UsosProfileSync.Page(2, 1, false));
+        verify(changed).setSingleAttribute("student_status", "0");
+        verify(unchanged, never()).setSingleAttribute(anyString(), anyString());
+        assertThat(singleUseObjects.get("usos-profile-sync:checkpoint:" + REALM_ID + ":" + ALIAS))
+                .containsEntry("offset", "2");
+    }
+
+    @Test
+    void syncPage_shouldFetchProfilesBetweenTwoTransactions() throws Exception {
+        // Given
+        givenUsers(0, linkedUser("1", Map.of()));
+        when(client.fetchUserProfiles(List.of("1")))
+                .thenReturn(Map.of("1", new UsosUserProfile("1", null, null, null, null, null, "0")));
+
+        // When
+        sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+        // Then - the page is read and written in separate transactions, none of them open during the USOS call
+        InOrder order = inOrder(transaction, session, client);
+        order.verify(transaction).begin();
+        order.verify(session).close();
+        order.verify(client).fetchUserProfiles(List.of("1"));
+        order.verify(transaction).begin();
+        order.verify(session).close();
+    }
+
+    @Test
+    void syncPage_withProfileCachedByLogin_shouldUseItInsteadOfFetching() throws Exception {
+        // Given - user 1 logged in recently, user 2 did not
+        try (DefaultCacheManager cacheManager = new DefaultCacheManager()) {
+            UsosUserInfoCache userInfoCache = UsosUserInfoCache.create(cacheManager, 100);
+            userInfoCache.put(INSTALLATION, "1",
+                    new UsosUserProfile("1", null, null, null, "111", null, "0").toJson(), 60);
+            when(snapshot.getUserInfoCache()).thenReturn(userInfoCache);
+            when(snapshot.getInstallation()).thenReturn(INSTALLATION);
+            UserModel loggedIn = linkedUser("1", Map.of("student_number", "111", "student_status", "2"));
+            UserModel other = linkedUser("2", Map.of());
+            givenUsers(0, loggedIn, other);
+            when(client.fetchUserProfiles(List.of("2")))
+                    .thenReturn(Map.of("2", new UsosUserProfile("2", null, null, null, null, "1", null)));
+
+            // When
+            UsosProfileSync.Page page = sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+            // Then
+            assertThat(page).isEqualTo(new UsosProfileSync.Page(2, 2, false));
+            verify(loggedIn).setSingleAttribute("student_status", "0");
+            verify(other).setSingleAttribute("staff_status", "1");
+            verify(client).fetchUserProfiles(any());
+            assertThat(userInfoCache.getHits()).isEqualTo(1);
+            assertThat(userInfoCache.getMisses()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void syncPage_whenResponseLacksMappedField_shouldKeepStoredAttribute() throws Exception {
+        // Given - the two-legged call does not return the user-scoped student number
+        UserModel user = linkedUser("1", Map.of("student_number", "111", "student_status", "2"));
+        givenUsers(0, user);
+        when(client.fetchUserProfiles(List.of("1")))
+                .thenReturn(Map.of("1", new UsosUserProfile("1", null, null, null, null, null, "0")));
+
+        // When
+        UsosProfileSync.Page page = sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+        // Then
+        assertThat(page.updated()).isEqualTo(1);
+        verify(user).setSingleAttribute("student_status", "0");
+        verify(user, never()).removeAttribute(anyString());
+    }
+
+    @Test
+    void syncPage_onLastPage_shouldRestartCheckpoint() throws Exception {
+        // Given
+        singleUseObjects.put("usos-profile-sync:checkpoint:" + REALM_ID + ":" + ALIAS, 60, Map.of("offset", "4"));
+        UserModel user = linkedUser("5", Map.of());
+        givenUsers(4, user);
+        when(client.fetchUserProfiles(List.of("5"))).thenReturn(Map.of());
+
+        // When
+        UsosProfileSync.Page page = sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+        // Then
+        assertThat(page).isEqualTo(new UsosProfileSync.Page(1, 0, true));
+        verify(client, times(1)).fetchUserProfiles(any());
+        assertThat(singleUseObjects.get("usos-profile-sync:checkpoint:" + REALM_ID + ":" + ALIAS))
+                .containsEntry("offset", "0");
+    }
+
+    @Test
+    void syncPage_whenUsosUnavailable_shouldFailWithoutMovingCheckpoint() throws Exception {
+        // Given
+        givenUsers(0, linkedUser("1", Map.of()));
+        when(client.fetchUserProfiles(List.of("1"))).thenThrow(new UsosUnavailableException("Circuit open"));
+
+        // When & Then
+        assertThatThrownBy(() -> sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Circuit open");
+        assertThat(singleUseObjects.get("usos-profile-sync:checkpoint:" + REALM_ID + ":" + ALIAS)).isNull();
+    }
+
+    @Test
+    void syncPage_withoutUsersUrl_shouldSkipProvider() throws Exception {
+        // Given
+        when(client.canFetchUserProfiles()).thenReturn(false);
+
+        // When
+        UsosProfileSync.Page page = sync.syncPage(sessionFactory, REALM_ID, ALIAS, 2);
+
+        // Then
+        assertThat(page).isEqualTo(new UsosProfileSync.Page(0, 0, true));
+        verify(client, never()).fetchUserProfiles(any());
+        verify(users, never()).searchForUserStream(any(), anyMap(), any(), any());
+    }
+
+    @Test
+    void run_whenAnotherNodeHoldsLease_shouldSkip() {
+        // Given
+        singleUseObjects.putIfAbsent("usos-profile-sync:lease", 60);
+
+        // When
+        sync.run(session);
+
+        // Then
+        verify(session, never()).realms();
+    }
+
+    private void givenUsers(int offset, UserModel... page) {
+        when(users.searchForUserStream(eq(realm), eq(Map.of(UserModel.IDP_ALIAS, ALIAS)), eq(offset), eq(2)))
+                .thenReturn(Stream.of(page));
+    }
+
+    private UserModel linkedUser(String usosId, Map<String, String> attributes) {
+        UserModel user = mock(UserModel.class);
+        when(user.getId()).thenReturn("user-" + usosId);
+        when(users.getUserById(realm, "user-" + usosId)).thenReturn(user);
+        for (String name : UsosAttributeMapping.DEFAULT.attributeNames()) {
+            when(user.getFirstAttribute(name)).thenReturn(attributes.get(name));
+        }
+        when(users.getFederatedIdentity(realm, user, ALIAS))
+                .thenReturn(new FederatedIdentityModel(ALIAS, usosId, "user-" + usosId));
+        return user;
+    }
+}
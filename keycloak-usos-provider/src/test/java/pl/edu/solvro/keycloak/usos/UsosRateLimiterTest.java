@@ -0,0 +1,98 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosRateLimiter.
+ */
+class UsosRateLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger nodes = new AtomicInteger(1);
+
+    @Test
+    void reserve_withinBurst_shouldNotWait() {
+        // Given
+        UsosRateLimiter limiter = limiter(10, 3, 1000);
+
+        // When & Then
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isZero();
+    }
+
+    @Test
+    void reserve_overBurst_shouldQueueCallsAtTheRate() {
+        // Given
+        UsosRateLimiter limiter = limiter(10, 1, 1000);
+        limiter.reserve();
+
+        // When & Then - one permit every 100 ms, each queued call behind the previous one
+        assertThat(limiter.reserve()).isEqualTo(100 * MILLIS);
+        assertThat(limiter.reserve()).isEqualTo(200 * MILLIS);
+    }
+
+    @Test
+    void reserve_whenWaitWouldExceedMaximum_shouldRefuseWithoutTakingPermit() {
+        // Given
+        UsosRateLimiter limiter = limiter(10, 1, 150);
+        limiter.reserve();
+        limiter.reserve();
+
+        // When & Then
+        assertThat(limiter.reserve()).isEqualTo(-1);
+        clock.addAndGet(100 * MILLIS);
+        assertThat(limiter.reserve()).isEqualTo(100 * MILLIS);
+    }
+
+    @Test
+    void reserve_afterQuietPeriod_shouldRefillUpToBurst() {
+        // Given
+        UsosRateLimiter limiter = limiter(10, 2, 1000);
+        limiter.reserve();
+        limiter.reserve();
+
+        // When
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+        // Then
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isZero();
+        assertThat(limiter.reserve()).isEqualTo(100 * MILLIS);
+    }
+
+    @Test
+    void reserve_inClusterOfTwo_shouldUseHalfTheRate() {
+        // Given
+        nodes.set(2);
+        UsosRateLimiter limiter = limiter(10, 2, 1000);
+        limiter.reserve();
+
+        // When & Then - a 5 per second share of the quota
+        assertThat(limiter.reserve()).isEqualTo(200 * MILLIS);
+    }
+
+    @Test
+    void acquire_whenOverLimit_shouldThrowUnavailable() throws Exception {
+        // Given
+        UsosRateLimiter limiter = limiter(1, 1, 10);
+        limiter.acquire();
+
+        // When & Then
+        assertThatThrownBy(limiter::acquire)
+                .isInstanceOf(UsosUnavailableException.class)
+                .hasMessage("USOS request rate for consumer key is over its limit of 1 per second");
+    }
+
+    private UsosRateLimiter limiter(int permitsPerSecond, int burst, int maxWaitMillis) {
+        return new UsosRateLimiter("key", permitsPerSecond, burst, maxWaitMillis, nodes::get, clock::get);
+    }
+}
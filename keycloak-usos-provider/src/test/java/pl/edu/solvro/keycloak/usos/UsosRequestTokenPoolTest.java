@@ -0,0 +1,112 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pl.edu.solvro.keycloak.usos.UsosRequestTokenPool.RequestToken;
+
+/**
+ * Tests for UsosRequestTokenPool.
+ */
+class UsosRequestTokenPoolTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+    private final AtomicInteger issued = new AtomicInteger();
+    private UsosRequestTokenPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new UsosRequestTokenPool(3, 2, 60_000L, this::issue, clock::get);
+    }
+
+    @Test
+    void poll_whenEmpty_shouldReturnNull() {
+        assertThat(pool.poll()).isNull();
+    }
+
+    @Test
+    void refill_shouldRespectPerTickBudgetAndCapacity() throws Exception {
+        // When & Then
+        assertThat(pool.refill()).isEqualTo(2);
+        assertThat(pool.refill()).isEqualTo(1);
+        assertThat(pool.refill()).isZero();
+        assertThat(pool.size()).isEqualTo(3);
+        assertThat(issued.get()).isEqualTo(3);
+    }
+
+    @Test
+    void poll_shouldHandOutOldestTokenFirst() throws Exception {
+        // Given
+        pool.refill();
+
+        // When
+        RequestToken first = pool.poll();
+        RequestToken second = pool.poll();
+
+        // Then
+        assertThat(first.token()).isEqualTo("token-1");
+        assertThat(second.token()).isEqualTo("token-2");
+        assertThat(pool.size()).isZero();
+    }
+
+    @Test
+    void poll_shouldSkipExpiredTokens() throws Exception {
+        // Given
+        pool.refill();
+        clock.addAndGet(60_000L);
+
+        // When
+        RequestToken token = pool.poll();
+
+        // Then
+        assertThat(token).isNull();
+        assertThat(pool.size()).isZero();
+    }
+
+    @Test
+    void refill_shouldReplaceExpiredTokens() throws Exception {
+        // Given
+        pool.refill();
+        clock.addAndGet(60_000L);
+
+        // When
+        pool.refill();
+
+        // Then
+        assertThat(pool.poll().token()).isEqualTo("token-3");
+    }
+
+    @Test
+    void refill_whenSourceFails_shouldKeepTokensIssuedSoFar() {
+        // Given
+        pool.reconfigure(3, 2, 60_000L, () -> {
+            throw new IllegalStateException("USOS unavailable");
+        });
+
+        // When & Then
+        assertThatThrownBy(pool::refill).hasMessage("USOS unavailable");
+        assertThat(pool.size()).isZero();
+    }
+
+    @Test
+    void poll_shouldRecordLastUse() {
+        // Given
+        clock.addAndGet(5_000L);
+
+        // When
+        pool.poll();
+
+        // Then
+        assertThat(pool.getLastUsedMillis()).isEqualTo(clock.get());
+    }
+
+    private RequestToken issue() {
+        int number = issued.incrementAndGet();
+        return new RequestToken("token-" + number, "secret-" + number,
+                "https://usos/authorize?oauth_token=token-" + number, clock.get());
+    }
+}
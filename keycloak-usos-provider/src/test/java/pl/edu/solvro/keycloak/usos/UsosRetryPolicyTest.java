@@ -0,0 +1,57 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosRetryPolicy.
+ */
+class UsosRetryPolicyTest {
+
+    private final UsosRetryPolicy policy = new UsosRetryPolicy(3, 3000);
+
+    @Test
+    void isRetryable_shouldOnlyRepeatCallsUsosMayHaveActedOnWhenRepeatable() {
+        // Given
+        IOException refused = new UsosOAuthClient.StatusException("HTTP 401", 401, true);
+        IOException serverError = new UsosOAuthClient.StatusException("HTTP 503", 503, false);
+        IOException reset = new SocketException("Connection reset");
+
+        // When & Then
+        assertThat(UsosRetryPolicy.isRetryable(refused, false)).isTrue();
+        assertThat(UsosRetryPolicy.isRetryable(new ConnectException("Connection refused"), false)).isTrue();
+        assertThat(UsosRetryPolicy.isRetryable(serverError, false)).isFalse();
+        assertThat(UsosRetryPolicy.isRetryable(reset, false)).isFalse();
+        assertThat(UsosRetryPolicy.isRetryable(serverError, true)).isTrue();
+        assertThat(UsosRetryPolicy.isRetryable(reset, true)).isTrue();
+    }
+
+    @Test
+    void isRetryable_shouldNotRetryRefusedOrTimedOutCalls() {
+        // When & Then
+        assertThat(UsosRetryPolicy.isRetryable(new UsosUnavailableException("Circuit breaker is open"), true))
+                .isFalse();
+        assertThat(UsosRetryPolicy.isRetryable(new UsosTimeoutException("Deadline exceeded"), true)).isFalse();
+        assertThat(UsosRetryPolicy.isRetryable(new UsosOAuthClient.StatusException("HTTP 404", 404, false), true))
+                .isFalse();
+    }
+
+    @Test
+    void retryDelayMillis_shouldStayWithinBackoffAttemptsAndBudget() {
+        // Given
+        IOException failure = new ConnectException("Connection refused");
+        long now = System.nanoTime();
+
+        // When & Then
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.retryDelayMillis(failure, 1, now, true)).isBetween(0L, 100L);
+            assertThat(policy.retryDelayMillis(failure, 2, now, true)).isBetween(0L, 200L);
+        }
+        assertThat(policy.retryDelayMillis(failure, 3, now, true)).isEqualTo(-1);
+        assertThat(policy.retryDelayMillis(failure, 1, now - 3_000_000_000L, true)).isEqualTo(-1);
+    }
+}
@@ -0,0 +1,114 @@
+package pl.edu.solvro.keycloak.usos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the USOS OAuth and user endpoints, with injectable latency, jitter and errors.
+ * <p>
+ * Every token it issues is unique, so concurrent logins can be told apart. Signatures are not verified.
+ */
+public final class UsosStubServer implements AutoCloseable {
+
+    static {
+        // Headers and body are written separately; without this, Nagle's algorithm stalls every response on loopback
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final double errorRate;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    /**
+     * Starts the stub on a free loopback port
+     *
+     * @param latencyMillis fixed delay before every response
+     * @param jitterMillis  upper bound of an extra uniformly distributed delay
+     * @param errorRate     fraction of requests, between 0 and 1, answered with HTTP 503
+     */
+    public UsosStubServer(int latencyMillis, int jitterMillis, double errorRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "usos-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/services/oauth/request_token", exchange -> respond(exchange, "text/plain",
+                "oauth_token=rt" + sequence.incrementAndGet() + "&oauth_token_secret=rts"
+                        + "&oauth_callback_confirmed=true"));
+        server.createContext("/services/oauth/access_token", exchange -> respond(exchange, "text/plain",
+                "oauth_token=at" + sequence.incrementAndGet() + "&oauth_token_secret=ats"));
+        server.createContext("/services/users/user", exchange -> respond(exchange, "application/json",
+                UsosPayloads.profile(sequence.incrementAndGet())));
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        requests.incrementAndGet();
+        try (exchange) {
+            delay();
+            exchange.getRequestBody().readAllBytes();
+            int status = 200;
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                status = 503;
+                bytes = "Service Unavailable".getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private void delay() {
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
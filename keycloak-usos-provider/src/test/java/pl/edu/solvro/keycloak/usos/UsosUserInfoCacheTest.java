@@ -0,0 +1,96 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosUserInfoCache backed by a local Infinispan cache manager.
+ */
+class UsosUserInfoCacheTest {
+
+    private static final String INSTALLATION = "https://usosweb.university.edu.pl";
+    private static final String USER_INFO = "{\"id\":\"12345\"}";
+
+    private DefaultCacheManager cacheManager;
+    private UsosUserInfoCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cacheManager = new DefaultCacheManager();
+        cache = UsosUserInfoCache.create(cacheManager, 100);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        cacheManager.close();
+    }
+
+    @Test
+    void get_whenNothingCached_shouldMiss() {
+        // When
+        String result = cache.get(INSTALLATION, "12345");
+
+        // Then
+        assertThat(result).isNull();
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isZero();
+    }
+
+    @Test
+    void get_afterPut_shouldHitForSameUser() {
+        // Given
+        cache.put(INSTALLATION, "12345", USER_INFO, 60);
+
+        // When
+        String result = cache.get(INSTALLATION, "12345");
+
+        // Then
+        assertThat(result).isEqualTo(USER_INFO);
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    void get_withOtherInstallation_shouldMiss() {
+        // Given
+        cache.put(INSTALLATION, "12345", USER_INFO, 60);
+
+        // When
+        String result = cache.get("https://usosweb.other.edu.pl", "12345");
+
+        // Then
+        assertThat(result).isNull();
+    }
+
+    @Test
+    void get_withOtherUser_shouldMiss() {
+        // Given
+        cache.put(INSTALLATION, "12345", USER_INFO, 60);
+
+        // When
+        String result = cache.get(INSTALLATION, "67890");
+
+        // Then
+        assertThat(result).isNull();
+    }
+
+    @Test
+    void create_shouldBoundCacheSize() {
+        // Then
+        assertThat(cacheManager.getCacheConfiguration(UsosUserInfoCache.CACHE_NAME).memory().maxCount())
+                .isEqualTo(100);
+    }
+
+    @Test
+    void create_calledTwice_shouldReuseDefinition() {
+        // When
+        UsosUserInfoCache again = UsosUserInfoCache.create(cacheManager, 500);
+        cache.put(INSTALLATION, "12345", USER_INFO, 60);
+
+        // Then
+        assertThat(again.get(INSTALLATION, "12345")).isEqualTo(USER_INFO);
+    }
+}
@@ -0,0 +1,99 @@
+package pl.edu.solvro.keycloak.usos;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UsosUserProfile.
+ */
+class UsosUserProfileTest {
+
+    @Test
+    void read_withFullProfile_shouldMapSelectedFields() throws Exception {
+        // Given
+        String json = """
+                {
+                    "id": "12345",
+                    "first_name": "Jan",
+                    "last_name": "Kowalski",
+                    "email": "jan.kowalski@student.university.edu.pl",
+                    "student_number": "123456",
+                    "staff_status": 0,
+                    "student_status": 2
+                }
+                """;
+
+        // When
+        UsosUserProfile profile = UsosUserProfile.read(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        // Then
+        assertThat(profile).isEqualTo(new UsosUserProfile("12345", "Jan", "Kowalski",
+                "jan.kowalski@student.university.edu.pl", "123456", "0", "2"));
+    }
+
+    @Test
+    void read_withUnmappedAndNestedFields_shouldSkipThem() throws Exception {
+        // Given
+        String json = "{\"photo_urls\":{\"50x50\":\"https://x\"},\"id\":\"7\",\"titles\":[\"dr\",{\"a\":1}],"
+                + "\"sex\":\"M\",\"email\":null}";
+
+        // When
+        UsosUserProfile profile = UsosUserProfile.read(json);
+
+        // Then
+        assertThat(profile).isEqualTo(new UsosUserProfile("7", null, null, null, null, null, null));
+    }
+
+    @Test
+    void read_withoutId_shouldFail() {
+        // When & Then
+        assertThatThrownBy(() -> UsosUserProfile.read("{\"first_name\":\"Jan\"}"))
+                .isInstanceOf(JsonParseException.class)
+                .hasMessageContaining("does not contain an id");
+    }
+
+    @Test
+    void read_withNonObject_shouldFail() {
+        // When & Then
+        assertThatThrownBy(() -> UsosUserProfile.read("[]"))
+                .isInstanceOf(JsonParseException.class);
+    }
+
+    @Test
+    void toJson_shouldRoundTripUsingUsosFieldNames() throws Exception {
+        // Given
+        UsosUserProfile profile = new UsosUserProfile("1", "Żaneta", "Nowak", null, "99", "1", null);
+
+        // When
+        String json = profile.toJson();
+
+        // Then
+        assertThat(json).contains("\"first_name\":\"Żaneta\"").doesNotContain("email");
+        assertThat(UsosUserProfile.read(json)).isEqualTo(profile);
+    }
+
+    @Test
+    void readAll_shouldMapProfilesByIdAndSkipUnknownUsers() throws Exception {
+        // Given - USOS answers null for ids it does not know
+        String json = "{\"1\":{\"id\":\"1\",\"student_number\":\"111\",\"student_status\":2},"
+                + "\"2\":null,\"3\":{\"id\":\"3\",\"staff_status\":1}}";
+
+        // When
+        Map<String, UsosUserProfile> profiles = UsosUserProfile.readAll(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        // Then
+        assertThat(profiles).containsOnlyKeys("1", "3");
+        assertThat(profiles.get("1").attributes()).containsExactlyInAnyOrderEntriesOf(
+                Map.of("student_number", List.of("111"), "student_status", List.of("2")));
+        assertThat(profiles.get("3").attributes()).containsExactlyEntriesOf(Map.of("staff_status", List.of("1")));
+    }
+}